@@ -151,7 +151,13 @@ public class Changer {
          errorMessage("There already is a route " + newRoute + ".");
          return;
       }
-      myRealm.changeRoute(oldRoute, newRoute);
+      myRealm.editLock.lock();
+      try {
+         myRealm.changeRoute(oldRoute, newRoute);
+      }
+      finally {
+         myRealm.editLock.unlock();
+      }
       clearErrorMessage();
       mp.askRefresh(MatrPanel.ALL);
    }
@@ -167,7 +173,13 @@ public class Changer {
          errorMessage("There already is a '" + newStreet + "'.");
          return;
       }
-      myRealm.changeStreet(oldStreet, newStreet);
+      myRealm.editLock.lock();
+      try {
+         myRealm.changeStreet(oldStreet, newStreet);
+      }
+      finally {
+         myRealm.editLock.unlock();
+      }
       clearErrorMessage();
       mp.askRefresh(MatrPanel.ALL);
    }
@@ -183,7 +195,13 @@ public class Changer {
          errorMessage("There already is a town named '" + newTown + "'.");
          return;
       }
-      myRealm.changeTown(oldTown, newTown);
+      myRealm.editLock.lock();
+      try {
+         myRealm.changeTown(oldTown, newTown);
+      }
+      finally {
+         myRealm.editLock.unlock();
+      }
       clearErrorMessage();
       mp.askRefresh(MatrPanel.ALL);
    }
@@ -90,15 +90,24 @@ class EName {
    // when assigning names, we start at a random point in the list,
    // but afterwards proceed in order
    // TODO if we wrap around, we'll get duplicate names
-   Random dice = new Random();
+   Random dice;
    private int nTownsAssigned = 0;
-   private int firstTid =  dice.nextInt(Integer.MAX_VALUE) % factoryTownNames.length;
+   private int firstTid;
    private int nStreetsAssigned = 0;
-   private int firstSid =  dice.nextInt(Integer.MAX_VALUE) % factoryStreetNames.length;
+   private int firstSid;
    private int nRuralStreetsAssigned = 0;
-   private int firstRuralSid =  dice.nextInt(Integer.MAX_VALUE) % factoryRuralRoadNames.length;
+   private int firstRuralSid;
 
    public EName() {
+      this(new Random().nextLong());
+   }
+
+   // same seed gives the same names and numbers, in the same order
+   public EName(long seed) {
+      dice = new Random(seed);
+      firstTid =  dice.nextInt(Integer.MAX_VALUE) % factoryTownNames.length;
+      firstSid =  dice.nextInt(Integer.MAX_VALUE) % factoryStreetNames.length;
+      firstRuralSid =  dice.nextInt(Integer.MAX_VALUE) % factoryRuralRoadNames.length;
    }
 
    // pick a number higher than existing numbers
@@ -4,8 +4,11 @@ package com.kurumi.matr;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.io.File;
+import java.io.IOException;
 
 import javax.swing.JFrame;
+import javax.swing.JOptionPane;
 
 import com.kurumi.matr.RoadMapFrame;
 import com.kurumi.matr.Junction;
@@ -32,6 +35,8 @@ public class Empire implements MatrPanel {
 	Realm myRealm;
 	TextField tw, th, tr;  // expert mode width, height, # routes
 	Button bCreate = new Button("Create");
+	Button bOpen = new Button("Open");
+	Button bSave = new Button("Save");
 	Button bMap = new Button("Map");
 	Button bLog = new Button("Log");
 	Button bView = new Button("View");
@@ -73,6 +78,8 @@ public class Empire implements MatrPanel {
 		p = new Panel();
 		p.setLayout(new FlowLayout(FlowLayout.RIGHT));
 		p.add(bCreate);
+		p.add(bOpen);
+		p.add(bSave);
 		p.add(bMap);
 		p.add(bLog);
 		p.add(bView);
@@ -122,6 +129,59 @@ public class Empire implements MatrPanel {
 	private void newFontPreview() {
 		new FontPreview(this).show();		
 	}
+
+	/**
+	 * Show a new or newly opened realm in fresh windows
+	 */
+	private void showRealm() {
+		// hide/delete all old displays
+		newMap();
+		bMap.setEnabled(true);		
+		
+		newHighwayLog();
+		bLog.setEnabled(true);
+
+		newViewer();
+		bView.setEnabled(true);
+
+		newRenamer();
+		bChange.setEnabled(true);
+
+		bSave.setEnabled(true);
+	}
+
+	/**
+	 * Ask for a realm file to open or save
+	 * @return the chosen file, or null if cancelled
+	 */
+	private File chooseFile(String title, int mode) {
+		FileDialog fd = new FileDialog(myFrame, title, mode);
+		fd.setVisible(true);
+		if (fd.getFile() == null) {
+			return null;
+		}
+		return new File(fd.getDirectory(), fd.getFile());
+	}
+
+	// stop journaling the current realm, if it is
+	private void closeJournal() {
+		RealmJournal journal = myRealm == null ? null : myRealm.getJournal();
+		if (journal != null) {
+			myRealm.setJournal(null);
+			try {
+				journal.close();
+			}
+			catch (IOException ex) {
+				showError("Some edits weren't recorded in " +
+						journal.getPath().getFileName(), ex);
+			}
+		}
+	}
+
+	private void showError(String what, IOException e) {
+		JOptionPane.showMessageDialog(myFrame, what + ": " + e.getMessage(),
+				appTitle, JOptionPane.ERROR_MESSAGE);
+	}
 	
 	private void setHandlers() {
 		// "Create realm" button
@@ -146,19 +206,50 @@ public class Empire implements MatrPanel {
 				myRealm.create();
 				// can only create a realm once
 				bCreate.setEnabled(false);
-
-				// hide/delete all old displays
-				newMap();
-				bMap.setEnabled(true);		
-				
-				newHighwayLog();
-				bLog.setEnabled(true);
-
-				newViewer();
-				bView.setEnabled(true);
-
-				newRenamer();
-				bChange.setEnabled(true);
+				showRealm();
+			}
+		});
+		bOpen.addActionListener(new ActionListener()
+		{
+			@Override
+			public void actionPerformed(ActionEvent e)
+			{
+				File f = chooseFile("Open realm", FileDialog.LOAD);
+				if (f == null) {
+					return;
+				}
+				try {
+					Realm opened = RealmFile.open(f.toPath());
+					// bring back edits made since it was saved
+					RealmJournal.open(opened, f.toPath());
+					closeJournal();
+					disableToolButtons();
+					myRealm = opened;
+					bCreate.setEnabled(false);
+					showRealm();
+				}
+				catch (IOException ex) {
+					showError("Can't open " + f.getName(), ex);
+				}
+			}
+		});
+		bSave.addActionListener(new ActionListener()
+		{
+			@Override
+			public void actionPerformed(ActionEvent e)
+			{
+				File f = chooseFile("Save realm", FileDialog.SAVE);
+				if (f == null) {
+					return;
+				}
+				try {
+					// folds in the journal, and starts a new one
+					RealmJournal.compact(myRealm, myRealm.getJournal(),
+							f.toPath());
+				}
+				catch (IOException ex) {
+					showError("Can't save " + f.getName(), ex);
+				}
 			}
 		});
 		bMap.addActionListener(new ActionListener()
@@ -204,6 +295,7 @@ public class Empire implements MatrPanel {
 	}
 
 	private void disableToolButtons() {
+		bSave.setEnabled(false);
 		bMap.setEnabled(false);
 		bLog.setEnabled(false);
 		bView.setEnabled(false);
@@ -219,8 +311,14 @@ public class Empire implements MatrPanel {
 
 
 	// auto refresh done as result of paving, e.g.
+	// every edit ends here, so this is where a journal that
+	// couldn't be written is noticed.
 	@Override
 	public void askRefresh(int whichOnes) {
+		if (myRealm != null && myRealm.getJournal() != null &&
+				myRealm.getJournal().getFailure() != null) {
+			closeJournal();  // tells the user; Save keeps the edits
+		}
 		if (map != null && (whichOnes & MatrPanel.MAP) != 0) {
 			map.refresh();
 		}
@@ -264,7 +362,7 @@ public class Empire implements MatrPanel {
       if (sid > 1) {
          street = myRealm.streetNames[sid];
       }
-      String town = myRealm.towns[myRealm.grid[square.x][square.y].getTown()].getName();
+      String town = myRealm.towns[myRealm.grid.getTown(square.x, square.y)].getName();
       if (renamer != null) {
          renamer.setOldRoute(route);
          renamer.setOldStreet(street);
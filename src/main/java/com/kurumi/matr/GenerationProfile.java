@@ -0,0 +1,170 @@
+package com.kurumi.matr;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Where Realm.create() spent its time, and how often generation hit
+ * its fallbacks. Realm.create() fills one in and returns it.
+ *
+ * Stage times are wall-clock nanoseconds; calculateTownCenters is
+ * part of fillTowns, and cityBlocks, the towns' 5x5 street blocks, is
+ * part of MakePaths. Layout time is the sum over all layout() calls,
+ * so with parallel paths it can exceed the MakePaths stage.
+ * Counters are atomic for the same reason.
+ *
+ * @author soglesby
+ *
+ */
+public class GenerationProfile {
+   // stages timed by Realm.create()
+   public static final int coastline = 0, towns = 1, townCenters = 2,
+      paths = 3, cityBlocks = 4, numStages = 5;
+   static final String[] stageNames = {
+      "makeCoastline", "fillTowns", "calculateTownCenters", "MakePaths",
+      "cityBlocks"
+   };
+
+   private final long[] stageNanos = new long[numStages];
+   private long totalNanos;
+
+   // one layout() call is one route, street, or route extension;
+   // with parallel paths, a route that reached the edge of its region
+   // is two, one for each side of where it stopped
+   final AtomicLong layouts = new AtomicLong();
+   final AtomicLong routeLayouts = new AtomicLong();
+   final AtomicLong layoutNanos = new AtomicLong();
+   final AtomicLong routeLayoutNanos = new AtomicLong();
+   final AtomicLong maxLayoutNanos = new AtomicLong();
+   final AtomicLong layoutSteps = new AtomicLong();  // squares considered
+   final AtomicLong cantPaveChecks = new AtomicLong();
+   final AtomicLong forcedEnds = new AtomicLong();   // by numForcedDirections
+   final AtomicLong routeStartTries = new AtomicLong();
+   final AtomicLong routeStartsExhausted = new AtomicLong();  // retries
+   final AtomicLong routeStartsNotFound = new AtomicLong();
+
+   void addStageNanos(int stage, long nanos) {
+      stageNanos[stage] += nanos;
+   }
+
+   void setTotalNanos(long nanos) {
+      totalNanos = nanos;
+   }
+
+   // record one finished layout() call
+   void addLayout(boolean isRoute, long nanos, int steps, int checks,
+                  boolean forcedEnd) {
+      layouts.incrementAndGet();
+      if (isRoute) {
+         routeLayouts.incrementAndGet();
+         routeLayoutNanos.addAndGet(nanos);
+      }
+      layoutNanos.addAndGet(nanos);
+      long max = maxLayoutNanos.get();
+      while (nanos > max && !maxLayoutNanos.compareAndSet(max, nanos)) {
+         max = maxLayoutNanos.get();
+      }
+      layoutSteps.addAndGet(steps);
+      cantPaveChecks.addAndGet(checks);
+      if (forcedEnd) {
+         forcedEnds.incrementAndGet();
+      }
+   }
+
+   // record a pickRouteStart() call that took 'tries' attempts;
+   // exhausted if it used up its retries on random pavement,
+   // notFound if it then found no two-way road to start from either
+   void addRouteStart(int tries, boolean exhausted, boolean notFound) {
+      routeStartTries.addAndGet(tries);
+      if (exhausted) {
+         routeStartsExhausted.incrementAndGet();
+      }
+      if (notFound) {
+         routeStartsNotFound.incrementAndGet();
+      }
+   }
+
+   public long getStageNanos(int stage) { return stageNanos[stage]; }
+   public long getTotalNanos() { return totalNanos; }
+   public long getLayouts() { return layouts.get(); }
+   public long getRouteLayouts() { return routeLayouts.get(); }
+   public long getLayoutNanos() { return layoutNanos.get(); }
+   public long getRouteLayoutNanos() { return routeLayoutNanos.get(); }
+   public long getMaxLayoutNanos() { return maxLayoutNanos.get(); }
+   public long getLayoutSteps() { return layoutSteps.get(); }
+   public long getCantPaveChecks() { return cantPaveChecks.get(); }
+   public long getForcedEnds() { return forcedEnds.get(); }
+   public long getRouteStartTries() { return routeStartTries.get(); }
+   public long getRouteStartsExhausted() { return routeStartsExhausted.get(); }
+   public long getRouteStartsNotFound() { return routeStartsNotFound.get(); }
+
+   private static String ms(long nanos) {
+      return String.format("%.3f ms", nanos / 1e6);
+   }
+
+   // per-step average, or 0 if there were no steps
+   private static String perStep(long count, long steps) {
+      return String.format("%.2f", steps == 0 ? 0.0 : (double) count / steps);
+   }
+
+   /**
+    * @return multi-line, human readable report
+    */
+   public String report() {
+      StringBuilder sb = new StringBuilder();
+      sb.append("create: " + ms(totalNanos) + "\n");
+      for (int i = 0; i < numStages; i++) {
+         sb.append(i == townCenters || i == cityBlocks ? "    " : "  ");
+         sb.append(stageNames[i] + ": " + ms(stageNanos[i]) + "\n");
+      }
+      long n = getLayouts();
+      sb.append("layout: " + n + " calls (" + getRouteLayouts() +
+                " routes), " + ms(getLayoutNanos()) + " total, " +
+                ms(n == 0 ? 0 : getLayoutNanos() / n) + " avg, " +
+                ms(getMaxLayoutNanos()) + " max\n");
+      sb.append("  routes: " + ms(getRouteLayoutNanos()) + "\n");
+      sb.append("  steps: " + getLayoutSteps() + ", cantPave checks: " +
+                getCantPaveChecks() + " (" +
+                perStep(getCantPaveChecks(), getLayoutSteps()) +
+                " per step)\n");
+      sb.append("  ended by forced directions: " + getForcedEnds() + "\n");
+      sb.append("pickRouteStart: " + getRouteStartTries() + " tries, " +
+                getRouteStartsExhausted() + " ran out of retries, " +
+                getRouteStartsNotFound() + " found nowhere to start\n");
+      return sb.toString();
+   }
+
+   @Override
+   public String toString() {
+      return report();
+   }
+
+   /**
+    * @return the same numbers as one JSON object; times in nanoseconds
+    */
+   public String toJson() {
+      StringBuilder sb = new StringBuilder("{");
+      sb.append("\"totalNanos\":").append(totalNanos);
+      sb.append(",\"stageNanos\":{");
+      for (int i = 0; i < numStages; i++) {
+         if (i > 0) {
+            sb.append(',');
+         }
+         sb.append('"').append(stageNames[i]).append("\":")
+            .append(stageNanos[i]);
+      }
+      sb.append('}');
+      sb.append(",\"layouts\":").append(getLayouts());
+      sb.append(",\"routeLayouts\":").append(getRouteLayouts());
+      sb.append(",\"layoutNanos\":").append(getLayoutNanos());
+      sb.append(",\"routeLayoutNanos\":").append(getRouteLayoutNanos());
+      sb.append(",\"maxLayoutNanos\":").append(getMaxLayoutNanos());
+      sb.append(",\"layoutSteps\":").append(getLayoutSteps());
+      sb.append(",\"cantPaveChecks\":").append(getCantPaveChecks());
+      sb.append(",\"forcedEnds\":").append(getForcedEnds());
+      sb.append(",\"routeStartTries\":").append(getRouteStartTries());
+      sb.append(",\"routeStartsExhausted\":").append(getRouteStartsExhausted());
+      sb.append(",\"routeStartsNotFound\":").append(getRouteStartsNotFound());
+      sb.append('}');
+      return sb.toString();
+   }
+}
@@ -0,0 +1,559 @@
+package com.kurumi.matr;
+
+import java.awt.Point;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Build a distance-annotated list of points of interest along a highway,
+ * for one highway or all highways.
+ * This is the text behind HighwayLogViewer; it opens no windows, so
+ * batch tools can use it too.
+ *
+ * To avoid floating point issues, we track route lengths as integers:
+ * a "centimile" is 1/100 of a mile.
+ *
+ * TODO we actually store the log text in the Route object -- might be a better way.
+ * It's convenient for sorting in a TreeMap
+ *
+ * logChangedRoutes() keeps those logs between calls, and listens to
+ * the Realm to learn which routes an edit may have changed, so after
+ * a path tool edit only the routes through the edited squares are
+ * walked again.
+ *
+ * @author soglesby
+ *
+ */
+public class HighwayLog implements Realm.RouteListener {
+   /** formats for exportLog() */
+   public static final int exportText = 0, exportCsv = 1, exportJson = 2;
+   static final String csvHeader = "route,milepost,event";
+
+   private final Realm myRealm;
+   private int total100s = 0;  // from last logAllRoutes()
+
+   // for logChangedRoutes(): each route's length as last logged,
+   // and which routes need logging again
+   private boolean listening = false;
+   private int[] length100s = new int[1];
+   private final BitSet stale = new BitSet();
+   private boolean allStale = true;
+   int numRelogged = 0;  // by the last call, for tests
+
+   public HighwayLog(Realm realm) {
+      myRealm = realm;
+   }
+
+   /**
+    * Format a length in centimiles as miles, to 2 decimal places
+    * For example, f(370) returns "3.70"
+    * @param length in centimiles (int)
+    * @return length in miles (String)
+    */
+   public static String mile100String(int centimiles) {
+	   return String.format("%d.%02d", centimiles/100, centimiles%100);
+   }
+
+   // mile100String(), appended to log without the formatting
+   private static void appendMile100(StringBuffer log, int centimiles) {
+      int hundredths = centimiles % 100;
+      log.append(centimiles / 100).append('.');
+      if (hundredths < 10) {
+         log.append('0');
+      }
+      log.append(hundredths);
+   }
+
+   // town name for log; tiles outside any town have none
+   private String townName(int tid) {
+      return tid == 0 ? "" : myRealm.towns[tid].getName();
+   }
+
+   /**
+    * Build a highway log for a single route, into the Route's log.
+    * @param route the route to log
+    * @return length of this route in centimiles.
+    */
+   public int logOneRoute(Route route) {
+      route.clearLog();
+      MilepostIndex.Walk walk = myRealm.getMileposts().getWalk(route.getId());
+      return logOneRoute(route, walk, route.getLog());
+   }
+
+   // what logOneRoute() finds along a route, an entry at a time:
+   // what's at each milepost, in order
+   private interface Entries {
+      void milepost(int centimiles, CharSequence event) throws IOException;
+   }
+
+   // log route, walked, onto the end of log; returns its length
+   private int logOneRoute(Route route, MilepostIndex.Walk walk,
+                           final StringBuffer log) {
+      RealmGrid grid = myRealm.grid;
+      int rid = route.getId();
+      Point start = route.getStart();
+      Point end = route.getEnd();
+      int startTile = grid.tile(start.x, start.y);
+      int endTile = grid.tile(end.x, end.y);
+
+      log.append("Route ").append(route.getNumber()).append('\n');
+      log.append("From: ");
+      describe(startTile, rid, log);
+      log.append(' ').append(townName(grid.getTown(startTile))).append('\n');
+      log.append("To: ");
+      describe(endTile, rid, log);
+      log.append(' ').append(townName(grid.getTown(endTile))).append('\n');
+      log.append("Log dir: ").append(
+                 Junction.dirStrings[route.getLogDirection()]).append(
+                 "\nMileposts:\n");
+
+      try {
+         return logMileposts(rid, walk, new Entries() {
+            @Override
+            public void milepost(int centimiles, CharSequence event) {
+               appendMile100(log, centimiles);
+               log.append(": ").append(event).append('\n');
+            }
+         });
+      }
+      catch (IOException e) {
+         // a StringBuffer doesn't throw
+         throw new IllegalStateException(e.getMessage());
+      }
+   }
+
+   // follow a route, walked, from start to end, telling out what's
+   // at each milepost; returns its length
+   private int logMileposts(int rid, MilepostIndex.Walk walk, Entries out)
+      throws IOException {
+      RealmGrid grid = myRealm.grid;
+      int[] tiles = walk.tiles;
+      int[] mileposts = walk.mileposts;  // in 1/100ths
+      StringBuffer event = new StringBuffer();
+      for (int i = 0; i < tiles.length; i++) {
+
+         // describe any junctions
+         event.setLength(0);
+         if (describe(tiles[i], rid, event)) {
+            out.milepost(mileposts[i], event);
+         }
+
+         // describe any town line crossing
+         // this is halfway between this tile center and the next
+         if (i + 1 < tiles.length) {
+            int oldTownId = grid.getTown(tiles[i]);
+            int newTownId = grid.getTown(tiles[i + 1]);
+            if (newTownId != oldTownId) {
+               event.setLength(0);
+               event.append(townName(oldTownId)).append(" - ")
+                  .append(townName(newTownId)).append(" TL");
+               out.milepost((mileposts[i] + mileposts[i + 1]) / 2, event);
+            }
+         }
+      }
+      return walk.getLength();
+   }
+
+   // describe the junction at tile t, for route rid, onto the end of log
+   private boolean describe(int t, int rid, StringBuffer log) {
+      JunctionTable juncs = myRealm.grid.getJunctionTable();
+      try {
+         return juncs.describe(juncs.slotAt(t), myRealm, rid, log);
+      }
+      catch (IOException e) {
+         // a StringBuffer doesn't throw
+         throw new IllegalStateException(e.getMessage());
+      }
+   }
+
+   /**
+    * Receives a log a section at a time, in order: each route's log
+    * with the blank lines after it, then the totals.
+    */
+   public interface Sections {
+      /**
+       * @param text the next section
+       * @return false to stop logging
+       */
+      boolean append(String text);
+   }
+
+   // collects the sections into one string
+   private static class Whole implements Sections {
+      final StringBuilder text = new StringBuilder();
+
+      @Override
+      public boolean append(String section) {
+         text.append(section);
+         return true;
+      }
+   }
+
+   /* ===
+      build the route log for all routes, sorted by route number.
+      MUCH quicker to build up a stringBuffer, then append once
+      to textArea, than to append to textArea bit by bit.
+   */
+   public String logAllRoutes() {
+      Whole whole = new Whole();
+      logRoutes(true, false, whole);
+      return whole.text.toString();
+   }
+
+   /**
+    * Same text as logAllRoutes(), but the routes are logged on all
+    * cores at once and then put in order. The realm's editLock is
+    * held throughout, so edits wait until every route is logged.
+    * A mapped realm has all its junctions read in first.
+    * @return the log for all routes
+    */
+   public String logAllRoutesParallel() {
+      myRealm.grid.getJunctionTable().fillAllPages();
+      Whole whole = new Whole();
+      logRoutes(true, true, whole);
+      return whole.text.toString();
+   }
+
+   /**
+    * Same text as logAllRoutes(), but only routes changed since the
+    * last call are logged again; the others keep their logs.
+    * The first call logs them all.
+    * @return the log for all routes
+    */
+   public String logChangedRoutes() {
+      Whole whole = new Whole();
+      logChangedRoutes(whole);
+      return whole.text.toString();
+   }
+
+   /**
+    * Like logChangedRoutes(), but hands over each route's section as
+    * soon as it's ready, so a viewer can show the first routes while
+    * the rest are logged. Routes not reached before out says stop
+    * are logged next time.
+    * Edits may come in on another thread, holding the realm's
+    * editLock: each route is logged under that lock, so an edit waits
+    * for at most one route, and the routes it touched are logged again
+    * on the next call.
+    * @param out where the sections go
+    * @return true if out took every section
+    */
+   public boolean logChangedRoutes(Sections out) {
+      synchronized (this) {
+         if (!listening) {
+            myRealm.addRouteListener(this);
+            listening = true;
+            allStale = true;
+         }
+      }
+      return logRoutes(false, false, out);
+   }
+
+   @Override
+   public synchronized void routeChanged(int rid) {
+      stale.set(rid);
+   }
+
+   @Override
+   public synchronized void allRoutesChanged() {
+      allStale = true;
+   }
+
+   // parallel: log all of todo up front, on a fork-join pool
+   private boolean logRoutes(boolean all, boolean parallel, Sections out) {
+      int numRoutes;
+      BitSet todo;  // routes to log this time
+      synchronized (this) {
+         numRoutes = myRealm.getNumRoutes();
+         if (length100s.length <= numRoutes) {
+            // routes made since last time
+            stale.set(length100s.length, numRoutes + 1);
+            length100s = Arrays.copyOf(length100s, numRoutes + 1);
+         }
+         if (all || allStale) {
+            todo = new BitSet();
+            todo.set(1, numRoutes + 1);
+         }
+         else {
+            todo = (BitSet) stale.clone();
+         }
+         stale.clear();
+         allStale = false;
+      }
+      numRelogged = 0;
+      boolean done = false;
+
+      try {
+         int parallelTotal = 0;
+         if (parallel) {
+            // the workers log under this thread's hold
+            myRealm.editLock.lock();
+            try {
+               parallelTotal = Realm.forkJoinPool.invoke(
+                  new RouteLogs(todo, 1, numRoutes + 1));
+            }
+            finally {
+               myRealm.editLock.unlock();
+            }
+            numRelogged = todo.cardinality();
+            todo.clear();
+         }
+
+         Map<Integer, Route> shown;
+         myRealm.editLock.lock();
+         try {
+            shown = byNumber(numRoutes);
+         }
+         finally {
+            myRealm.editLock.unlock();
+         }
+         for (Route route: shown.values()) {
+            String section;
+            myRealm.editLock.lock();
+            try {
+               relog(route.getId(), todo);
+               section = route.getLog() + "\n\n";
+            }
+            finally {
+               myRealm.editLock.unlock();
+            }
+            if (!out.append(section)) {
+               return false;
+            }
+         }
+         // routes that share a number with another aren't shown,
+         // but still count toward the total
+         myRealm.editLock.lock();
+         try {
+            for (int rid = todo.nextSetBit(1); rid >= 0 && rid <= numRoutes;
+                 rid = todo.nextSetBit(rid + 1)) {
+               relog(rid, todo);
+            }
+         }
+         finally {
+            myRealm.editLock.unlock();
+         }
+
+         total100s = 0; // total mileage, all routes, 1/100ths
+         if (parallel) {
+            total100s = parallelTotal;
+         }
+         else {
+            for (int i = 1; i <= numRoutes; i++) {
+               total100s += length100s[i];
+            }
+         }
+         done = out.append(totals(numRoutes, total100s));
+         return done;
+      }
+      finally {
+         if (!done) {
+            // whatever wasn't logged still needs to be
+            synchronized (this) {
+               stale.or(todo);
+            }
+         }
+      }
+   }
+
+   // the highway log is sorted by route number; of routes that share
+   // a number, only the last is shown
+   private Map<Integer, Route> byNumber(int numRoutes) {
+      Map<Integer, Route> treeMap = new TreeMap<>();
+      for (int i = 1; i <= numRoutes; i++) {
+         treeMap.put(myRealm.routes[i].getNumber(), myRealm.routes[i]);
+      }
+      return treeMap;
+   }
+
+   // the section that ends a log of all routes
+   private static String totals(int numRoutes, int total100s) {
+      return "\nNumbered routes: " + numRoutes + "\n" +
+         "\nTotal mileage: " + mile100String(total100s) + "\n";
+   }
+
+   /**
+    * Write the log for all routes to out, a route at a time, so only
+    * one route's log is ever held in memory however big the realm.
+    * Logs kept in the Routes, and what logChangedRoutes() remembers,
+    * are left alone, and routes the milepost index hasn't kept
+    * aren't kept for this. Like logChangedRoutes(), each route is
+    * logged under the realm's editLock. Give it a buffered Writer.
+    * @param out where the log goes; not closed
+    * @param format exportText for the text of logAllRoutes();
+    *    exportCsv or exportJson for one line per milepost, giving the
+    *    route number, the milepost in miles and what's there
+    * @throws IOException if out does
+    */
+   public void exportLog(Writer out, int format) throws IOException {
+      MilepostIndex index = myRealm.getMileposts();
+      int numRoutes;
+      Map<Integer, Route> shown;
+      myRealm.editLock.lock();
+      try {
+         numRoutes = myRealm.getNumRoutes();
+         shown = byNumber(numRoutes);
+      }
+      finally {
+         myRealm.editLock.unlock();
+      }
+      StringBuffer log = new StringBuffer();
+      int export100s = 0;
+      if (format == exportCsv) {
+         out.write(csvHeader + "\n");
+      }
+      for (Route route: shown.values()) {
+         myRealm.editLock.lock();
+         try {
+            MilepostIndex.Walk walk = index.peekWalk(route.getId());
+            if (format == exportText) {
+               log.setLength(0);
+               export100s += logOneRoute(route, walk, log);
+               out.append(log).append("\n\n");
+            }
+            else {
+               export100s += logMileposts(route.getId(), walk,
+                                          new Records(out, route.getNumber(),
+                                                      format == exportCsv));
+            }
+         }
+         finally {
+            myRealm.editLock.unlock();
+         }
+      }
+      // hidden routes still count toward the total
+      myRealm.editLock.lock();
+      try {
+         for (int rid = 1; rid <= numRoutes; rid++) {
+            Route route = myRealm.routes[rid];
+            if (shown.get(route.getNumber()) != route) {
+               export100s += index.peekWalk(rid).getLength();
+            }
+         }
+      }
+      finally {
+         myRealm.editLock.unlock();
+      }
+      if (format == exportText) {
+         out.write(totals(numRoutes, export100s));
+      }
+   }
+
+   // writes a route's entries as exportCsv or exportJson lines
+   private static class Records implements Entries {
+      private final Writer out;
+      private final int number;  // route number
+      private final boolean csv;
+
+      Records(Writer out_, int number_, boolean csv_) {
+         out = out_;
+         number = number_;
+         csv = csv_;
+      }
+
+      @Override
+      public void milepost(int centimiles, CharSequence event)
+         throws IOException {
+         String milepost = mile100String(centimiles);
+         String text = event.toString().trim();
+         if (csv) {
+            out.write(number + "," + milepost + ",\"" +
+                      text.replace("\"", "\"\"") + "\"\n");
+         }
+         else {
+            out.write("{\"route\":" + number + ",\"milepost\":" + milepost +
+                      ",\"event\":" + jsonString(text) + "}\n");
+         }
+      }
+   }
+
+   private static String jsonString(String text) {
+      StringBuilder json = new StringBuilder("\"");
+      for (int i = 0; i < text.length(); i++) {
+         char c = text.charAt(i);
+         if (c == '"' || c == '\\') {
+            json.append('\\').append(c);
+         }
+         else if (c < ' ') {
+            json.append(String.format("\\u%04x", (int) c));
+         }
+         else {
+            json.append(c);
+         }
+      }
+      return json.append('"').toString();
+   }
+
+   // logs the routes of todo from lo up to hi, and returns the
+   // total length of those from lo up to hi
+   private class RouteLogs extends RecursiveTask<Integer> {
+      private static final long serialVersionUID = 1L;
+      private final BitSet todo;  // only read here
+      private final int lo, hi;
+
+      RouteLogs(BitSet todo_, int lo_, int hi_) {
+         todo = todo_;
+         lo = lo_;
+         hi = hi_;
+      }
+
+      @Override
+      protected Integer compute() {
+         if (hi - lo > 1) {
+            int mid = (lo + hi) >>> 1;
+            RouteLogs left = new RouteLogs(todo, lo, mid);
+            left.fork();
+            int right = new RouteLogs(todo, mid, hi).compute();
+            return left.join() + right;
+         }
+         if (lo == hi) {
+            return 0;
+         }
+         if (todo.get(lo)) {
+            length100s[lo] = logOneRoute(myRealm.routes[lo]);
+         }
+         return length100s[lo];
+      }
+   }
+
+   private void relog(int rid, BitSet todo) {
+      if (todo.get(rid)) {
+         length100s[rid] = logOneRoute(myRealm.routes[rid]);
+         todo.clear(rid);
+         numRelogged++;
+      }
+   }
+
+   /**
+    * @return total length of all routes in centimiles,
+    * as of the last logAllRoutes()
+    */
+   public int getTotalMileage() {
+      return total100s;
+   }
+
+   /**
+    * Build the log for one route
+    * @param routeNumber displayed route number
+    * @return the route's log, or a note that it doesn't exist
+    */
+   public String logRoute(int routeNumber) {
+	   myRealm.editLock.lock();
+	   try {
+		   int rid = myRealm.getRouteId(routeNumber);
+		   if (rid <= 0) {
+			   return "Route " + routeNumber + " doesn't exist.";
+		   }
+		   logOneRoute(myRealm.routes[rid]);
+		   return myRealm.routes[rid].getLog().toString();
+	   }
+	   finally {
+		   myRealm.editLock.unlock();
+	   }
+   }
+}
@@ -3,32 +3,37 @@ package com.kurumi.matr;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
-import java.util.Map;
-import java.util.SortedSet;
-import java.util.TreeMap;
-import java.util.TreeSet;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.swing.JButton;
 import javax.swing.JFrame;
+import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
 import javax.swing.JTextArea;
+import javax.swing.SwingUtilities;
 import javax.swing.WindowConstants;
 
 import com.kurumi.matr.Realm;
-import com.kurumi.matr.Route;
-import com.kurumi.matr.Junction;
-import com.kurumi.matr.Square;
 
 /**
  * Display a distance-annotated list of points of interest along a highway
  * Do this for one highway or all highways.
- * 
- * To avoid floating point issues, we track route lengths as integers:
- * a "centimile" is 1/100 of a mile.
- * 
- * TODO we actually store the log text in the Route object -- might be a better way.
- * It's convenient for sorting in a TreeMap
+ * The log text itself comes from HighwayLog.
+ * Logs are built on a background thread and shown route by route as
+ * they're ready, so a big realm doesn't freeze the window; a refresh
+ * drops whatever build it overtakes.
+ * Editors hold the realm's editLock across each change, and HighwayLog
+ * takes it for each route it logs, so a build never reads a realm in
+ * the middle of an edit; an edit waits for at most one route.
  * 
  * TODO consider change to contains a JFrame instead of extends a JFrame
  * 
@@ -40,20 +45,27 @@ public class HighwayLogViewer extends JFrame {
    private JTextArea myText = new JTextArea("", 40, 30);
    private JButton bShow = new JButton("Show Route:");
    private JButton bShowAll = new JButton("Show All");
-   private Realm myRealm;
+   private JButton bExport = new JButton("Export...");
+   private HighwayLog myLog;
    private boolean showAll = true;
    private TextField tfRoute = new TextField(4);
    private int routeToShow = 0;
 
-   /**
-    * Format a length in centimiles as miles, to 2 decimal places
-    * For example, f(370) returns "3.70"
-    * @param length in centimiles (int)
-    * @return length in miles (String)
-    */
-   private static String mile100String(int centimiles) {
-	   return String.format("%d.%02d", centimiles/100, centimiles%100);
-   }
+   // every log is built here, one at a time, since building a route's
+   // log rewrites the log kept in its Route
+   private static final ExecutorService builder =
+      Executors.newSingleThreadExecutor(new ThreadFactory() {
+         @Override
+         public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "Highway log");
+            t.setDaemon(true);
+            return t;
+         }
+      });
+   // bumped for each build; a build stops once it's not the latest
+   private final AtomicInteger generation = new AtomicInteger();
+   // how often a build hands what it has to the text area
+   private static final long showEveryNanos = 100000000L;
 
    /**
     * Respond to changes to the highway network, e.g. from paving
@@ -70,7 +82,7 @@ public class HighwayLogViewer extends JFrame {
    HighwayLogViewer(Realm realm)
    {
 	   super("Highway Log");
-	   myRealm = realm;
+	   myLog = new HighwayLog(realm);
 
 	   // don't dispose and later recreate on close ... just hide
 	   setDefaultCloseOperation(WindowConstants.HIDE_ON_CLOSE);
@@ -101,6 +113,16 @@ public class HighwayLogViewer extends JFrame {
 		   }
 	   });
 
+	   // "export" button: write the whole log to a file
+	   bExport.addActionListener(new ActionListener()
+	   {
+		   @Override
+		   public void actionPerformed(ActionEvent e)
+		   {
+			   export();
+		   }
+	   });
+
 	   // layout text area
 	   JPanel textAreaPanel = new JPanel();
 	   textAreaPanel.add(new JScrollPane(myText));
@@ -111,125 +133,144 @@ public class HighwayLogViewer extends JFrame {
 	   buttonsPanel.add(bShow);
 	   buttonsPanel.add(tfRoute);
 	   buttonsPanel.add(bShowAll);
+	   buttonsPanel.add(bExport);
 	   pane.add(buttonsPanel, BorderLayout.PAGE_END);
 
 	   buildLog();
 	   pack();
    }
 
+   private void buildLog() {
+	   final int build = generation.incrementAndGet();
+	   myText.setText("");
+	   if (showAll) {
+		   myText.setFont(Empire.routeLogFont);
+		   builder.execute(new Runnable() {
+			   @Override
+			   public void run() {
+				   Shower shower = new Shower(build);
+				   try {
+					   if (myLog.logChangedRoutes(shower)) {
+						   shower.show();
+					   }
+				   }
+				   catch (RuntimeException e) {
+					   shower.failed(e);
+				   }
+			   }
+		   });
+		   return;
+	   }
+	   // log single route
+	   final int route = routeToShow;
+	   builder.execute(new Runnable() {
+		   @Override
+		   public void run() {
+			   Shower shower = new Shower(build);
+			   try {
+				   shower.append(myLog.logRoute(route));
+				   shower.show();
+			   }
+			   catch (RuntimeException e) {
+				   shower.failed(e);
+			   }
+		   }
+	   });
+   }
+
    /**
-    * Build a highway log for a single route -- add to StringBuffer.
-    * @param rid Index to myRealm.routes[] array. Todo: change to Route object.
-    * @param log Current highway log buffer (may contain other routes)
-    * @return length of this route in centimiles.
+    * Write the log of all routes to a file the user picks, straight
+    * from HighwayLog rather than through the text area, so a huge log
+    * never has to fit in memory. A name ending .csv or .jsonl gets a
+    * line per milepost in that form instead of the text.
     */
-   private int logOneRoute(Route route) {
-      Point here = new Point();
-      Point end = new Point();
-
-      int oldTownId, newTownId, endTownId;  // town codes
-      int my100s = 0;  // cumulative mileage in 1/100ths for this route
-      
-      route.clearLog();
-      route.appendToLog("Route " + route.getNumber() + "\n");
-      
-      here.setLocation(route.getStart());
-      end.setLocation(route.getEnd());
-      oldTownId = newTownId = myRealm.grid[here.x][here.y].getTown();
-      endTownId = myRealm.grid[end.x][end.y].getTown();
-      route.appendToLog("From: " + 
-                 myRealm.pToJ(here).describe(myRealm, route.getId()) +
-                 " " + myRealm.towns[newTownId].getName() + "\n");
-      route.appendToLog("To: " + 
-                 myRealm.pToJ(end).describe(myRealm, route.getId()) +
-                 " " + myRealm.towns[endTownId].getName() + "\n");
-      route.appendToLog("Log dir: " + 
-                 Junction.dirStrings[route.getLogDirection()] +
-                 "\nMileposts:\n");
-
-      // follow a route from start to end
-      while (true) {
-         
-         // describe any junctions
-         String s = myRealm.pToJ(here).describe(myRealm, route.getId());
-         if (s.length() > 0) {
-        	 route.appendToLog(mile100String(my100s) + ": " + s + "\n");
-         }
-         
-         // does the route end here? If so, break
-         if (!myRealm.nextJunc(here, route.getId())) {
-        	 break;
-         }
-         
-         // route continues... determine length increment
-         int lengthIncrement = Square.straightLength;
-         if (myRealm.pToJ(here).ridLeavesDiagonally(route.getId())) {
-        	 lengthIncrement = Square.straightLength;
-         }
-         int halfIncrement = lengthIncrement / 2;
-         
-         // describe any town line crossing
-         // this is halfway between this tile center and the next
-         newTownId = myRealm.grid[here.x][here.y].getTown();
-         if (newTownId != oldTownId) {
-        	 route.appendToLog(mile100String(my100s + halfIncrement) + ": ");
-        	 route.appendToLog(myRealm.towns[oldTownId].getName() + " - " +
-                       myRealm.towns[newTownId].getName() + " TL\n");
-         }
-         oldTownId = newTownId;
-         
-         // increment route's mileage
-         my100s += lengthIncrement;
-      }
-      return my100s;
+   private void export() {
+	   FileDialog fd = new FileDialog(this, "Export highway log",
+			   FileDialog.SAVE);
+	   fd.setVisible(true);
+	   if (fd.getFile() == null) {
+		   return;
+	   }
+	   final File f = new File(fd.getDirectory(), fd.getFile());
+	   String name = f.getName().toLowerCase();
+	   final int format = name.endsWith(".csv") ? HighwayLog.exportCsv :
+		   name.endsWith(".jsonl") ? HighwayLog.exportJson :
+		   HighwayLog.exportText;
+	   // on the builder thread, so no build is logging routes meanwhile
+	   builder.execute(new Runnable() {
+		   @Override
+		   public void run() {
+			   try (Writer out = Files.newBufferedWriter(f.toPath(),
+					   StandardCharsets.UTF_8)) {
+				   myLog.exportLog(out, format);
+			   }
+			   catch (final IOException e) {
+				   SwingUtilities.invokeLater(new Runnable() {
+					   @Override
+					   public void run() {
+						   JOptionPane.showMessageDialog(HighwayLogViewer.this,
+								   "Can't export to " + f.getName() + ": " +
+								   e.getMessage(), "Highway Log",
+								   JOptionPane.ERROR_MESSAGE);
+					   }
+				   });
+			   }
+		   }
+	   });
    }
 
-   /* ===
-      build the route log for all routes.
-      MUCH quicker to build up a stringBuffer, then append once
-      to textArea, than to append to textArea bit by bit.
-   */
-   private void logAllRoutes() {
-
-      int total100s = 0; // total mileage, all routes, 1/100ths
-
-      // sort the highway log by route number
-      Map<Integer, Route> treeMap = new TreeMap<>();
- 
-      for (int i = 1; i <= myRealm.getNumRoutes(); i++) {
-         total100s += logOneRoute(myRealm.routes[i]);
-         treeMap.put(myRealm.routes[i].getNumber(), myRealm.routes[i]);
-      }
-
-      // now build the log as a stringbuffer, with all pieces in order
-      StringBuffer completeHighwayLog = new StringBuffer();
-      SortedSet<Integer> keys = new TreeSet<Integer>(treeMap.keySet());
-      for (Integer key: keys) {
-    	  completeHighwayLog.append(treeMap.get(key).getLog());
-    	  completeHighwayLog.append("\n\n");
-      }
-      
-      completeHighwayLog.append("\nNumbered routes: " + myRealm.getNumRoutes() + "\n");
-      completeHighwayLog.append("\nTotal mileage: " + mile100String(total100s) + "\n");
-      myText.setText("");
-      myText.setFont(Empire.routeLogFont);
-      myText.setText(completeHighwayLog.toString());
-   }
+   /**
+    * Takes sections from HighwayLog on the builder thread and appends
+    * them to the text area on the event thread, a batch at a time,
+    * as long as its build is still the latest.
+    */
+   private class Shower implements HighwayLog.Sections {
+	   private final int build;
+	   private StringBuilder pending = new StringBuilder();
+	   private long lastShown = System.nanoTime();
 
-   private void buildLog() {
-	   if (showAll) {
-		   logAllRoutes();
-		   return;
+	   Shower(int build_) {
+		   build = build_;
 	   }
-	   // log single route
-	   int rid = myRealm.getRouteId(routeToShow);
-	   if (rid <= 0) {
-		   myText.setText("Route " + routeToShow + " doesn't exist.");
+
+	   private boolean isLatest() {
+		   return generation.get() == build;
+	   }
+
+	   @Override
+	   public boolean append(String text) {
+		   if (!isLatest()) {
+			   return false;
+		   }
+		   pending.append(text);
+		   if (System.nanoTime() - lastShown > showEveryNanos) {
+			   show();
+		   }
+		   return true;
+	   }
+
+	   // hand what's pending to the event thread
+	   void show() {
+		   final String text = pending.toString();
+		   pending = new StringBuilder();
+		   lastShown = System.nanoTime();
+		   SwingUtilities.invokeLater(new Runnable() {
+			   @Override
+			   public void run() {
+				   if (isLatest()) {
+					   myText.append(text);
+				   }
+			   }
+		   });
 	   }
-	   else {
-		   logOneRoute(myRealm.routes[rid]);
-		   myText.setText(myRealm.routes[rid].getLog().toString());
+
+	   // report a build that trips, unless a newer one has replaced it
+	   void failed(RuntimeException e) {
+		   if (!isLatest()) {
+			   return;
+		   }
+		   pending.append("\nCouldn't finish the log: " + e + "\n");
+		   show();
 	   }
    }
 }
-
@@ -0,0 +1,1109 @@
+package com.kurumi.matr;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/* ===========
+   Compact storage for all the Junctions in a realm.
+   Each paved tile gets a slot; a slot's state is held in flat int
+   arrays indexed by slot, slotBytes (108) bytes in all:
+     layout: 8x3-bit pavement codes, plus the bridge code
+     rd:     16 ints; rd codes, 2 per direction
+     sd:     8 ints; sd codes, 1 per direction
+     tileOf: the tile the slot belongs to
+     kind:   cached classification; see "classification" below
+   Codes are whole ints so ids aren't capped at 16 bits, which makes
+   rd and sd twice the size 16-bit codes packed into longs would be.
+   Each page of tiles with a junction costs another 4 bytes a tile.
+   Slot 0 is never handed out; it stands for "no junction here",
+   so reading a tile that was never paved costs nothing.
+   Junction is a thin view of one slot; the logic lives here.
+   A PageSource, if set, fills in a page of tiles the first time
+   one of them is looked up, so junctions can be read lazily
+   from a mapped realm file.
+   LegListeners hear whenever a leg becomes paved or empty,
+   so indexes built on pavement can keep up.
+   Roads may be laid out on several threads at once, each in its own
+   part of the realm, as long as reserve() has made room for every
+   slot they could make: slots are then handed out one at a time and
+   the arrays never move; running out of room before endReserve()
+   throws rather than moving them. Which thread got which slot number
+   depends on timing, so sortSlots() puts them back in a fixed order
+   after.
+*/
+
+class JunctionTable {
+   // bit-busting constants
+   // rd and sd codes are an id with an optional forward bit.
+   // codes stay positive, so 0 can mean "none".
+   static final int forwardMask = 1 << 30;
+   static final int ridMask = forwardMask - 1;
+
+   // layout word: 3 bits of pavement per direction, then bridge code
+   private static final int paveBits = 3, paveMask = 7;
+   private static final int bridgeShift = Junction.numDirs * paveBits;
+   private static final int legBits = (1 << bridgeShift) - 1;
+
+   private static final int rdWordsPerSlot = 2 * Junction.numDirs;
+   private static final int sdWordsPerSlot = Junction.numDirs;
+   // bytes per slot: layout, tileOf and kind, then rd and sd
+   static final int slotBytes = 4 * (3 + rdWordsPerSlot + sdWordsPerSlot);
+
+   // tiles are looked up a page at a time; pages are made on first use
+   private static final int pageShift = 12;
+   private static final int pageMask = (1 << pageShift) - 1;
+
+   private final int[][] slotPages;  // tile -> slot, 0 if none
+   private int[] layout;
+   private int[] rd;
+   private int[] sd;
+   private int[] tileOf;      // slot -> tile
+   private int[] kind;        // cached classification, 0 if unknown
+   private int numSlots = 1;  // slot 0 is the empty junction
+   private boolean reserved = false;  // arrays mustn't move
+
+   // told when a slot's set of paved legs changes
+   interface LegListener {
+      void legsChanged(int tile);
+   }
+   private LegListener[] legListeners = new LegListener[0];
+
+   // fills in the junctions of one page of tiles
+   interface PageSource {
+      void fillPage(JunctionTable table, int firstTile, int numTiles);
+   }
+   private PageSource pageSource = null;
+   private BitSet pagesFilled;
+
+   // for each set of paved legs, the legs isSuitableForLeg() allows
+   private static final int[] suitable = new int[1 << Junction.numDirs];
+   static {
+      for (int legs = 0; legs < suitable.length; legs++) {
+         for (int dir = 0; dir < Junction.numDirs; dir++) {
+            if (legFits(legs, dir)) {
+               suitable[legs] |= 1 << dir;
+            }
+         }
+      }
+   }
+
+   JunctionTable(int numTiles) {
+      slotPages = new int[(numTiles >> pageShift) + 1][];
+      int capacity = 256;
+      layout = new int[capacity];
+      rd = new int[capacity * rdWordsPerSlot];
+      sd = new int[capacity * sdWordsPerSlot];
+      tileOf = new int[capacity];
+      kind = new int[capacity];
+   }
+
+   // listeners hear in the order they were added.
+   // not thread safe: don't add while roads are laid out in parallel
+   void addLegListener(LegListener listener) {
+      legListeners = Arrays.copyOf(legListeners, legListeners.length + 1);
+      legListeners[legListeners.length - 1] = listener;
+   }
+
+   private void legsChanged(int slot) {
+      for (LegListener l: legListeners) {
+         l.legsChanged(tileOf[slot]);
+      }
+   }
+
+   // from now on, ask source for each page on first use
+   void setPageSource(PageSource source) {
+      pageSource = source;
+      pagesFilled = new BitSet(slotPages.length);
+   }
+
+   // true if pages come from a page source as they're first used
+   boolean isPaged() {
+      return pageSource != null;
+   }
+
+   // fill page p from the page source, once; returns the page.
+   // synchronized so two readers can't both fill it.
+   private synchronized int[] pageIn(int p) {
+      if (!pagesFilled.get(p)) {
+         pagesFilled.set(p);  // first, since filling calls slotFor()
+         pageSource.fillPage(this, p << pageShift, pageMask + 1);
+      }
+      return slotPages[p];
+   }
+
+   // fill every page from the page source now. a page is published
+   // before it's filled, so readers on several threads must not race
+   // to fill one; see HighwayLog.logAllRoutesParallel().
+   synchronized void fillAllPages() {
+      if (pageSource == null) {
+         return;
+      }
+      for (int p = 0; p < slotPages.length; p++) {
+         pageIn(p);
+      }
+   }
+
+   // tile a slot belongs to
+   final int tileAt(int slot) {
+      return tileOf[slot];
+   }
+
+   // slots in use, including the empty slot 0.
+   // with a page source, only pages filled so far count.
+   int getNumSlots() { return numSlots; }
+
+   static int getPageSize() { return pageMask + 1; }
+
+   // slot for a tile, or 0 if the tile has no junction
+   final int slotAt(int tile) {
+      int[] page = slotPages[tile >> pageShift];
+      if (page == null) {
+         if (pageSource == null ||
+             (page = pageIn(tile >> pageShift)) == null) {
+            return 0;
+         }
+      }
+      return page[tile & pageMask];
+   }
+
+   // slot for a tile, made if the tile has no junction yet
+   final int slotFor(int tile) {
+      int[] page = slotPages[tile >> pageShift];
+      if (page != null) {
+         int slot = page[tile & pageMask];
+         if (slot != 0) {
+            return slot;
+         }
+      }
+      return makeSlot(tile);
+   }
+
+   // synchronized so threads laying out roads take turns
+   private synchronized int makeSlot(int tile) {
+      int[] page = slotPages[tile >> pageShift];
+      if (page == null && pageSource != null) {
+         page = pageIn(tile >> pageShift);
+      }
+      if (page == null) {
+         page = slotPages[tile >> pageShift] = new int[pageMask + 1];
+      }
+      int slot = page[tile & pageMask];
+      if (slot == 0) {
+         slot = page[tile & pageMask] = newSlot(tile);
+      }
+      return slot;
+   }
+
+   private int newSlot(int tile) {
+      if (numSlots == layout.length) {
+         if (reserved) {
+            throw new IllegalStateException("more slots than reserved");
+         }
+         grow(numSlots * 2);
+      }
+      tileOf[numSlots] = tile;
+      return numSlots++;
+   }
+
+   private void grow(int capacity) {
+      layout = Arrays.copyOf(layout, capacity);
+      rd = Arrays.copyOf(rd, capacity * rdWordsPerSlot);
+      sd = Arrays.copyOf(sd, capacity * sdWordsPerSlot);
+      tileOf = Arrays.copyOf(tileOf, capacity);
+      kind = Arrays.copyOf(kind, capacity);
+   }
+
+   // make room for more slots, so that many can be made without the
+   // arrays moving under other threads; until endReserve(), making
+   // more than that many throws
+   synchronized void reserve(int more) {
+      if (numSlots + more > layout.length) {
+         grow(numSlots + more);
+      }
+      reserved = true;
+   }
+
+   // slots may be made freely again
+   synchronized void endReserve() {
+      reserved = false;
+   }
+
+   // renumber slots first and up in order of their tiles, so slots
+   // made on several threads come out the same however they raced.
+   // not while anything else is using the table.
+   synchronized void sortSlots(int first) {
+      long[] byTile = new long[numSlots - first];
+      for (int slot = first; slot < numSlots; slot++) {
+         byTile[slot - first] = (long) tileOf[slot] << 32 | slot;
+      }
+      Arrays.sort(byTile);
+      // the slots being moved, as they were; old slot s is at s - first
+      int[] oldLayout = Arrays.copyOfRange(layout, first, numSlots);
+      int[] oldRd = Arrays.copyOfRange(rd, first * rdWordsPerSlot,
+                                       numSlots * rdWordsPerSlot);
+      int[] oldSd = Arrays.copyOfRange(sd, first * sdWordsPerSlot,
+                                       numSlots * sdWordsPerSlot);
+      int[] oldKind = Arrays.copyOfRange(kind, first, numSlots);
+      for (int i = 0; i < byTile.length; i++) {
+         int slot = first + i;
+         int old = (int) byTile[i] - first;
+         int tile = (int) (byTile[i] >>> 32);
+         layout[slot] = oldLayout[old];
+         System.arraycopy(oldRd, old * rdWordsPerSlot, rd,
+                          slot * rdWordsPerSlot, rdWordsPerSlot);
+         System.arraycopy(oldSd, old * sdWordsPerSlot, sd,
+                          slot * sdWordsPerSlot, sdWordsPerSlot);
+         kind[slot] = oldKind[old];
+         tileOf[slot] = tile;
+         slotPages[tile >> pageShift][tile & pageMask] = slot;
+      }
+   }
+
+   // give every route a new id: id becomes newRid[id], for ids
+   // below newRid.length
+   void renumberRoutes(int[] newRid) {
+      for (int i = 0; i < numSlots * rdWordsPerSlot; i++) {
+         int rid = rd[i] & ridMask;
+         if (rid > 0 && rid < newRid.length) {
+            rd[i] = (rd[i] & forwardMask) | newRid[rid];
+         }
+      }
+      for (int slot = 1; slot < numSlots; slot++) {
+         kind[slot] &= ~routeKnown;
+      }
+   }
+
+   // raw codes --------------
+
+   // rd code: route id with optional forward bit
+   final int rdCode(int slot, int dir, int which) {
+      return rd[slot * rdWordsPerSlot + (dir << 1) + which];
+   }
+
+   private void setRdCode(int slot, int dir, int which, int code) {
+      rd[slot * rdWordsPerSlot + (dir << 1) + which] = code;
+      kind[slot] &= ~routeKnown;
+   }
+
+   // sd code: street id with optional forward bit
+   final int sdCode(int slot, int dir) {
+      return sd[slot * sdWordsPerSlot + dir];
+   }
+
+   private void setSdCode(int slot, int dir, int code) {
+      sd[slot * sdWordsPerSlot + dir] = code;
+   }
+
+   final int getBridge(int slot) {
+      return layout[slot] >>> bridgeShift;
+   }
+
+   final void setBridge(int slot, int bridge) {
+      layout[slot] = (layout[slot] & ((1 << bridgeShift) - 1)) |
+         (bridge << bridgeShift);
+   }
+
+   // raw state, for RealmFile --------------
+
+   final int layoutWord(int slot) {
+      return layout[slot];
+   }
+
+   // bit dir set for each leg with pavement or any route or street code
+   int usedLegs(int slot) {
+      int legs = legMask(slot);
+      for (int dir = 0; dir < Junction.numDirs; dir++) {
+         if (rdCode(slot, dir, 0) != 0 || rdCode(slot, dir, 1) != 0 ||
+             sdCode(slot, dir) != 0) {
+            legs |= 1 << dir;
+         }
+      }
+      return legs;
+   }
+
+   // fill in a slot read back from a file.
+   // listeners aren't told; they're expected to be new as well.
+   void restoreLayout(int slot, int word) {
+      layout[slot] = word;
+      kind[slot] = 0;
+   }
+
+   void restoreLeg(int slot, int dir, int rd0, int rd1, int sdCode) {
+      setRdCode(slot, dir, 0, rd0);
+      setRdCode(slot, dir, 1, rd1);
+      setSdCode(slot, dir, sdCode);
+   }
+
+   // clearing --------------
+
+   void clear(int slot) {
+      Arrays.fill(rd, slot * rdWordsPerSlot, (slot + 1) * rdWordsPerSlot, 0);
+      Arrays.fill(sd, slot * sdWordsPerSlot, (slot + 1) * sdWordsPerSlot, 0);
+      boolean hadLegs = (layout[slot] & legBits) != 0;
+      layout[slot] = 0;
+      kind[slot] = 0;
+      if (hadLegs) {
+         legsChanged(slot);
+      }
+   }
+
+   void clearLeg(int slot, int dir) {
+      setPavement(slot, dir, 0);
+      setRdCode(slot, dir, 0, 0);
+      setRdCode(slot, dir, 1, 0);
+      setSdCode(slot, dir, 0);
+   }
+
+   /* =====
+      classification.
+      intersectionType() and friends are asked about every square
+      on every repaint and layout step, so each slot caches them in
+      its kind word: one half worked out from the pavement, the other
+      from the route ids. Changing pavement forgets the first half,
+      changing route ids the second; clear() forgets both.
+   */
+   private static final int typeMask = (1 << 9) - 1;  // intersectionType
+   private static final int dividedBit = 1 << 9;      // isTwoWayDivided
+   private static final int paveKnown = 1 << 10;
+   private static final int routeJunctionBit = 1 << 11;
+   private static final int inflectionBit = 1 << 12;
+   private static final int routeKnown = 1 << 13;
+
+   // forget every slot's classification; it's worked out afresh
+   // as it's asked for. for checking the cache against
+   void forgetClassification() {
+      Arrays.fill(kind, 0);
+   }
+
+   private int paveKind(int slot) {
+      int k = kind[slot];
+      if ((k & paveKnown) == 0) {
+         int type = computeIntersectionType(slot);
+         k = (k & ~(typeMask | dividedBit)) | type | paveKnown;
+         if (computeTwoWayDivided(slot, type)) {
+            k |= dividedBit;
+         }
+         kind[slot] = k;
+      }
+      return k;
+   }
+
+   private int routeKind(int slot) {
+      int k = kind[slot];
+      if ((k & routeKnown) == 0) {
+         k = (k & ~(routeJunctionBit | inflectionBit)) | routeKnown;
+         if (computeRouteJunction(slot)) {
+            k |= routeJunctionBit;
+         }
+         if (computeRouteInflection(slot)) {
+            k |= inflectionBit;
+         }
+         kind[slot] = k;
+      }
+      return k;
+   }
+
+   /* =====
+      operations for route indexes (rids).
+   */
+
+   // see what else is at this junction
+   // show first rid you find
+   // return 0 if no rid found
+   int anyRidExcept(int slot, int rid) {
+      for (int i = 0; i < Junction.numDirs; i++) {
+         for (int j = 0; j < 2; j++) {
+            int code = rdCode(slot, i, j);
+            if (code > 0 && (code & ridMask) != rid) {
+               return code & ridMask;
+            }
+         }
+      }
+      return 0;
+   }
+
+   final int ridAt(int slot, int direction, int which) {
+      return rdCode(slot, direction, which) & ridMask;
+   }
+
+   // there might be a road here, but there can't be a numbered route
+   final boolean hasNoRoutes(int slot, int direction) {
+      return rdCode(slot, direction, 0) == 0;
+   }
+
+   final boolean isRidFwdAt(int slot, int direction, int which) {
+      return (rdCode(slot, direction, which) & forwardMask) > 0;
+   }
+
+   // find out which direction a route is entering an intersection.
+   // use (rid | forwardMask) to find where it leaves.
+   int getBackwardDirection(int slot, int rid) {
+      for (int dir = 0; dir < Junction.numDirs; dir++ ) {
+         if (rdCode(slot, dir, 0) == rid || rdCode(slot, dir, 1) == rid) {
+            return dir;
+         }
+      }
+      return -1;
+   }
+
+   int getForwardDirection(int slot, int rid) {
+      return getBackwardDirection(slot, rid | forwardMask);
+   }
+
+   // find out which direction a route is entering an intersection;
+   // return "failed" (-1) if intersection is not well-formed
+   // (more than 2 legs for rid)
+   int getBackwardDirectionStrict(int slot, int rid) {
+      int answer = -1;
+      int numLegs = 0;
+      for (int dir = 0; dir < Junction.numDirs; dir++ ) {
+         if (rdCode(slot, dir, 0) == rid || rdCode(slot, dir, 1) == rid) {
+            answer = dir;
+            numLegs++;
+         }
+      }
+      if (numLegs < 2) {
+         return answer;
+      }
+      return -1;
+   }
+
+   int getForwardDirectionStrict(int slot, int rid) {
+      return getBackwardDirectionStrict(slot, rid | forwardMask);
+   }
+
+   // >= 0 if exists a direction with route number to the left
+   int ridToLeftDir(int slot, int aheadDir) {
+      for (int i = -1; i >= -3; i--) {
+         int tryDir = Junction.getGlobalDirection(aheadDir, i);
+         if (ridAt(slot, tryDir, 0) > 0) {
+            return tryDir;
+         }
+      }
+      return -1;
+   }
+
+   // >= 0 if exists a direction with route number to the right
+   int ridToRightDir(int slot, int aheadDir) {
+      for (int i = 1; i <= 3; i++) {
+         int tryDir = Junction.getGlobalDirection(aheadDir, i);
+         if (ridAt(slot, tryDir, 0) > 0) {
+            return tryDir;
+         }
+      }
+      return -1;
+   }
+
+   // true if this route leaves but does not enter junction.
+   boolean isRouteStart(int slot, int rid) {
+      int answer = -1;
+      for (int dir = 0; dir < Junction.numDirs; dir++ ) {
+         int code0 = rdCode(slot, dir, 0);
+         int code1 = rdCode(slot, dir, 1);
+         if (code0 == (rid | forwardMask) || code1 == (rid | forwardMask)) {
+            answer = dir;
+         }
+         // if entering, then you know it's wrong already
+         if (code0 == rid || code1 == rid) {
+            return false;
+         }
+      }
+      return (answer >= 0);
+   }
+
+   // true if this route enters but does not leave junction.
+   boolean isRouteEnd(int slot, int rid) {
+      int answer = -1;
+      for (int dir = 0; dir < Junction.numDirs; dir++ ) {
+         int code0 = rdCode(slot, dir, 0);
+         int code1 = rdCode(slot, dir, 1);
+         if (code0 == rid || code1 == rid) {
+            answer = dir;
+         }
+         // if leaving, then you know it's wrong already
+         if (code0 == (rid | forwardMask) || code1 == (rid | forwardMask)) {
+            return false;
+         }
+      }
+      return (answer >= 0);
+   }
+
+   // does this junction contains the given rid in any direction?
+   boolean containsRoute(int slot, int rid) {
+      rid &= ridMask;
+      for (int dir = 0; dir < Junction.numDirs; dir++ ) {
+         if (ridAt(slot, dir, 0) == rid || ridAt(slot, dir, 1) == rid) {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   // true if two or more routes meet here.
+   boolean isRouteJunction(int slot) {
+      return (routeKind(slot) & routeJunctionBit) != 0;
+   }
+
+   private boolean computeRouteJunction(int slot) {
+      int ridSeen = 0;
+      for (int i = 0; i < Junction.numDirs; i++) {
+         for (int j = 0; j <= 1; j++) {
+            int code = rdCode(slot, i, j);
+            if (code != 0) {
+               if (ridSeen == 0) {
+                  ridSeen = code & ridMask;
+               }
+               else {
+                  if (ridSeen != (code & ridMask)) {
+                     return true;
+                  }
+               }
+            }
+         }
+      }
+      return false;
+   }
+
+   // true if junction has anything but a single route
+   // that enters and leaves, or paired routes that
+   // stay overlapped
+   // used for mapping
+   boolean isRouteInflection(int slot) {
+      return (routeKind(slot) & inflectionBit) != 0;
+   }
+
+   private boolean computeRouteInflection(int slot) {
+      int leg0 = -1, leg1 = -1;  // first two legs with routes
+      int numRidLegs = 0;
+
+      // count and record legs with routes
+      for (int i = 0; i < Junction.numDirs; i++) {
+         if (rdCode(slot, i, 0) > 0 || rdCode(slot, i, 1) > 0) {
+            if (numRidLegs == 0) {
+               leg0 = i;
+            }
+            else if (numRidLegs == 1) {
+               leg1 = i;
+            }
+            numRidLegs++;
+         }
+      }
+
+      // 1 or three route legs, etc => must be inflection
+      if (numRidLegs != 2) {
+         return true;
+      }
+
+      // now make sure max of 2 numbers are both seen twice
+      int rid00 = ridAt(slot, leg0, 0);
+      int rid01 = ridAt(slot, leg0, 1);
+      int rid10 = ridAt(slot, leg1, 0);
+      int rid11 = ridAt(slot, leg1, 1);
+
+      // rids on 2nd leg must match first, either order
+      if (rid10 != 0 && rid10 != rid01 && rid10 != rid00) {
+         return true;
+      }
+      if (rid11 != 0 && rid11 != rid01 && rid11 != rid00) {
+         return true;
+      }
+      return false;
+   }
+
+   // is there no more room to buddy up another route here?
+   boolean isFull(int slot, int direction) {
+      return ridAt(slot, direction, 1) != Junction.none;
+   }
+
+   // rid mutators --------
+
+   void clearRids(int slot, int direction) {
+      setRdCode(slot, direction, 0, 0);
+      setRdCode(slot, direction, 1, 0);
+   }
+
+   // add a rid at a given direction. Leave pavement alone.
+   // if leg is full, do not add rid.
+   // do not add duplicate to a rid that's there.
+   private void addRid(int slot, int dir, int rid, boolean isForward) {
+      int forwardBit = isForward ? forwardMask : 0;
+      int code0 = rdCode(slot, dir, 0);
+
+      if (code0 == 0)
+      {
+         setRdCode(slot, dir, 0, rid + forwardBit);
+         return;
+      }
+      if (rdCode(slot, dir, 1) == 0 && code0 != rid)
+      {
+         setRdCode(slot, dir, 1, rid + forwardBit);
+      }
+      // else do nothing
+   }
+
+   // adds a rid at a given dir
+   void addRidForward(int slot, int dir, int rid) {
+      addRid(slot, dir, rid, true);
+   }
+
+   // adds a rid at opposite dir
+   void addRidBack(int slot, int dir, int rid) {
+      addRid(slot, Junction.getReverseDirection(dir), rid, false);
+   }
+
+   // remove only route numbering at a given dir.
+   // doesn't matter if rid is forward or backward.
+   void removeRid(int slot, int dir, int rid) {
+      if (ridAt(slot, dir, 1) == rid) {
+         setRdCode(slot, dir, 1, 0);
+      }
+      if (ridAt(slot, dir, 0) == rid)
+      {
+         setRdCode(slot, dir, 0, rdCode(slot, dir, 1));
+         setRdCode(slot, dir, 1, 0);
+      }
+   }
+
+   /* =====
+      operations for street indexes (sids).
+   */
+   final int sidAt(int slot, int direction) {
+      return sdCode(slot, direction) & ridMask;
+   }
+
+   final boolean isSidFwdAt(int slot, int direction) {
+      return (sdCode(slot, direction) & forwardMask) > 0;
+   }
+
+   /* ===
+      set the street id for a leg.
+      Optionally overwrite existing sid; otherwise leave it
+      alone.
+   */
+   void setStreetId(int slot, int direction, int sid, boolean forceIt) {
+      if (sdCode(slot, direction) == 0 || forceIt) {
+         setSdCode(slot, direction, sid);
+      }
+   }
+
+   // add a street at a given direction.
+   // Can widen but not narrow existing street.
+   // doesn't check for existing; that's up to you!
+   private void addStreet(int slot, int dir, int sid, int paveType,
+                          boolean isForward) {
+      int forwardBit = isForward ? forwardMask : 0;
+      setSdCode(slot, dir, sid + forwardBit);
+      setWiderPavement(slot, dir, paveType);
+   }
+
+   // remove a street at a given dir; take out pavement
+   private void removeStreet(int slot, int dir) {
+      setSdCode(slot, dir, 0);
+      setPavement(slot, dir, Junction.none);
+   }
+
+   // adds a street at a given dir
+   void addStreetForward(int slot, int dir, int sid, int paveType) {
+      addStreet(slot, dir, sid, paveType, true);
+   }
+
+   // adds a street at opposite dir
+   void addStreetBack(int slot, int dir, int sid, int paveType) {
+      addStreet(slot, Junction.getReverseDirection(dir), sid, paveType, false);
+   }
+
+   // removes a street at a given direction
+   void removeStreetForward(int slot, int dir) {
+      removeStreet(slot, dir);
+   }
+
+   // removes a street at opposite direction
+   void removeStreetBack(int slot, int dir) {
+      removeStreet(slot, Junction.getReverseDirection(dir));
+   }
+
+   /* =====
+      operations for pavement.
+   */
+
+   // return the type of pavement at a compass direction
+   final int pavementAt(int slot, int direction) {
+      return (layout[slot] >>> (direction * paveBits)) & paveMask;
+   }
+
+   // bit dir set for each paved leg
+   final int legMask(int slot) {
+      int l = layout[slot];
+      int mask = 0;
+      for (int dir = 0; dir < Junction.numDirs; dir++) {
+         if ((l & (paveMask << (dir * paveBits))) != 0) {
+            mask |= 1 << dir;
+         }
+      }
+      return mask;
+   }
+
+   // faster than (pavementAt(dir) == 0)
+   final boolean isEmpty(int slot, int direction) {
+      return (layout[slot] & (paveMask << (direction * paveBits))) == 0;
+   }
+
+   /* ===
+      set the type of pavement at a compass direction.
+      Overwrites any existing pavement type.
+   */
+   void setPavement(int slot, int direction, int paveType) {
+      int shift = direction * paveBits;
+      int was = layout[slot];
+      layout[slot] = (was & ~(paveMask << shift)) | (paveType << shift);
+      kind[slot] &= ~paveKnown;
+      if (((was >>> shift) & paveMask) == 0 != (paveType == 0)) {
+         legsChanged(slot);
+      }
+   }
+
+   // set the pavement only if existing is narrower.
+   void setWiderPavement(int slot, int dir, int paveType) {
+      if (pavementAt(slot, dir) < paveType) {
+         setPavement(slot, dir, paveType);
+      }
+   }
+
+   // >= 0 if exists a direction with road to the left
+   int roadToLeftDir(int slot, int aheadDir) {
+      for (int i = -1; i >= -3; i--) {
+         int tryDir = Junction.getGlobalDirection(aheadDir, i);
+         if (pavementAt(slot, tryDir) > 0) {
+            return tryDir;
+         }
+      }
+      return -1;
+   }
+
+   // >= 0 if exists a direction with road to the right
+   int roadToRightDir(int slot, int aheadDir) {
+      for (int i = 1; i <= 3; i++) {
+         int tryDir = Junction.getGlobalDirection(aheadDir, i);
+         if (pavementAt(slot, tryDir) > 0) {
+            return tryDir;
+         }
+      }
+      return -1;
+   }
+
+   // is road a dead end in the current square?  (only way is to turn back)
+   // Dead end == only 1 non-empty segment
+   boolean isDeadEnd(int slot) {
+      return intersectionType(slot) <= Junction.deadend;
+   }
+
+   // is there a road passing thru, any direction
+   boolean hasThruRoad(int slot) {
+      return intersectionType(slot) >= Junction.straight;
+   }
+
+   // what type of intersection is here?
+   int intersectionType(int slot) {
+      return paveKind(slot) & typeMask;
+   }
+
+   private int computeIntersectionType(int slot) {
+      int nonEmpties = 0;
+      int numTwoWays = 0;
+      for (int i = 0; i < Junction.numDirs/2; i++) {
+         if (!isEmpty(slot, i) && !isEmpty(slot, i+4)) {
+            numTwoWays++;
+         }
+         if (!isEmpty(slot, i)) {
+            nonEmpties++;
+         }
+         if (!isEmpty(slot, i+4)) {
+            nonEmpties++;
+         }
+      }
+
+      // now make an inference based on data
+      switch (nonEmpties) {
+         case 0: return Junction.empty;
+         case 1: return Junction.deadend;
+         case 2:
+            if (numTwoWays > 0)
+               return Junction.straight;
+            else
+               return Junction.curve;
+         case 3: return Junction.threeway;
+         case 4: return Junction.fourway;
+      }
+      return Junction.unknown;
+   }
+
+   // used to find good spot for starting a new road.
+   boolean isTwoWay(int slot) {
+      return (intersectionType(slot) & Junction.twoway) > 0;
+   }
+
+   // special case for rendering (two roadways)
+   boolean isTwoWayDivided(int slot) {
+      return (paveKind(slot) & dividedBit) != 0;
+   }
+
+   private boolean computeTwoWayDivided(int slot, int type) {
+      if ((type & Junction.twoway) == 0) {
+         return false;
+      }
+      for (int i = 0; i < Junction.numDirs; i++) {
+         if (!isEmpty(slot, i) && !isDivided(slot, i)) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   // used to find good spot for starting a new road.
+   boolean isThreeWayOrMore(int slot) {
+      return intersectionType(slot) >= Junction.threeway;
+   }
+
+   // is it ok to add outgoing leg in this direction?
+   boolean isSuitableForLeg(int slot, int dir) {
+      return (suitable[legMask(slot)] & (1 << dir)) != 0;
+   }
+
+   // legs isSuitableForLeg() allows, given the legs already paved
+   static int suitableLegs(int legs) {
+      return suitable[legs];
+   }
+
+   // the rules behind suitable[]; legs has bit i set if leg i is paved
+   private static boolean legFits(int legs, int dir) {
+      int numTwoWays = 0; // number of leg pairs 180 deg apart
+      int numLegs = 0; // number of legs including proposed one
+      for (int i = 0; i < Junction.numDirs/2; i++) {
+         if ((legs & (1 << i)) != 0 || (legs & (1 << (i+4))) != 0 || dir == i || dir == i+4) {
+            numTwoWays++;
+         }
+         if ((legs & (1 << i)) != 0 || dir == i) {
+            numLegs++;
+         }
+         if ((legs & (1 << (i+4))) != 0 || dir == i+4) {
+            numLegs++;
+         }
+      }
+
+      // special case for Y-type intersections;
+      // can't have 3 legs within same 179 deg of any circle.
+      if (numTwoWays > 2 & numLegs == 3) {
+         int legAt[] = new int [3];
+         int diffs[] = new int [3];
+         int which = 0;
+         for (int i = 0; i < Junction.numDirs; i++) {
+            if ((legs & (1 << i)) != 0 || dir == i) {
+               legAt[which++] = i;
+            }
+         }
+         diffs[0] = legAt[1] - legAt[0];
+         diffs[1] = legAt[2] - legAt[1];
+         diffs[2] = legAt[0] - legAt[2] + Junction.numDirs;
+         return (diffs[0] + diffs[1] >= 4 &&
+             diffs[1] + diffs[2] >= 4 &&
+             diffs[2] + diffs[0] >= 4);
+      }
+
+      // non-special case
+      return (numTwoWays <= 2 || numLegs <= 3);
+   }
+
+   boolean isDivided(int slot, int dir) {
+      return Junction.isPaveTypeDivided(pavementAt(slot, dir));
+   }
+
+   int countLanes(int slot, int dir) {
+      switch (pavementAt(slot, dir)) {
+         case Junction.div6: return 6;
+         case Junction.div4: case Junction.undiv4: return 4;
+         case Junction.dirt: case Junction.undiv2: return 2;
+      }
+      return 0;
+   }
+
+   // is it ok to turn in this direction? todo: needs work
+   boolean accessOK(int slot, int heading, int facing) {
+      int dir = Junction.getGlobalDirection(heading, facing);
+      switch (facing) {
+         case Junction.left: case Junction.right: case Junction.ahead:
+            return (pavementAt(slot, dir) > Junction.none);
+         case Junction.back:
+            if (intersectionType(slot) == Junction.curve)
+               return false;
+            return (pavementAt(slot, dir) > Junction.none);
+      }
+      return false;
+   }
+
+   // describe an intersection, except route provided.
+   // for example, if on rte 7, intersecting with rte 13,
+   // say "Jct rte 13".
+   String describe(int slot, Realm theRealm, int excludeRoute) {
+      StringBuilder desc = new StringBuilder();
+      try {
+         describe(slot, theRealm, excludeRoute, desc);
+      }
+      catch (IOException e) {
+         // a StringBuilder doesn't throw
+         throw new IllegalStateException(e.getMessage());
+      }
+      return desc.toString();
+   }
+
+   // same, but written straight to out, with nothing allocated on the
+   // way; returns false if there was nothing to say
+   boolean describe(int slot, Realm theRealm, int excludeRoute,
+                    Appendable out) throws IOException {
+      if (intersectionType(slot) == Junction.deadend) {
+         out.append("Dead end");
+         return true;
+      }
+
+      // look for overlap
+      int fwd = getForwardDirection(slot, excludeRoute);
+      int rev = getBackwardDirection(slot, excludeRoute);
+
+      // see if forward overlap route
+      int fwdOverlap = 0;
+      if (fwd >= 0) {
+          fwdOverlap = ridAt(slot, fwd, 0);
+          if (fwdOverlap <= 0 || fwdOverlap == excludeRoute) {
+             fwdOverlap = ridAt(slot, fwd, 1);
+             if (fwdOverlap <= 0 || fwdOverlap == excludeRoute) {
+                fwdOverlap = 0; // nothing
+             }
+          }
+      }
+      // see if reverse overlap route
+      int revOverlap = 0;
+      if (rev >= 0) {
+          revOverlap = ridAt(slot, rev, 0);
+          if (revOverlap <= 0 || revOverlap == excludeRoute) {
+             revOverlap = ridAt(slot, rev, 1);
+             if (revOverlap <= 0 || revOverlap == excludeRoute) {
+                revOverlap = 0; // nothing
+             }
+          }
+      }
+
+      boolean said = false;
+      if (fwdOverlap > 0 && fwdOverlap != revOverlap) {
+         out.append("Begin overlap rte ");
+         appendNumber(out, theRealm.routes[fwdOverlap].getNumber());
+         out.append(' ');
+         said = true;
+      }
+      if (revOverlap > 0 && fwdOverlap != revOverlap) {
+         out.append("End overlap rte ");
+         appendNumber(out, theRealm.routes[revOverlap].getNumber());
+         out.append(' ');
+         said = true;
+      }
+
+      // list the routes in other legs of junction, each once,
+      // in the order they're first found
+      boolean jct = false;
+      for (int i = 0; i < Junction.numDirs; i++) {
+         // skip overlap directions
+         if (i == fwd || i == rev) {
+            continue;
+         }
+         for (int which = 0; which <= 1; which++) {
+            int rid = ridAt(slot, i, which);
+            if (rid > 0 && rid != fwdOverlap && rid != revOverlap &&
+                !ridSeenBefore(slot, i, which, rid, fwd, rev)) {
+               if (!jct) {
+                  out.append("Jct");
+                  jct = true;
+               }
+               out.append(" rte ");
+               appendNumber(out, theRealm.routes[rid].getNumber());
+            }
+         }
+      }
+      said |= jct;
+
+      // check for streets if nothing said so far
+      if (!said) {
+         for (int i = 0; i < Junction.numDirs; i++) {
+            if (i != fwd && i != rev) {
+               int sid = sidAt(slot, i);
+               if (sid > 0 && !sidSeenBefore(slot, i, sid, fwd, rev)) {
+                  out.append(theRealm.streetNames[sid]).append(' ');
+                  said = true;
+               }
+            }
+         }
+      }
+
+      return said;
+   }
+
+   // does rid turn up in a leg describe() has already looked at?
+   private boolean ridSeenBefore(int slot, int dir, int which, int rid,
+                                 int fwd, int rev) {
+      for (int i = 0; i <= dir; i++) {
+         if (i == fwd || i == rev) {
+            continue;
+         }
+         for (int w = 0; w <= 1; w++) {
+            if (i == dir && w == which) {
+               return false;
+            }
+            if (ridAt(slot, i, w) == rid) {
+               return true;
+            }
+         }
+      }
+      return false;
+   }
+
+   // does sid turn up in a leg describe() has already looked at?
+   private boolean sidSeenBefore(int slot, int dir, int sid,
+                                 int fwd, int rev) {
+      for (int i = 0; i < dir; i++) {
+         if (i != fwd && i != rev && sidAt(slot, i) == sid) {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   // decimal digits of n, without making a String of them
+   private static void appendNumber(Appendable out, int n)
+      throws IOException {
+      if (n < 0) {
+         out.append(Integer.toString(n));
+         return;
+      }
+      if (n >= 10) {
+         appendNumber(out, n / 10);
+      }
+      out.append((char) ('0' + n % 10));
+   }
+
+   void dump(int slot) {
+      System.out.println("junc dump:");
+      for (int i = 0; i < Junction.numDirs; i++) {
+         char fwd0 = isRidFwdAt(slot, i, 0) ? '>' : '<';
+         char fwd1 = isRidFwdAt(slot, i, 1) ? '>' : '<';
+         char fwds = isSidFwdAt(slot, i) ? '>' : '<';
+         System.out.print(Junction.dirAbbs[i] + ": ");
+         if (pavementAt(slot, i) > 0) {
+            System.out.print("p" + pavementAt(slot, i) + " ");
+            System.out.print("rd's: " + ridAt(slot, i, 0) + fwd0);
+            System.out.print(", " + ridAt(slot, i, 1) + fwd1 + "; ");
+            System.out.println("sd: " + sidAt(slot, i) + fwds);
+         }
+         else {
+            System.out.println("");
+         }
+      }
+   }
+}
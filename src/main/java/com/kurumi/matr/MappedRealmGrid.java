@@ -0,0 +1,111 @@
+package com.kurumi.matr;
+
+import java.nio.ByteBuffer;
+
+/**
+ * RealmGrid whose terrain, towns and display hints are read out of
+ * buffers that RealmFile.map() sets up: a memory-mapped flat realm
+ * file, so only the parts of a huge realm that are looked at get paged
+ * in, or the tiles of a compressed one, inflated off the heap. Either
+ * way none of it lives on the heap.
+ * Tiles are read-only: a mapped realm can be viewed, logged, renamed
+ * and have its roads edited, but not regenerated.
+ * @author soglesby
+ *
+ */
+public class MappedRealmGrid extends RealmGrid {
+	private final ByteBuffer tiles;  // terrain | hint << 4, per tile
+	private final ByteBuffer towns;  // town ids, townBytes each
+	private final int townBytes;
+
+	MappedRealmGrid(int width_, int height_, ByteBuffer tiles_,
+			ByteBuffer towns_, int townBytes_) {
+		super(width_, height_, false);
+		tiles = tiles_;
+		towns = towns_;
+		townBytes = townBytes_;
+	}
+
+	private static UnsupportedOperationException readOnly() {
+		return new UnsupportedOperationException(
+			"tiles of a mapped realm are read-only");
+	}
+
+	// terrain --------
+	@Override
+	public int getTerrain(int t) {
+		return tiles.get(t) & 15;
+	}
+
+	@Override
+	public int getTerrain(int x, int y) {
+		return getTerrain(tile(x, y));
+	}
+
+	@Override
+	public void setTerrain(int x, int y, int terrain_) {
+		throw readOnly();
+	}
+
+	@Override
+	public void fillTerrain(int x0, int y0, int w, int h, int terr) {
+		throw readOnly();
+	}
+
+	// towns --------
+	@Override
+	public int getTown(int t) {
+		if (getTerrain(t) == Square.water) {
+			return 0;
+		}
+		switch (townBytes) {
+			case 1: return towns.get(t) & 0xff;
+			case 2: return towns.getShort(t << 1) & 0xffff;
+			default: return towns.getInt(t << 2);
+		}
+	}
+
+	@Override
+	public int getTown(int x, int y) {
+		return getTown(tile(x, y));
+	}
+
+	@Override
+	public void setTown(int x, int y, int town_) {
+		throw readOnly();
+	}
+
+	@Override
+	public void setTownAndMark(int x, int y, int town_) {
+		throw readOnly();
+	}
+
+	// smartness functions
+	@Override
+	public boolean okForTown(int t) {
+		return getTerrain(t) != Square.water && getTown(t) == 0 &&
+			!isMarked(t);
+	}
+
+	@Override
+	public boolean okForTown(int x, int y) {
+		return okForTown(tile(x, y));
+	}
+
+	@Override
+	public boolean hasRealTown(int x, int y) {
+		int t = tile(x, y);
+		return getTown(t) != 0 && !isMarked(t);
+	}
+
+	// display hints --------
+	@Override
+	public int getDisplayHint(int x, int y) {
+		return (tiles.get(tile(x, y)) >>> 4) & 15;
+	}
+
+	@Override
+	public void setDisplayHint(int x, int y, int hint) {
+		throw readOnly();
+	}
+}
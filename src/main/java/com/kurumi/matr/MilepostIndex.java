@@ -0,0 +1,198 @@
+package com.kurumi.matr;
+
+import java.awt.Point;
+import java.util.Arrays;
+
+/**
+ * Where each route's mileposts are: the tiles a route passes through,
+ * start to end, and how far along the route each one is, in
+ * centimiles. Built a route at a time on first use, so asking what is
+ * at a milepost, or at which milepost a tile is, takes a binary search
+ * rather than a walk along the route with nextJunc. The log and the
+ * road map both read routes from here.
+ *
+ * A step to the next tile is Square.straightLength, or
+ * Square.diagLength when the route leaves the tile diagonally.
+ *
+ * Realm keeps one, and tells it which routes an edit touches; a
+ * touched route is walked again the next time it's asked for.
+ * Routes may be asked for from several threads at once.
+ *
+ * @author soglesby
+ *
+ */
+class MilepostIndex implements Realm.RouteListener {
+   // one route, walked
+   static final class Walk {
+      final int[] tiles;      // in route order
+      final int[] mileposts;  // centimiles from the start, ascending
+      final long[] byTile;    // tile << 32 | position, sorted
+
+      Walk(int[] tiles_, int[] mileposts_) {
+         tiles = tiles_;
+         mileposts = mileposts_;
+         byTile = new long[tiles.length];
+         for (int i = 0; i < tiles.length; i++) {
+            byTile[i] = (long) tiles[i] << 32 | i;
+         }
+         Arrays.sort(byTile);
+      }
+
+      int getLength() {
+         return mileposts[mileposts.length - 1];
+      }
+   }
+
+   private final Realm realm;
+   private Walk[] walks = new Walk[1];  // by route id; null if not walked
+   private int edits = 0;  // bumped for each change heard of
+
+   MilepostIndex(Realm realm_) {
+      realm = realm_;
+   }
+
+   /**
+    * @return route rid, walked; kept for next time
+    */
+   Walk getWalk(int rid) {
+      return walk(rid);
+   }
+
+   /**
+    * For a single pass over many routes, such as an export: a route
+    * that isn't kept already is walked but not kept.
+    * @return route rid, walked
+    */
+   Walk peekWalk(int rid) {
+      synchronized (this) {
+         if (isKept(rid)) {
+            return walks[rid];
+         }
+      }
+      return walkRoute(rid);
+   }
+
+   /**
+    * @return whether route rid is walked and kept
+    */
+   synchronized boolean isKept(int rid) {
+      return rid < walks.length && walks[rid] != null;
+   }
+
+   /**
+    * @return tiles of route rid, from its start to its end.
+    *    Shared: don't change it.
+    */
+   int[] getTiles(int rid) {
+      return walk(rid).tiles;
+   }
+
+   /**
+    * @return centimiles from the start of route rid to each of its
+    *    tiles, in the order of getTiles(). Shared: don't change it.
+    */
+   int[] getMileposts(int rid) {
+      return walk(rid).mileposts;
+   }
+
+   /**
+    * @return length of route rid in centimiles
+    */
+   int getLength(int rid) {
+      return walk(rid).getLength();
+   }
+
+   /**
+    * @return the last tile of route rid at or before the milepost;
+    *    its end for a milepost past the end, -1 before the start
+    */
+   int tileAt(int rid, int centimiles) {
+      Walk w = walk(rid);
+      int i = Arrays.binarySearch(w.mileposts, centimiles);
+      if (i < 0) {
+         i = -i - 2;  // the one before where it would go
+         if (i < 0) {
+            return -1;
+         }
+      }
+      return w.tiles[i];
+   }
+
+   /**
+    * @return milepost of tile on route rid, in centimiles,
+    *    or -1 if the route doesn't pass through it
+    */
+   int milepostAt(int rid, int tile) {
+      Walk w = walk(rid);
+      // first entry at or after tile << 32
+      int i = Arrays.binarySearch(w.byTile, (long) tile << 32);
+      if (i < 0) {
+         i = -i - 1;
+      }
+      if (i == w.byTile.length || (int) (w.byTile[i] >>> 32) != tile) {
+         return -1;
+      }
+      return w.mileposts[(int) w.byTile[i]];
+   }
+
+   @Override
+   public synchronized void routeChanged(int rid) {
+      edits++;
+      if (rid < walks.length) {
+         walks[rid] = null;
+      }
+   }
+
+   // renames move no tiles
+   @Override
+   public void allRoutesChanged() {
+   }
+
+   private Walk walk(int rid) {
+      int seen;
+      synchronized (this) {
+         if (rid < walks.length && walks[rid] != null) {
+            return walks[rid];
+         }
+         seen = edits;
+      }
+      // walk outside the lock, so routes are walked in parallel
+      Walk w = walkRoute(rid);
+      synchronized (this) {
+         // an edit meanwhile may have been half seen
+         if (edits == seen) {
+            if (rid >= walks.length) {
+               walks = Arrays.copyOf(walks, Math.max(rid + 1,
+                                                     walks.length * 2));
+            }
+            walks[rid] = w;
+         }
+      }
+      return w;
+   }
+
+   private Walk walkRoute(int rid) {
+      Point start = realm.routes[rid].getStart();
+      int t = realm.grid.tile(start.x, start.y);
+      int[] tiles = new int[16];
+      int[] mileposts = new int[16];
+      int n = 0, my100s = 0;
+      while (true) {
+         if (n == tiles.length) {
+            tiles = Arrays.copyOf(tiles, n * 2);
+            mileposts = Arrays.copyOf(mileposts, n * 2);
+         }
+         tiles[n] = t;
+         mileposts[n] = my100s;
+         n++;
+         int dir = realm.routeDirection(t, rid);
+         if (dir < 0) {
+            break;
+         }
+         my100s += Junction.isDiagonal(dir) ? Square.diagLength :
+            Square.straightLength;
+         t = realm.stepTile(t, dir);
+      }
+      return new Walk(Arrays.copyOf(tiles, n), Arrays.copyOf(mileposts, n));
+   }
+}
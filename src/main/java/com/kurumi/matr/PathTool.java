@@ -196,6 +196,16 @@ public boolean action(Event e, Object o) {
       works beautifully!
    */
    void handlePave(boolean erase) {
+      myRealm.editLock.lock();
+      try {
+         pave(erase);
+      }
+      finally {
+         myRealm.editLock.unlock();
+      }
+   }
+
+   private void pave(boolean erase) {
       Vector<Point> v = myMap.getSelection();
       if (v.size() < 2) {
          errorMessage("Can't pave; no path");
@@ -216,8 +226,7 @@ public boolean action(Event e, Object o) {
             return;
          }
          if (erase) {
-            myRealm.pToJ(here).clearLeg(dir);
-            myRealm.pToJ(next).clearLeg(Junction.getReverseDirection(dir));
+            myRealm.clearLegBoth(here, dir);
          }
          else {
             // stop at first illegal pave attempt
@@ -248,6 +257,16 @@ public boolean action(Event e, Object o) {
       take care of naming existing pavement.
    */
    void handleName(int nameAction) {
+      myRealm.editLock.lock();
+      try {
+         name(nameAction);
+      }
+      finally {
+         myRealm.editLock.unlock();
+      }
+   }
+
+   private void name(int nameAction) {
       Vector<Point> v = myMap.getSelection();
       if (v.size() < 2) {
          errorMessage("Couldn't name or number; no path");
@@ -354,7 +373,7 @@ public boolean action(Event e, Object o) {
                break;
          }
       }
-      // brute-force find new start of route and new end
+      // look up new start of route and new end
       for (int j = 0; j < tfRoute.length; j++) {
          if (rid[j] > 0) {
             myRealm.findRouteStart(rid[j]);
@@ -0,0 +1,142 @@
+package com.kurumi.matr;
+
+import java.util.Arrays;
+
+/**
+ * Cached answer to Realm.cantPave(): for each tile, an 8-bit mask of
+ * the headings a new leg could be paved in.
+ *
+ * Whether a leg can be paved depends on the terrain and on which legs
+ * are paved at the tile itself, at the next tile that way, and (for
+ * diagonals) at the two tiles beside the diagonal -- all within the
+ * tile's 8 neighbors. So the cache listens to the JunctionTable and
+ * forgets a tile and its neighbors whenever the tile's paved legs
+ * change; masks are worked out again the next time they're asked for.
+ * Terrain is assumed settled; call reset() after changing it.
+ * The masks are only allocated once asked for, so a realm that is
+ * just viewed never pays for them.
+ *
+ * Parallel path layout queries and invalidates from several
+ * threads, but only on tiles far apart, so no locking is needed.
+ *
+ * @author soglesby
+ *
+ */
+class PavableLegs implements JunctionTable.LegListener {
+   // set in a cached mask; 0 means "not worked out"
+   private static final short valid = 1 << Junction.numDirs;
+
+   private final RealmGrid grid;
+   private final JunctionTable juncs;
+   private final int width, height;
+   private short[] masks = null;
+
+   PavableLegs(RealmGrid grid_) {
+      grid = grid_;
+      juncs = grid.getJunctionTable();
+      width = grid.getWidth();
+      height = grid.getHeight();
+   }
+
+   // forget everything
+   void reset() {
+      if (masks == null) {
+         masks = new short[width * height];
+      }
+      else {
+         Arrays.fill(masks, (short) 0);
+      }
+   }
+
+   /**
+    * @return bit h set if a leg can be paved out of (x,y) heading h
+    */
+   int get(int x, int y) {
+      if (masks == null) {
+         reset();
+      }
+      int t = y * width + x;
+      int m = masks[t];
+      if (m == 0) {
+         m = compute(x, y) | valid;
+         masks[t] = (short) m;
+      }
+      return m & ~valid;
+   }
+
+   boolean canPave(int x, int y, int heading) {
+      return (get(x, y) & (1 << heading)) != 0;
+   }
+
+   @Override
+   public void legsChanged(int tile) {
+      if (masks == null) {
+         return;
+      }
+      int x = grid.tileX(tile);
+      int y = grid.tileY(tile);
+      for (int ny = Math.max(y - 1, 0); ny <= Math.min(y + 1, height - 1);
+           ny++) {
+         for (int nx = Math.max(x - 1, 0); nx <= Math.min(x + 1, width - 1);
+              nx++) {
+            masks[ny * width + nx] = 0;
+         }
+      }
+   }
+
+   // paved legs at (x,y); nothing off the map
+   private int legsAt(int x, int y) {
+      if (x < 0 || y < 0 || x >= width || y >= height) {
+         return 0;
+      }
+      return juncs.legMask(juncs.slotAt(y * width + x));
+   }
+
+   // the checks Realm.cantPave() used to make one heading at a time
+   private int compute(int x, int y) {
+      if (grid.getTerrain(x, y) == Square.water) {
+         return 0;
+      }
+      int mask = 0;
+      int suitable = JunctionTable.suitableLegs(legsAt(x, y));
+      for (int h = 0; h < Junction.numDirs; h++) {
+         // don't make a bad intersection
+         if ((suitable & (1 << h)) == 0) {
+            continue;
+         }
+
+         // next square must be on the map, on land
+         int nx = x + Junction.dx[h];
+         int ny = y + Junction.dy[h];
+         if (nx < 0 || ny < 0 || nx >= width || ny >= height ||
+             grid.getTerrain(nx, ny) == Square.water) {
+            continue;
+         }
+
+         // is an incoming leg in this dir bad for next sq?
+         int back = Junction.getReverseDirection(h);
+         if ((JunctionTable.suitableLegs(legsAt(nx, ny)) & (1 << back)) == 0) {
+            continue;
+         }
+
+         // would this create a corner intersection?
+         // the squares beside a diagonal mustn't be joined across it
+         if (Junction.isDiagonal(h)) {
+            int left = Junction.getGlobalDirection(h, Junction.veerleft);
+            int right = Junction.getGlobalDirection(h, Junction.veerright);
+            int across = Junction.getGlobalDirection(h, Junction.right);
+            if ((legsAt(x + Junction.dx[left], y + Junction.dy[left]) &
+                 (1 << across)) != 0) {
+               continue;
+            }
+            across = Junction.getGlobalDirection(h, Junction.left);
+            if ((legsAt(x + Junction.dx[right], y + Junction.dy[right]) &
+                 (1 << across)) != 0) {
+               continue;
+            }
+         }
+         mask |= 1 << h;
+      }
+      return mask;
+   }
+}
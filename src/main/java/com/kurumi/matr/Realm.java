@@ -1,7 +1,14 @@
 package com.kurumi.matr;
 
 import java.awt.Point;
+import java.awt.Rectangle;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.locks.ReentrantLock;
 
 import com.kurumi.matr.EName;
 import com.kurumi.matr.Route;
@@ -18,10 +25,14 @@ import com.kurumi.matr.Town;
 public class Realm {
    // class constants =========
    private final static int landIndent = 4,
-      maxTowns = 128,
-      maxStreets = 1023,
-      maxRoutes = 1023,
-      numRuralRoads = 10;
+      numRuralRoads = 10,
+      streetsPerBlock = 10;  // 5 each way in a town's block
+
+   // starting sizes of the id tables; they grow as needed
+   private final static int initialTowns = 128,
+      initialStreets = 1024,
+      initialRoutes = 1024,
+      initialEdgeTowns = 100;
 
    // odds for doing stuff, divided by oddsMask
    private final static int oddsMask = 15;   // for checking odds out of 16
@@ -42,46 +53,112 @@ public class Realm {
 
    private final static int rcStreet = 0, rcRoute = 1;
 
+   // how fillTowns() grows towns out from their cores.
+   // growSweep is the original multi-pass random scan of the grid,
+   // kept so its output can be compared with growFrontier.
+   public final static int growFrontier = 0, growSweep = 1;
+
+   // how MakePaths() lays out the towns' city blocks and the routes
+   // that start at towns. pathsParallel does them on all cores, each
+   // town and route with its own random stream; other routes, route
+   // extensions and rural roads are always done in order.
+   public final static int pathsSequential = 0, pathsParallel = 1;
+
+   // shared by all the work done on all cores, so realms made at once,
+   // as RealmBatch does, don't each start a thread per core
+   static final ForkJoinPool forkJoinPool = new ForkJoinPool();
+
    // instance vars
    // 0 cannot be a town id, street id, or route id
-	Square[][] grid;
-   EName namer = new EName();
-   Town[] towns = new Town[maxTowns];
-   String[] streetNames = new String[maxStreets];
-   Route[] routes = new Route[maxRoutes];
-   // note which towns are along top and left of island
-   int[] topTowns = new int[100];
-   int[] leftTowns = new int[100];
-
-   private Random dice = new Random();   // source of random numbers
+	RealmGrid grid;
+   EName namer;
+   Town[] towns = new Town[initialTowns];
+   String[] streetNames = new String[initialStreets];
+   Route[] routes = new Route[initialRoutes];
+   // note which towns are along top and left of island; 0 ends the list
+   int[] topTowns = new int[initialEdgeTowns];
+   int[] leftTowns = new int[initialEdgeTowns];
+   // where each route starts and ends; see noteRouteEnds().
+   // null until first needed on a mapped realm or after parallel
+   // route layout; see routeEnds()
+   private RouteEndIndex routeEnds = new RouteEndIndex();
+   // lookups by route number and by case-folded street and town name.
+   // with duplicates, each maps to the lowest id, like a scan would.
+   private HashMap<Integer, Integer> ridByNumber = new HashMap<Integer, Integer>();
+   private HashMap<String, Integer> sidByName = new HashMap<String, Integer>();
+   private HashMap<String, Integer> tidByName = new HashMap<String, Integer>();
+
+   // sources of random numbers, one stream per generation stage.
+   // all are split off one seed; see setSeed().
+   private long seed;
+   private Random coastDice, townDice, routeDice, streetDice;
 	private int width, height;  // # of squares each dimension
    private int numTowns;       // number of distinct towns
    private int numOpenSquares = 1;  // number of land squares without towns
    private int numRoutes;  // # of numbered routes
    private int numSids = 0;  // # of named streets
+   private int townGrowth = growFrontier;
+   private int pathLayout = pathsSequential;
+   // which legs can be paved; listens to the junctions
+   private final PavableLegs pavable;
+   // where new roads can start; see startCandidates()
+   private StartCandidates starts = null;
+   // timers and counters for create(); never null
+   private GenerationProfile profile = new GenerationProfile();
+   // where editor changes are recorded, if anywhere; see RealmJournal
+   private RealmJournal journal = null;
+
+   // told when an editor change may alter what a route's log says
+   interface RouteListener {
+      void routeChanged(int rid);
+      void allRoutesChanged();  // e.g. a rename that any log may show
+   }
+   private RouteListener[] routeListeners = new RouteListener[0];
+   // tiles and mileposts of each route; see getMileposts()
+   private MilepostIndex mileposts = null;
+   // held by an editor across each change, and by HighwayLog while it
+   // reads a route, so a log built on another thread never reads a
+   // realm half edited, nor fills a junction cache from one.
+   // Fair, so an edit waiting on a long log gets in between routes.
+   final ReentrantLock editLock = new ReentrantLock(true);
 
    // ctor
 	Realm(int width_, int height_, int numRoutes_) {
-		width = width_;
-		height = height_;
-      numRoutes = numRoutes_;
-		grid = new Square[width][height];
+      this(new RealmGrid(width_, height_), numRoutes_);  // all water
+	}
 
-      // clear grid
-		for (int i = width-1; i >= 0; i--) {
-         for (int j = height-1; j >= 0; j--) {
-            grid[i][j] = new Square();
-         }
-		}
+   // a realm on tiles that may already be filled in; see RealmFile
+   Realm(RealmGrid grid_, int numRoutes_) {
+      grid = grid_;
+      width = grid.getWidth();
+      height = grid.getHeight();
+      numRoutes = numRoutes_;
+      pavable = new PavableLegs(grid);
+      grid.getJunctionTable().addLegListener(pavable);
+      setSeed(new Random().nextLong());
 	}
 
-   // called by "Create" GUI button
-   public void create() {
+   // called by "Create" GUI button.
+   // returns where the time went; see also getProfile()
+   public GenerationProfile create() {
+      profile = new GenerationProfile();
+      long t0 = System.nanoTime();
       makeCoastline();
+      long t1 = System.nanoTime();
+      profile.addStageNanos(GenerationProfile.coastline, t1 - t0);
       fillTowns();
+      long t2 = System.nanoTime();
+      profile.addStageNanos(GenerationProfile.towns, t2 - t1);
       MakePaths();
+      long t3 = System.nanoTime();
+      profile.addStageNanos(GenerationProfile.paths, t3 - t2);
+      profile.setTotalNanos(t3 - t0);
+      return profile;
    }
 
+   // profile of the last create()
+   public GenerationProfile getProfile() { return profile; }
+
    // # of squares in realm, wide and high; for map
    public int getWidth() { return width; }
    public int getHeight() { return height; }
@@ -89,33 +166,125 @@ public class Realm {
    public int getNumTowns() { return numTowns; }
    public int getNumRoutes() { return numRoutes; }
 
+   public int getNumStreets() { return numSids; }
+   public long getSeed() { return seed; }
+
+   /* =============
+      for RealmFile, which fills the tables of a new Realm directly
+      instead of calling create().
+   */
+   // set the counts and make room in the tables for them
+   void restore(long seed_, int numTowns_, int numSids_, int numRoutes_) {
+      setSeed(seed_);
+      numTowns = numTowns_;
+      numSids = numSids_;
+      numRoutes = numRoutes_;
+      numOpenSquares = 0;
+      towns = fit(towns, numTowns);
+      streetNames = fit(streetNames, numSids);
+      routes = fit(routes, numRoutes);
+   }
+
+   // rebuild the lookups create() keeps alongside the tables
+   void reindex() {
+      ridByNumber.clear();
+      sidByName.clear();
+      tidByName.clear();
+      for (int tid = 1; tid <= numTowns; tid++) {
+         indexName(tidByName, towns[tid].getName(), tid);
+      }
+      for (int sid = 1; sid <= numSids; sid++) {
+         if (streetNames[sid] != null) {
+            indexName(sidByName, streetNames[sid], sid);
+         }
+      }
+      for (int rid = 1; rid <= numRoutes; rid++) {
+         indexNumber(routes[rid].getNumber(), rid);
+      }
+
+      // a saved Route's ends can be stale, and an edited route can
+      // have several, so the junctions are the only record. a mapped
+      // realm waits until it's edited, rather than read them all now.
+      routeEnds = null;
+      if (!grid.getJunctionTable().isPaged()) {
+         routeEnds();
+      }
+   }
+
+   // the route end index, built from every junction if there's none
+   private RouteEndIndex routeEnds() {
+      if (routeEnds == null) {
+         RouteEndIndex index = new RouteEndIndex();
+         JunctionTable juncs = grid.getJunctionTable();
+         juncs.fillAllPages();
+         for (int slot = 1; slot < juncs.getNumSlots(); slot++) {
+            for (int dir = 0; dir < Junction.numDirs; dir++) {
+               for (int which = 0; which < 2; which++) {
+                  int rid = juncs.ridAt(slot, dir, which);
+                  if (rid > 0) {
+                     index.update(rid, juncs.tileAt(slot),
+                                  juncs.isRouteStart(slot, rid),
+                                  juncs.isRouteEnd(slot, rid));
+                  }
+               }
+            }
+         }
+         routeEnds = index;
+      }
+      return routeEnds;
+   }
+
+   // stream numbers for streamSeed()
+   private final static int coastStream = 1, townStream = 2,
+      routeStream = 3, streetStream = 4, nameStream = 5;
+
+   // seed for one stage's stream: SplitMix64 finalizer applied
+   // to the realm seed stepped by the golden gamma.
+   // nearby realm seeds still give unrelated streams.
+   static long streamSeed(long seed, int stream) {
+      long z = seed + stream * 0x9e3779b97f4a7c15L;
+      z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+      z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+      return z ^ (z >>> 31);
+   }
+
+   // same seed and settings give the same realm, bit for bit.
+   // call before create()
+   public void setSeed(long seed_) {
+      seed = seed_;
+      coastDice = new Random(streamSeed(seed, coastStream));
+      townDice = new Random(streamSeed(seed, townStream));
+      routeDice = new Random(streamSeed(seed, routeStream));
+      streetDice = new Random(streamSeed(seed, streetStream));
+      namer = new EName(streamSeed(seed, nameStream));
+   }
+
+   // select growFrontier or growSweep; call before create()
+   public void setTownGrowth(int mode) { townGrowth = mode; }
+   public int getTownGrowth() { return townGrowth; }
+
+   // select pathsSequential or pathsParallel; call before create()
+   public void setPathLayout(int mode) { pathLayout = mode; }
+   public int getPathLayout() { return pathLayout; }
+
 	// clear all marked squares
-   // assumes no land in outer rim
    private void clearMarks() {
-		for (int i = width-1; i >= 0; i--) {
-         for (int j = height-1; j >= 0; j--) {
-            grid[i][j].setMarked(false);
-         }
-		}
+      grid.clearMarks();
    }
 
 	// fill rectangular region with single terrain type
    // System.out.println("fill: " + x0 + ", " + y0 + ", " +
    // w + ", " + h + ", " + terr);
 	private void fillTerrain(int x0, int y0, int w, int h, int terr) {
-		for (int x = x0; x < x0 + w; x++) {
-			for (int y = y0; y < y0 + h; y++) {
-            grid[x][y].setTerrain(terr);
-			}
-		}
+      grid.fillTerrain(x0, y0, w, h, terr);
 	}
 
    // up/down flip. you give upper left of lower square.
    private void do3x3vert(int x, int y) {
-      int up =  grid[x][y-1].getTerrain();
-      int down =   grid[x][y].getTerrain();
+      int up =  grid.getTerrain(x, y-1);
+      int down =   grid.getTerrain(x, y);
       if (up != down) {
-         int chance = dice.nextInt() & oddsMask;
+         int chance = coastDice.nextInt() & oddsMask;
          if (chance < change3x3odds) { // cut down
             fillTerrain(x, y, 3, 3, up);
          }
@@ -127,10 +296,10 @@ public class Realm {
 
    // left/right flip. you give upper left of right square.
    private void do3x3horiz(int x, int y) {
-      int left =  grid[x-1][y].getTerrain();
-      int right =   grid[x][y].getTerrain();
+      int left =  grid.getTerrain(x-1, y);
+      int right =   grid.getTerrain(x, y);
       if (left != right) {
-         int chance = dice.nextInt() & oddsMask;
+         int chance = coastDice.nextInt() & oddsMask;
          if (chance < change3x3odds) { // cut right
             fillTerrain(x, y, 3, 3, left);
          }
@@ -160,23 +329,23 @@ public class Realm {
    */
    private void fixslab(int x, int y) {
       // if you fix every one, you get all 45-deg slants
-      if ((dice.nextInt() & oddsMask) >= fixSlabOdds) {
+      if ((coastDice.nextInt() & oddsMask) >= fixSlabOdds) {
          return;
       }
       int numWater = 0;
-      int me =  grid[x][y].getTerrain();
+      int me =  grid.getTerrain(x, y);
       for (int i = x-1; i <= x+1; i++) {
          for (int j = y-1; j <= y+1; j++) {
-            if ( grid[i][j].getTerrain() == Square.water) {
+            if ( grid.getTerrain(i, j) == Square.water) {
                numWater++;
             }
          }
       }
       if (numWater == 4 && me == Square.water) {
-         grid[x][y].setTerrain(Square.land);
+         grid.setTerrain(x, y, Square.land);
       }
       if (numWater == 5 && me == Square.land) {
-         grid[x][y].setTerrain(Square.water);
+         grid.setTerrain(x, y, Square.water);
       }
    }
 
@@ -189,19 +358,19 @@ public class Realm {
 	   // randomly take out 9x9 chunks from shoreline
 	   // north and south
 	   for (int x = landIndent; x < width - landIndent - 9; x += 9) {
-		   if ((dice.nextInt() & oddsMask) < eat9x9odds) {
+		   if ((coastDice.nextInt() & oddsMask) < eat9x9odds) {
 			   fillTerrain(x, landIndent, 9, 9, Square.water);
 		   }
-		   if ((dice.nextInt() & oddsMask) < eat9x9odds) {
+		   if ((coastDice.nextInt() & oddsMask) < eat9x9odds) {
 			   fillTerrain(x, height-landIndent-9, 9, 9, Square.water);
 		   }
 	   }
 	   // east and west. Corners have already been looked at
 	   for (int y = landIndent + 9; y < height - landIndent - 18; y += 9) {
-		   if ((dice.nextInt() & oddsMask) < eat9x9odds) {
+		   if ((coastDice.nextInt() & oddsMask) < eat9x9odds) {
 			   fillTerrain(landIndent, y, 9, 9, Square.water);
 		   }
-		   if ((dice.nextInt() & oddsMask) < eat9x9odds) {
+		   if ((coastDice.nextInt() & oddsMask) < eat9x9odds) {
 			   fillTerrain(width-landIndent-9, y, 9, 9, Square.water);
 		   }
 	   }
@@ -225,10 +394,10 @@ public class Realm {
 			   if (x > 0 && y > 0) {
 				   fixslab(x, y);
 			   }
-			   int ul =  grid[x][y].getTerrain();
-			   int ur =  grid[x+1][y].getTerrain();
-			   int ll =  grid[x][y+1].getTerrain();
-			   int lr =  grid[x+1][y+1].getTerrain();
+			   int ul =  grid.getTerrain(x, y);
+			   int ur =  grid.getTerrain(x+1, y);
+			   int ll =  grid.getTerrain(x, y+1);
+			   int lr =  grid.getTerrain(x+1, y+1);
 			   if (ul == lr && ur == ll && ul != ur) {
 				   fillTerrain(x, y, 2, 2, Square.land);
 			   }
@@ -252,27 +421,27 @@ public class Realm {
 	   for (int x = 1; x < width-1; x++) {
 		   for (int y = 1; y < height-1; y++) {
 			   // we expand into water -- not shave off land
-			   if (grid[x][y].getTerrain() == Square.land) {
+			   if (grid.getTerrain(x, y) == Square.land) {
 				   continue;
 			   }
 			   int surroundingLands = 0;
 			   for (int i = 0; i <= 7; i++) {
-				   if (grid[x+dx[i]][y+dy[i]].getTerrain() == Square.land) {
+				   if (grid.getTerrain(x+dx[i], y+dy[i]) == Square.land) {
 					   surroundingLands += (1 << i);
 				   }
 			   }
 			   // I believe no more than one of the following can be true
 			   if ((surroundingLands & nw) == nw && (surroundingLands & se) == 0) {
-				   grid[x][y].setDisplayHint(Square.water_se);
+				   grid.setDisplayHint(x, y, Square.water_se);
 			   }
 			   if ((surroundingLands & ne) == ne && (surroundingLands & sw) == 0) {
-				   grid[x][y].setDisplayHint(Square.water_sw);
+				   grid.setDisplayHint(x, y, Square.water_sw);
 			   }
 			   if ((surroundingLands & se) == se && (surroundingLands & nw) == 0) {
-				   grid[x][y].setDisplayHint(Square.water_nw);
+				   grid.setDisplayHint(x, y, Square.water_nw);
 			   }
 			   if ((surroundingLands & sw) == sw && (surroundingLands & ne) == 0) {
-				   grid[x][y].setDisplayHint(Square.water_ne);
+				   grid.setDisplayHint(x, y, Square.water_ne);
 			   }
 		   }
 	   }
@@ -283,13 +452,11 @@ public class Realm {
    // also caches # of "okForTown" squares
    // assumes no land in outer rim
    void clearMarksAndCountOpen() {
+      grid.clearMarks();
       numOpenSquares = 0;
- 		for (int x = 0; x < width; x++) {
-         for (int y = 0; y < height; y++) {
-            grid[x][y].setMarked(false);
-            if (grid[x][y].okForTown()) {
-               numOpenSquares++;
-            }
+      for (int t = grid.size() - 1; t >= 0; t--) {
+         if (grid.okForTown(t)) {
+            numOpenSquares++;
          }
       }
    }
@@ -300,20 +467,20 @@ public class Realm {
    int adjRegion(int x, int y) {
       int cr[] = {0, 0, 0, 0};
       int numFound = 0;  // will be 0 thru 4
-      if (grid[x][y-1].hasRealTown()) {
-         cr[numFound++] =  grid[x][y-1].getTown();
+      if (grid.hasRealTown(x, y-1)) {
+         cr[numFound++] =  grid.getTown(x, y-1);
       }
-      if (grid[x+1][y].hasRealTown()) {
-         cr[numFound++] =  grid[x+1][y].getTown();
+      if (grid.hasRealTown(x+1, y)) {
+         cr[numFound++] =  grid.getTown(x+1, y);
       }
-      if (grid[x][y+1].hasRealTown()) {
-         cr[numFound++] =  grid[x][y+1].getTown();
+      if (grid.hasRealTown(x, y+1)) {
+         cr[numFound++] =  grid.getTown(x, y+1);
       }
-      if (grid[x-1][y].hasRealTown()) {
-         cr[numFound++] =  grid[x-1][y].getTown();
+      if (grid.hasRealTown(x-1, y)) {
+         cr[numFound++] =  grid.getTown(x-1, y);
       }
       if (numFound > 0) {
-         return cr[(dice.nextInt() & 3) % numFound];
+         return cr[(townDice.nextInt() & 3) % numFound];
       }
 	return 0;  // no town
    }
@@ -322,33 +489,31 @@ public class Realm {
    // if a square is surrounded by 3 others of a different town,
    // let the other town take this "notch"
    void checkNotch(int x, int y) {
-      if (!grid[x][y-1].hasRealTown() || ! grid[x+1][y].hasRealTown() ||
-          !grid[x][y+1].hasRealTown() || ! grid[x-1][y].hasRealTown()) {
+      if (!grid.hasRealTown(x, y-1) || ! grid.hasRealTown(x+1, y) ||
+          !grid.hasRealTown(x, y+1) || ! grid.hasRealTown(x-1, y)) {
          return;
       }
-      int tNorth =  grid[x][y-1].getTown();
-      int tEast =  grid[x+1][y].getTown();
-      int tSouth =  grid[x][y+1].getTown();
-      int tWest =  grid[x-1][y].getTown();
+      int tNorth =  grid.getTown(x, y-1);
+      int tEast =  grid.getTown(x+1, y);
+      int tSouth =  grid.getTown(x, y+1);
+      int tWest =  grid.getTown(x-1, y);
       if (tNorth == tEast && (tEast == tSouth || tEast == tWest)) {
-         grid[x][y].setTown(tNorth);
+         grid.setTown(x, y, tNorth);
       }
       if (tNorth == tSouth && tSouth == tWest) {
-         grid[x][y].setTown(tNorth);
+         grid.setTown(x, y, tNorth);
       }
       if (tEast == tSouth && tSouth == tWest) {
-         grid[x][y].setTown(tEast);
+         grid.setTown(x, y, tEast);
       }
    }
             
    // count total land area in squares
    int surfaceArea() {
       int total = 0;
- 		for (int x = 0; x < width; x++) {
-         for (int y = 0; y < height; y++) {
-            if (grid[x][y].getTerrain() != Square.water) {
-               total++;
-            }
+      for (int t = grid.size() - 1; t >= 0; t--) {
+         if (grid.getTerrain(t) != Square.water) {
+            total++;
          }
       }
       return total;
@@ -364,9 +529,9 @@ public class Realm {
          towns[i].setArea(0);
       }
 
-      for (int xx = 0; xx < width; xx++) {
-         for (int yy = 0; yy < height; yy++) {
-            int myTown =  grid[xx][yy].getTown();
+      for (int yy = 0; yy < height; yy++) {
+         for (int xx = 0; xx < width; xx++) {
+            int myTown =  grid.getTown(xx, yy);
             if (myTown > 0) {
                towns[myTown].incrementArea();
                sums[myTown].x += xx;
@@ -382,7 +547,7 @@ public class Realm {
             yt = sums[i].y/towns[i].getArea();
          }
          // make sure center is on land; if not, move toward land center
-         while (grid[xt][yt].getTerrain() == Square.water) {
+         while (grid.getTerrain(xt, yt) == Square.water) {
             if (xt > width/2) {
                xt--;
             }
@@ -413,6 +578,133 @@ public class Realm {
    }
       
 
+   // number of growth rings in which a tile joins a town only
+   // some of the time; keeps town borders ragged
+   private final static int townGrowthPasses = 15;
+
+   // original town growth: randomly sweep the whole grid,
+   // then keep sweeping until no more squares change.
+   private void growTownsSweep() {
+      // now randomly fill out regions.
+      // first check, then fill, to avoid chaining.
+      for (int i = 0; i < townGrowthPasses; i++) {
+         for (int y = 1; y < height-1; y++) {
+            for (int x = 1; x < width-1; x++) {
+               if ((townDice.nextInt() & oddsMask) < 12) {
+                  if ( grid.okForTown(x, y)) {
+                     grid.setTownAndMark(x, y, adjRegion(x, y));
+                  }
+               }
+            }
+         }
+         clearMarksAndCountOpen();
+      }
+
+      // now fill in rest
+      int oldNumOpenSquares = 0;
+      while (numOpenSquares > 0) {
+         for (int y = 1; y < height-1; y++) {
+            for (int x = 1; x < width-1; x++) {
+               if ( grid.okForTown(x, y)) {
+                  grid.setTownAndMark(x, y, adjRegion(x, y));
+               }
+            }
+         }
+         clearMarksAndCountOpen();
+         // sometimes there are little "sandbars" in ocean with no town
+         // don't get stuck in an infinite loop
+         if (numOpenSquares == oldNumOpenSquares) {
+            break;
+         }
+         oldNumOpenSquares = numOpenSquares;
+      }
+   }
+
+   // growable list of tile numbers (see RealmGrid.tile())
+   private static class TileList {
+      int[] tiles = new int[64];
+      int size = 0;
+
+      void add(int t) {
+         if (size == tiles.length) {
+            tiles = Arrays.copyOf(tiles, size * 2);
+         }
+         tiles[size++] = t;
+      }
+   }
+
+   // queue square (x,y) for town growth, if it's open and not queued yet
+   private void queueIfOpen(int x, int y, TileList queue, BitSet queued) {
+      if (x < 1 || x > width-2 || y < 1 || y > height-2) {
+         return;
+      }
+      int t = grid.tile(x, y);
+      if (!queued.get(t) && grid.okForTown(t)) {
+         queued.set(t);
+         queue.add(t);
+      }
+   }
+
+   // queue the open squares next to tile t
+   private void queueOpenNeighbors(int t, TileList queue, BitSet queued) {
+      int x = grid.tileX(t);
+      int y = grid.tileY(t);
+      queueIfOpen(x, y-1, queue, queued);
+      queueIfOpen(x+1, y, queue, queued);
+      queueIfOpen(x, y+1, queue, queued);
+      queueIfOpen(x-1, y, queue, queued);
+   }
+
+   // grow towns outward from their cores, one ring of squares at a time.
+   // This is the sweep without the sweeping: during the first passes a
+   // square next to a town joins it 12 times out of 16, otherwise it
+   // waits for the next ring. Squares taken in a ring stay marked until
+   // the ring is done, so adjRegion() can't chain through them.
+   // Each land square is queued once, and only squares on the
+   // growing edge are ever looked at.
+   private void growTownsFrontier(TileList cores) {
+      BitSet queued = new BitSet(width * height);
+      TileList ring = new TileList();
+      TileList nextRing = new TileList();
+      TileList taken = new TileList();
+
+      for (int i = 0; i < cores.size; i++) {
+         queued.set(cores.tiles[i]);
+      }
+      for (int i = 0; i < cores.size; i++) {
+         queueOpenNeighbors(cores.tiles[i], ring, queued);
+      }
+
+      for (int pass = 0; ring.size > 0; pass++) {
+         nextRing.size = 0;
+         taken.size = 0;
+         for (int i = 0; i < ring.size; i++) {
+            int t = ring.tiles[i];
+            if (pass < townGrowthPasses &&
+                (townDice.nextInt() & oddsMask) >= 12) {
+               // not this time; try again next ring
+               nextRing.add(t);
+               continue;
+            }
+            int x = grid.tileX(t);
+            int y = grid.tileY(t);
+            grid.setTownAndMark(x, y, adjRegion(x, y));
+            taken.add(t);
+         }
+
+         // ring is done: unmark it, and queue whatever it now touches
+         for (int i = 0; i < taken.size; i++) {
+            int t = taken.tiles[i];
+            grid.setMarked(grid.tileX(t), grid.tileY(t), false);
+            queueOpenNeighbors(t, nextRing, queued);
+         }
+
+         TileList swap = ring;
+         ring = nextRing;
+         nextRing = swap;
+      }
+   }
+
    void fillTowns() {
       // figure out town spacing for region cores
       int ntowns = surfaceArea()/Town.typicalArea;
@@ -425,6 +717,7 @@ public class Realm {
       int thisId = 0;  // num town id's used
       int ncused = 0;  // num town slots used
       int nrused = 0;  // num of rows used
+      TileList cores = new TileList();  // squares given to town cores
 
       for (int r = 0; r < nrows; r++) {
          // starting y
@@ -436,11 +729,12 @@ public class Realm {
             int tx =  myWidth/ncols * c + myWidth/ncols/2 + 4;
             // mark town with a digit if square is suitable
             for (int i = 0; i < Town.coreArea; i++) {
-               if ( grid[tx][ty].okForTown()) {
-                  grid[tx][ty].setTown(thisId+1);  // yes, +1
+               if ( grid.okForTown(tx, ty)) {
+                  grid.setTown(tx, ty, thisId+1);  // yes, +1
                   createNewTown = true;
+                  cores.add(grid.tile(tx, ty));
                }
-               switch(dice.nextInt() & 3) {
+               switch(townDice.nextInt() & 3) {
                   case 0: ty--; break;
                   case 1: tx++; break;
                   case 2: ty++; break;
@@ -453,11 +747,15 @@ public class Realm {
             }
             if (createNewTown) {
                thisId++;
+               towns = fit(towns, thisId);
                towns[thisId] = new Town(namer.pickNewTownName());
+               indexName(tidByName, towns[thisId].getName(), thisId);
                if (nrused == 0) {
+                  topTowns = fit(topTowns, ncused + 1);
                   topTowns[ncused] = thisId;
                }
                if (c == 0) {
+                  leftTowns = fit(leftTowns, nrused + 1);
                   leftTowns[nrused] = thisId;
                }
             }
@@ -467,39 +765,11 @@ public class Realm {
       }
       numTowns = thisId;
 
-      // now randomly fill out regions.
-      // first check, then fill, to avoid chaining.
-      int npasses = 15;
-      for (int i = 0; i < npasses; i++) {
-         for (int y = 1; y < height-1; y++) {
-            for (int x = 1; x < width-1; x++) {
-               if ((dice.nextInt() & oddsMask) < 12) {
-                  if ( grid[x][y].okForTown()) {
-                     grid[x][y].setTownAndMark(adjRegion(x, y));
-                  }
-               }
-            }
-         }
-         clearMarksAndCountOpen();
+      if (townGrowth == growSweep) {
+         growTownsSweep();
       }
-
-      // now fill in rest
-      int oldNumOpenSquares = 0;
-      while (numOpenSquares > 0) {
-         for (int y = 1; y < height-1; y++) {
-            for (int x = 1; x < width-1; x++) {
-               if ( grid[x][y].okForTown()) {
-                  grid[x][y].setTownAndMark(adjRegion(x, y));
-               }
-            }
-         }
-         clearMarksAndCountOpen();
-         // sometimes there are little "sandbars" in ocean with no town
-         // don't get stuck in an infinite loop
-         if (numOpenSquares == oldNumOpenSquares) {
-            break;
-         }
-         oldNumOpenSquares = numOpenSquares;
+      else {
+         growTownsFrontier(cores);
       }
 
       // now fix any single-square "notches"
@@ -510,20 +780,31 @@ public class Realm {
       }
 
       // now figure out town centers and areas
+      long t0 = System.nanoTime();
       calculateTownCenters();
+      profile.addStageNanos(GenerationProfile.townCenters,
+                            System.nanoTime() - t0);
    }
 
    // ========= r stuff ==============================================
 
    // utility function: return the Junction for a Point.
    public final Junction pToJ(Point p) {
-      return grid[p.x][p.y].getJunc();
+      return grid.getJunc(p.x, p.y);
+   }
+
+   // tile one square from t in direction heading.
+   // t mustn't be on the edge of the map that way.
+   final int stepTile(int t, int heading) {
+      return t + Junction.dy[heading] * width + Junction.dx[heading];
    }
 
    // given a point (square) and route id, follow route backward
    // to next square; returns false if at start
    boolean prevJunc(Point here, int routeId) {
-      int dir = pToJ(here).getBackwardDirectionStrict(routeId);
+      JunctionTable juncs = grid.getJunctionTable();
+      int dir = juncs.getBackwardDirectionStrict(
+         juncs.slotAt(grid.tile(here.x, here.y)), routeId);
       if (dir >= 0) {
          Junction.move(here, dir);
          return true;
@@ -534,41 +815,92 @@ public class Realm {
    // given a point (square) and route id, follow route forward
    // to next square; returns false if at end
    boolean nextJunc(Point here, int routeId) {
-      int dir = pToJ(here).getForwardDirectionStrict(routeId);
+      int dir = routeDirection(grid.tile(here.x, here.y), routeId);
       if (dir >= 0) {
          Junction.move(here, dir);
          return true;
       }
       return false;
    }
+
+   // tile form of nextJunc: the tile after t on route,
+   // or -1 if the route ends at t
+   int nextRouteTile(int t, int routeId) {
+      int dir = routeDirection(t, routeId);
+      return dir >= 0 ? stepTile(t, dir) : -1;
+   }
+
+   // direction route leaves tile t, or -1 if it doesn't
+   int routeDirection(int t, int routeId) {
+      JunctionTable juncs = grid.getJunctionTable();
+      return juncs.getForwardDirectionStrict(juncs.slotAt(t), routeId);
+   }
       
-   // find start of this route from scratch by scanning grid.
+   /* =============
+      x,y forms of the Junction queries that map and log loops make
+      every square; they read the JunctionTable without making a
+      Junction, so they allocate nothing.
+   */
+   boolean isRouteInflection(int x, int y) {
+      JunctionTable juncs = grid.getJunctionTable();
+      return juncs.isRouteInflection(juncs.slotAt(grid.tile(x, y)));
+   }
+
+   int getForwardDirection(int x, int y, int rid) {
+      JunctionTable juncs = grid.getJunctionTable();
+      return juncs.getForwardDirection(juncs.slotAt(grid.tile(x, y)), rid);
+   }
+
+   int ridAt(int x, int y, int direction, int which) {
+      JunctionTable juncs = grid.getJunctionTable();
+      return juncs.ridAt(juncs.slotAt(grid.tile(x, y)), direction, which);
+   }
+
+   // see Junction.ridLeavesDiagonally
+   boolean ridLeavesDiagonally(int x, int y, int rid) {
+      return (getForwardDirection(x, y, rid) & 1) > 0;
+   }
+
+   // update start of this route after editing it.
+   // leaves start alone if the route has no start.
    void findRouteStart(int rid) {
-      for (int y = 1; y < height-1; y++) {
-         for (int x = 1; x < width-1; x++) {
-            if (grid[x][y].junc != null) {
-               if (grid[x][y].junc.isRouteStart(rid)) {
-                  routes[rid].setStart(x, y);
-                  return;
-               }
-            }
+      int t = routeEnds().getStart(rid);
+      if (t >= 0) {
+         routes[rid].setStart(grid.tileX(t), grid.tileY(t));
+         if (journal != null) {
+            journal.routeStart(rid, grid.tileX(t), grid.tileY(t));
          }
+         routeChanged(rid);
       }
    }
                
-   // find end of this route from scratch by scanning grid.
+   // update end of this route after editing it.
+   // leaves end alone if the route has no end.
    void findRouteEnd(int rid) {
-      for (int y = 1; y < height-1; y++) {
-         for (int x = 1; x < width-1; x++) {
-            if (grid[x][y].junc != null) {
-               if (grid[x][y].junc.isRouteEnd(rid)) {
-                  routes[rid].setEnd(x, y);
-                  return;
-               }
-            }
+      int t = routeEnds().getEnd(rid);
+      if (t >= 0) {
+         routes[rid].setEnd(grid.tileX(t), grid.tileY(t));
+         if (journal != null) {
+            journal.routeEnd(rid, grid.tileX(t), grid.tileY(t));
          }
+         routeChanged(rid);
       }
    }
+
+   // route ids changed on a leg: recheck whether either end
+   // of the leg now starts or ends the route.
+   private void noteRouteEnds(int here, int next, int rid) {
+      if (routeEnds == null) {
+         return;  // built from the junctions, edits and all, when needed
+      }
+      JunctionTable juncs = grid.getJunctionTable();
+      int slot = juncs.slotAt(here);
+      routeEnds.update(rid, here,
+                       juncs.isRouteStart(slot, rid), juncs.isRouteEnd(slot, rid));
+      slot = juncs.slotAt(next);
+      routeEnds.update(rid, next,
+                       juncs.isRouteStart(slot, rid), juncs.isRouteEnd(slot, rid));
+   }
                
 
    // how many squares long is route.
@@ -583,62 +915,20 @@ public class Realm {
       return length;
    }
 
-   // return true if you can't pave any road out of x,y in direction
-   boolean cantPave(Junction j, Point p, int heading) {
-      if (grid[p.x][p.y].getTerrain() == Square.water) {
-         return true;
-      }
-
-      // don't make a bad intersection
-      if (!j.isSuitableForLeg(heading)) {
-         return true;
-      }
-
-      Point nextp = new Point(p);
-      Junction.move(nextp, heading);
-
-      // bounds check for following water check
-      if (nextp.x < 0 || nextp.y < 0 || 
-          nextp.x >= width || nextp.y >= height) {
-         //System.out.println("out of bounds");
-         return true;
-      }
-
-      if (grid[nextp.x][nextp.y].getTerrain() == Square.water) {
-         //System.out.println("off land");
-         return true;
-      }
-
-      // is an incoming leg in this dir bad for next sq?
-      if (!pToJ(nextp).isSuitableForLeg(Junction.getReverseDirection(heading))) {
-         //System.out.println("congested at " + nextp);
-         return true;
-      }
-
-      // would this create a corner intersection?
-      if (Junction.isDiagonal(heading)) {
-         nextp.setLocation(p);
-         Junction.move(nextp, heading, Junction.veerleft);
-         if (!pToJ(nextp).isEmpty(heading, Junction.right)) {
-            return true;
-         }
-         nextp.setLocation(p);
-         Junction.move(nextp, heading, Junction.veerright);
-         if (!pToJ(nextp).isEmpty(heading, Junction.left)) {
-            return true;
-         }
-      }
-      return false;
+   // return true if you can't pave any road out of x,y in direction.
+   // the rules are in PavableLegs, which caches the answers
+   boolean cantPave(int x, int y, int heading) {
+      return !pavable.canPave(x, y, heading);
    }
 
    // convenience form of cantPave
    boolean cantPave(Point p, int heading) {
-      return cantPave(pToJ(p), p, heading);
+      return cantPave(p.x, p.y, heading);
    }   
 
    // return true if you can't add a route out of (x,y) in 'direction'
    boolean cantAddRoute(Junction j, Point p, int direction) {
-      if (cantPave(j, p, direction)) {
+      if (cantPave(p, direction)) {
          return true;
       }
          
@@ -651,7 +941,7 @@ public class Realm {
 
    // return true if you can't add a street out of (x,y) in 'direction'
    boolean cantAddStreet(Junction j, Point p, int direction) {
-      if (cantPave(j, p, direction)) {
+      if (cantPave(p, direction)) {
          return true;
       }
          
@@ -662,13 +952,13 @@ public class Realm {
       return false;
    }
 
-   /* choose an appropriate start for street or route.
+   /* choose a random start for street or route.
       Return true if it's OK to start paving there;
       false if not.
       (Clients will manage things like max # of tries
       and other recovery techniques.
    */
-   boolean pickPavementStart(Point here, int heading)
+   boolean pickPavementStart(Point here, int heading, Random dice)
    {
       int delta;
 
@@ -692,184 +982,329 @@ public class Realm {
             here.y = height - 1 - delta; break;
       }
 
-      return !cantPave(pToJ(here), here, heading);
+      return !cantPave(here, heading);
    }
 
-   // choose an appropriate start for a new route
-   // it can start up overlapped with a street, but not another route
-   void pickRouteStart(Point here, int heading, boolean findExisting)
-   {
-      int maxTries = 200;
-
-      while (true) {
+   // true if (x,y) is where pickPavementStart() could put a start
+   // for this heading: in the 2/3 of the map that the heading leads across
+   boolean inStartRegion(int x, int y, int heading) {
+      boolean xOK, yOK;
+      switch(heading) {
+         case Junction.north: case Junction.east: 
+         case Junction.northeast: case Junction.southeast: 
+            xOK = x < 2*width / 3; break;
+         default:
+            xOK = x > width - 1 - 2*width / 3; break;
+      }
+      switch(heading) {
+         case Junction.east: case Junction.south:
+         case Junction.southwest: case Junction.southeast: 
+            yOK = y < 2*height / 3; break;
+         default:
+            yOK = y > height - 1 - 2*height / 3; break;
+      }
+      return xOK && yOK;
+   }
 
-         if (pickPavementStart(here, heading)) {
-            Junction j = pToJ(here);
+   // two-way roads to start new roads from; made when first needed,
+   // which is after the city blocks are laid out
+   private StartCandidates startCandidates() {
+      if (starts == null) {
+         starts = new StartCandidates(this);
+         grid.getJunctionTable().addLegListener(starts);
+      }
+      return starts;
+   }
 
-            // need a 2-way stretch of road to start from...
-            if (findExisting || maxTries <= 0) {
-               if (j.isTwoWay() && j.isEmpty(heading)) {
-                  return;
-               }
-            }
-            // ... or any leg not taken by another route
-            else {
+   // choose an appropriate start for a new route
+   // it can start up overlapped with a street, but not another route.
+   // findExisting: must start from a 2-way stretch of road.
+   // returns false if there's nowhere to start.
+   boolean pickRouteStart(Point here, int heading, boolean findExisting)
+   {
+      Random dice = routeDice;
+      final int maxTries = 200;
+      int tries = 0;
+
+      // any leg not taken by another route...
+      if (!findExisting) {
+         while (tries < maxTries) {
+            tries++;
+            if (pickPavementStart(here, heading, dice)) {
+               Junction j = pToJ(here);
                if (j.hasNoRoutes(heading) && 
                    j.isSuitableForLeg(heading)) {
-                  return;
+                  profile.addRouteStart(tries, false, false);
+                  return true;
                }
             }
          }
-         maxTries--;
       }
+
+      // ... or else a 2-way stretch of road
+      int draws = startCandidates().pick(here, heading, dice);
+      profile.addRouteStart(tries + draws, tries == maxTries, draws == 0);
+      return draws > 0;
    }
 
    // choose an appropriate start for a new street.
    // streets must have their own pavement.
-   void pickStreetStart(Point here, int heading, boolean findExisting)
+   // returns false if there's nowhere to start.
+   boolean pickStreetStart(Point here, int heading, boolean findExisting)
    {
-      int maxTries = 200;
-
-      while (true) {
-
-         if (pickPavementStart(here, heading)) {
-            Junction j = pToJ(here);
-
-            if (j.isEmpty(heading)) {
-               // need a 2-way stretch of road to start from...
-               if (findExisting || maxTries <= 0) {
-                  if (j.isTwoWay()) {
-                     return;
-                  }
-               }
-               // ... or any leg that makes a valid intersection
-               else {
-                  if (j.isSuitableForLeg(heading)) {
-                     return;
-                  }
+      Random dice = streetDice;
+      final int maxTries = 200;
+
+      // any leg that makes a valid intersection...
+      if (!findExisting) {
+         for (int tries = 0; tries < maxTries; tries++) {
+            if (pickPavementStart(here, heading, dice)) {
+               Junction j = pToJ(here);
+               if (j.isEmpty(heading) && j.isSuitableForLeg(heading)) {
+                  return true;
                }
             }
          }
-         maxTries--;
       }
+
+      // ... or else a 2-way stretch of road
+      return startCandidates().pick(here, heading, dice) > 0;
    }
 
    /* =============
       convenience functions to set things in this square and next.
       heading: compass heading of this segment. Not log direction.
       forward: whether route is going forward or backward.
+      Each comes in a Point form and an x,y form; neither allocates,
+      so they're safe in layout and editing loops.
+      The Point forms are what the path tool uses: those of them that
+      an editor can reach are recorded in the journal, if there is one,
+      and tell RouteListeners which routes' logs may have changed.
+      The generator and journal replay use the x,y forms.
    */
    void addRouteBoth(Point here, int heading, 
                      int rid, int paveType, boolean forward) {
-      Point next = new Point(here);
-      Junction.move(next, heading);
+      addRouteBoth(here.x, here.y, heading, rid, paveType, forward);
+   }
+
+   void addRouteBoth(int x, int y, int heading, 
+                     int rid, int paveType, boolean forward) {
+      JunctionTable juncs = grid.getJunctionTable();
+      int here = grid.tile(x, y);
+      int next = stepTile(here, heading);
       int reverse = Junction.getReverseDirection(heading);
-      pToJ(here).setWiderPavement(heading, paveType);
-      pToJ(next).setWiderPavement(reverse, paveType);
-      addRidBoth(here, heading, rid, forward);
+      juncs.setWiderPavement(juncs.slotFor(here), heading, paveType);
+      juncs.setWiderPavement(juncs.slotFor(next), reverse, paveType);
+      addRidBoth(x, y, heading, rid, forward);
    }
 
    // add route number; don't touch pavement
    void addRidBoth(Point here, int heading, 
                      int rid, boolean forward) {
-      Point next = new Point(here);
-      Junction.move(next, heading);
+      if (journal != null) {
+         journal.addRid(here.x, here.y, heading, rid, forward);
+      }
+      routesAtLeg(here.x, here.y, heading);
+      addRidBoth(here.x, here.y, heading, rid, forward);
+      routesAtLeg(here.x, here.y, heading);
+   }
+
+   void addRidBoth(int x, int y, int heading, 
+                     int rid, boolean forward) {
+      JunctionTable juncs = grid.getJunctionTable();
+      int here = grid.tile(x, y);
+      int next = stepTile(here, heading);
       if (forward) {
-         pToJ(here).addRidForward(heading, rid);
-         pToJ(next).addRidBack(heading, rid);
+         juncs.addRidForward(juncs.slotFor(here), heading, rid);
+         juncs.addRidBack(juncs.slotFor(next), heading, rid);
       }
       else {
          // must flip because you're adding backwards out of sq
          int flipheading = Junction.getReverseDirection(heading);
-         pToJ(here).addRidBack(flipheading, rid);
-         pToJ(next).addRidForward(flipheading, rid);
+         juncs.addRidBack(juncs.slotFor(here), flipheading, rid);
+         juncs.addRidForward(juncs.slotFor(next), flipheading, rid);
       }
+      noteRouteEnds(here, next, rid);
    }
 
    // delete route number; don't touch pavement
    void removeRidBoth(Point here, int heading, 
                      int rid) {
-      Point next = new Point(here);
-      Junction.move(next, heading);
-      pToJ(here).removeRid(heading, rid);
-      pToJ(next).removeRid(Junction.getReverseDirection(heading), rid);
+      if (journal != null) {
+         journal.removeRid(here.x, here.y, heading, rid);
+      }
+      routesAtLeg(here.x, here.y, heading);
+      removeRidBoth(here.x, here.y, heading, rid);
+      routesAtLeg(here.x, here.y, heading);
+   }
+
+   void removeRidBoth(int x, int y, int heading, 
+                     int rid) {
+      JunctionTable juncs = grid.getJunctionTable();
+      int here = grid.tile(x, y);
+      int next = stepTile(here, heading);
+      juncs.removeRid(juncs.slotFor(here), heading, rid);
+      juncs.removeRid(juncs.slotFor(next),
+                      Junction.getReverseDirection(heading), rid);
+      noteRouteEnds(here, next, rid);
    }
 
    // clear all route id's from this leg and next
    void clearRidsBoth(Point here, int heading) {
-      Point next = new Point(here);
-      Junction.move(next, heading);
-      pToJ(here).clearRids(heading);
-      pToJ(next).clearRids(Junction.getReverseDirection(heading));
+      if (journal != null) {
+         journal.clearRids(here.x, here.y, heading);
+      }
+      routesAtLeg(here.x, here.y, heading);
+      clearLegBoth(here.x, here.y, heading, false);
+      routesAtLeg(here.x, here.y, heading);
+   }
+
+   void clearRidsBoth(int x, int y, int heading) {
+      clearLegBoth(x, y, heading, false);
+   }
+
+   // erase this leg and next: pavement, route id's and street id's
+   void clearLegBoth(Point here, int heading) {
+      if (journal != null) {
+         journal.erase(here.x, here.y, heading);
+      }
+      routesAtLeg(here.x, here.y, heading);
+      clearLegBoth(here.x, here.y, heading, true);
+      routesAtLeg(here.x, here.y, heading);
+   }
+
+   void clearLegBoth(int x, int y, int heading) {
+      clearLegBoth(x, y, heading, true);
+   }
+
+   private void clearLegBoth(int x, int y, int heading, boolean pavementToo) {
+      JunctionTable juncs = grid.getJunctionTable();
+      int here = grid.tile(x, y);
+      int next = stepTile(here, heading);
+      int reverse = Junction.getReverseDirection(heading);
+      int slot = juncs.slotFor(here);
+      int nextSlot = juncs.slotFor(next);
+
+      // remember which routes were here
+      int rid0 = juncs.ridAt(slot, heading, 0);
+      int rid1 = juncs.ridAt(slot, heading, 1);
+      int rid2 = juncs.ridAt(nextSlot, reverse, 0);
+      int rid3 = juncs.ridAt(nextSlot, reverse, 1);
+      if (pavementToo) {
+         juncs.clearLeg(slot, heading);
+         juncs.clearLeg(nextSlot, reverse);
+      }
+      else {
+         juncs.clearRids(slot, heading);
+         juncs.clearRids(nextSlot, reverse);
+      }
+      noteRouteEndsIfAny(here, next, rid0);
+      noteRouteEndsIfAny(here, next, rid1);
+      noteRouteEndsIfAny(here, next, rid2);
+      noteRouteEndsIfAny(here, next, rid3);
+   }
+
+   private void noteRouteEndsIfAny(int here, int next, int rid) {
+      if (rid > 0) {
+         noteRouteEnds(here, next, rid);
+      }
    }
 
    void addStreetBoth(Point here, int heading, 
                      int sid, int paveType, boolean forward) {
-      Point next = new Point(here);
-      Junction.move(next, heading);
+      addStreetBoth(here.x, here.y, heading, sid, paveType, forward);
+   }
+
+   void addStreetBoth(int x, int y, int heading, 
+                     int sid, int paveType, boolean forward) {
+      JunctionTable juncs = grid.getJunctionTable();
+      int here = grid.tile(x, y);
+      int next = stepTile(here, heading);
       if (forward) {
-         pToJ(here).addStreetForward(heading, sid, paveType);
-         pToJ(next).addStreetBack(heading, sid, paveType);
+         juncs.addStreetForward(juncs.slotFor(here), heading, sid, paveType);
+         juncs.addStreetBack(juncs.slotFor(next), heading, sid, paveType);
       }
       else {
          // must flip because you're adding backwards out of sq
          int flipheading = Junction.getReverseDirection(heading);
-         pToJ(here).addStreetBack(flipheading, sid, paveType);
-         pToJ(next).addStreetForward(flipheading, sid, paveType);
+         juncs.addStreetBack(juncs.slotFor(here), flipheading, sid, paveType);
+         juncs.addStreetForward(juncs.slotFor(next), flipheading, sid, paveType);
       }
    }
 
    void setSidBoth(Point here, int heading, int sid) {
-      Point next = new Point(here);
-      Junction.move(next, heading);
-      pToJ(here).setStreetId(heading, sid, true);
-      pToJ(next).setStreetId(Junction.getReverseDirection(heading), sid, true);
+      setSidBoth(here.x, here.y, heading, sid);
+   }
+
+   void setSidBoth(int x, int y, int heading, int sid) {
+      JunctionTable juncs = grid.getJunctionTable();
+      int here = grid.tile(x, y);
+      int next = stepTile(here, heading);
+      juncs.setStreetId(juncs.slotFor(here), heading, sid, true);
+      juncs.setStreetId(juncs.slotFor(next),
+                        Junction.getReverseDirection(heading), sid, true);
    }
 
    void setPaveBoth(Point here, int heading, int paveType) {
-      Point next = new Point(here);
-      Junction.move(next, heading);
-      pToJ(here).setPavement(heading, paveType);
-      pToJ(next).setPavement(Junction.getReverseDirection(heading), paveType);
+      if (journal != null) {
+         journal.pave(here.x, here.y, heading, paveType);
+      }
+      routesAtLeg(here.x, here.y, heading);
+      setPaveBoth(here.x, here.y, heading, paveType);
+      routesAtLeg(here.x, here.y, heading);
+   }
+
+   void setPaveBoth(int x, int y, int heading, int paveType) {
+      JunctionTable juncs = grid.getJunctionTable();
+      int here = grid.tile(x, y);
+      int next = stepTile(here, heading);
+      juncs.setPavement(juncs.slotFor(here), heading, paveType);
+      juncs.setPavement(juncs.slotFor(next),
+                        Junction.getReverseDirection(heading), paveType);
    }
 
 
    // bias toward current bias
    // log heading + bias = temporary favored heading
-   // call init, then call check every square
+   // make one per road, then call check every square
    // let road curve, but discourage constant curviness
    // tends to return to straight
-   // member vars: lengthAtDirBias, currentDirBias, naturalDirBias
-   int lengthAtDirBias, currentDirBias, naturalDirBias;
-   void initDirBias() {
-      currentDirBias = 0;
-      lengthAtDirBias = 0;
-      int bc = dice.nextInt() & oddsMask;
-      if (bc < 3) {
-         naturalDirBias = -1;
-      }
-      else if (bc > 12) {
-         naturalDirBias = 1;
-      }
-      else {
-         naturalDirBias = 0;
+   // each layout() has its own, so roads can be laid out concurrently
+   private static class DirBias {
+      private final Random dice;
+      int lengthAtDirBias, currentDirBias, naturalDirBias;
+
+      DirBias(Random dice_) {
+         dice = dice_;
+         currentDirBias = 0;
+         lengthAtDirBias = 0;
+         int bc = dice.nextInt() & oddsMask;
+         if (bc < 3) {
+            naturalDirBias = -1;
+         }
+         else if (bc > 12) {
+            naturalDirBias = 1;
+         }
+         else {
+            naturalDirBias = 0;
+         }
       }
-   }
 
-   void checkDirBias() {
-      lengthAtDirBias++;
-      if (lengthAtDirBias > minLengthAtDirBias) {
-         int chance = dice.nextInt() & oddsMask;
-         if (chance < changeDirBias) {
-            chance = dice.nextInt() & oddsMask;
-            if (chance < returnToNaturalDirBias) {
-               currentDirBias = naturalDirBias;
-            }
-            else {
-               currentDirBias = (chance % 3) - 1;  // -1, 0, or 1
+      void check() {
+         lengthAtDirBias++;
+         if (lengthAtDirBias > minLengthAtDirBias) {
+            int chance = dice.nextInt() & oddsMask;
+            if (chance < changeDirBias) {
+               chance = dice.nextInt() & oddsMask;
+               if (chance < returnToNaturalDirBias) {
+                  currentDirBias = naturalDirBias;
+               }
+               else {
+                  currentDirBias = (chance % 3) - 1;  // -1, 0, or 1
+               }
+               lengthAtDirBias = 0;
+               //System.out.println("New Nat bias ind: " + naturalDirBias);
             }
-            lengthAtDirBias = 0;
-            //System.out.println("New Nat bias ind: " + naturalDirBias);
          }
       }
    }
@@ -905,29 +1340,99 @@ public class Realm {
    Point layout(int id, int roadClass, Point start, int heading, 
                   int paveType, int maxLength, boolean forward,
                   boolean dieSoon, boolean keepStraight) {
+      return layout(id, roadClass, start, heading, paveType, maxLength,
+                    forward, dieSoon, keepStraight,
+                    roadClass == rcRoute ? routeDice : streetDice);
+   }
+
+   // same, drawing from the given random stream.
+   // touches only the squares along the road and the ones next to them.
+   Point layout(int id, int roadClass, Point start, int heading, 
+                  int paveType, int maxLength, boolean forward,
+                  boolean dieSoon, boolean keepStraight, Random dice) {
+      return layout(id, roadClass, start, heading, paveType, maxLength,
+                    forward, dieSoon, keepStraight, dice, null);
+   }
+
+   // where a layout() kept to part of the realm stopped, and the
+   // state it had, so a later layout() can carry the road on from
+   // there as if it had never stopped
+   private static class Pause {
+      Rectangle bounds;  // squares the road may leave from; null for any
+      boolean stopped = false;
+      int heading, length, numForcedDirections, lastIdSeen, sqSinceLastId;
+      boolean doubling;
+      int[] dir;
+      DirBias bias;
+
+      Pause(Rectangle bounds_) {
+         bounds = bounds_;
+      }
+   }
+
+   // same, but if pause has bounds, stop on reaching a square outside
+   // them and remember why in pause. given a pause that has stopped,
+   // carry on from start, the square it stopped on.
+   private Point layout(int id, int roadClass, Point start, int heading, 
+                        int paveType, int maxLength, boolean forward,
+                        boolean dieSoon, boolean keepStraight, Random dice,
+                        Pause pause) {
+      long startNanos = System.nanoTime();
+      int steps = 0, cantPaveChecks = 0;  // for profile
+      boolean forcedEnd = false;
       boolean done = false;
       boolean doubling = false;
       int numForcedDirections = 0;
       int length = 0;      // how many squares has road gone
+      JunctionTable juncs = grid.getJunctionTable();
       Point here = new Point(start);
       Point next = new Point();
       int lastIdSeen = 0;      // last rid/sid intersected
       int sqSinceLastId = 0;   // how many sqs ago
       boolean enc2;             // encouraged to double (debug)
-     
-      // if you're backward, pretend you're going the other way
-      if (!forward) {
-         heading = Junction.getReverseDirection(heading);
+      int dir[] = {0, 0, 0, 0, 0};
+      DirBias bias;
+
+      if (pause != null && pause.stopped) {
+         pause.stopped = false;
+         heading = pause.heading;
+         length = pause.length;
+         numForcedDirections = pause.numForcedDirections;
+         lastIdSeen = pause.lastIdSeen;
+         sqSinceLastId = pause.sqSinceLastId;
+         doubling = pause.doubling;
+         dir = pause.dir;
+         bias = pause.bias;
       }
+      else {
+         // if you're backward, pretend you're going the other way
+         if (!forward) {
+            heading = Junction.getReverseDirection(heading);
+         }
 
-      // get primary (dir[2]) and alternate dirs (2 to each side)
-      int dir[] = {0, 0, 0, 0, 0};
-      for (int i = 0; i < dir.length; i++) {
-         dir[i] = Junction.getGlobalDirection(heading, i-2);
+         // get primary (dir[2]) and alternate dirs (2 to each side)
+         for (int i = 0; i < dir.length; i++) {
+            dir[i] = Junction.getGlobalDirection(heading, i-2);
+         }
+         bias = new DirBias(dice);
       }
-      initDirBias();
 
       while (!done) {
+         // kept in bounds: stop before any step could leave them
+         if (pause != null && pause.bounds != null &&
+             !pause.bounds.contains(here)) {
+            pause.stopped = true;
+            pause.heading = heading;
+            pause.length = length;
+            pause.numForcedDirections = numForcedDirections;
+            pause.lastIdSeen = lastIdSeen;
+            pause.sqSinceLastId = sqSinceLastId;
+            pause.doubling = doubling;
+            pause.dir = dir;
+            pause.bias = bias;
+            break;
+         }
+         steps++;
          //System.out.println("here: " + here);
          Junction j = pToJ(here);  // alias
 
@@ -973,8 +1478,8 @@ public class Realm {
          int dirChances[] = {5, 10, 30, 10, 5};  // chance to go in each dir
 
          // favor biased direction; see if it should change
-         dirChances[2 + currentDirBias] += 20;
-         checkDirBias();
+         dirChances[2 + bias.currentDirBias] += 20;
+         bias.check();
                
          // first, determine where it is possible to go.
          // don't double back on yourself or go to unsuitable space.
@@ -983,16 +1488,17 @@ public class Realm {
 
          // curves are ok, but discourage sharp ones
          checkTurns(dir, dirChances, oldHeading, keepStraight);
+         int canPave = pavable.get(here.x, here.y);
          for (int i = 0; i < dir.length; i++) {
             if (dirChances[i] == 0) {
                continue;
             }
 
-            if (roadClass == rcRoute && cantAddRoute(j, here, dir[i])) {
-               dirChances[i] = 0;
-               continue;
-            }
-            if (roadClass == rcStreet && cantAddStreet(j, here, dir[i])) {
+            // same tests as cantAddRoute/cantAddStreet
+            cantPaveChecks++;
+            if ((canPave & (1 << dir[i])) == 0 ||
+                (roadClass == rcRoute && j.isFull(dir[i])) ||
+                (roadClass == rcStreet && !j.isEmpty(dir[i]))) {
                dirChances[i] = 0;
                continue;
             }
@@ -1033,6 +1539,7 @@ public class Realm {
          if (sumChances == 1) {
             if (++numForcedDirections > 5 && length > 15) {
                //System.out.println("too forced");
+               forcedEnd = true;
                done = true;
                break;
             }
@@ -1051,11 +1558,13 @@ public class Realm {
                }
                next.setLocation(here); // lookahead
                Junction.move(next, dir[i]);
-               Junction jn = pToJ(next);
+               // only looking: don't make a slot for an empty square
+               int nextSlot = juncs.slotAt(grid.tile(next.x, next.y));
 
                // will you meet a road you've already seen?
-               if (!doubling && !enc2 && lastIdSeen != 0 && 
-                   jn.containsRoute(lastIdSeen) &&
+               if (!doubling && !enc2 && lastIdSeen != 0 &&
+                   nextSlot != 0 &&
+                   juncs.containsRoute(nextSlot, lastIdSeen) &&
                    sqSinceLastId < minLengthBeforeRemeetRoute) {
                   //System.out.println("rid " + rid + " seeing rid " +
                   //                   lastRidSeen + " again at " + 
@@ -1124,14 +1633,141 @@ public class Realm {
             break;
          }
       } // while !done
+      profile.addLayout(roadClass == rcRoute, System.nanoTime() - startNanos,
+                        steps, cantPaveChecks, forcedEnd);
       return here;
    }
 
    // convenience functions
    // layout straight city streets
-   private Point layoutCityStreet(int sid, Point here, int dir, int len) {
+   private Point layoutCityStreet(int sid, Point here, int dir, int len,
+                                  Random dice) {
       return layout(sid, rcStreet, here, dir, Junction.undiv2, len, 
-                    true, false, true);
+                    true, false, true, dice);
+   }
+
+   // give town tid a 5x5 block of streets, with ids firstSid+1 and up.
+   // stays within cityBlockReach squares of the town center.
+   private void layoutCityBlock(int tid, int firstSid, Random dice) {
+      Point here = towns[tid].getCenter();
+      Point next = new Point();
+      int sid = firstSid;
+      for (int j = 0; j <= 4; j++) {
+         // vertical
+         next.x = here.x + j - 2;
+         next.y = here.y + 2;
+         layoutCityStreet(++sid, next, Junction.north, 4, dice);
+         // horizontal
+         next.x = here.x - 2;
+         next.y = here.y + j - 2;
+         layoutCityStreet(++sid, next, Junction.east, 4, dice);
+      }
+   }
+
+   /* === parallel city blocks
+      Towns are bucketed into square cells by their centers.
+      A city block never reaches past cityBlockReach squares from its
+      town center, so blocks in cells two apart can't touch the same
+      square. Cells are done in four passes, one per (x,y) parity, with
+      each pass's cells laid out concurrently, and the towns within a
+      cell done in order.
+      Every junction a block could touch is made before the passes
+      start, so JunctionTable never grows while they run.
+      Each town draws from its own random stream, so the result
+      depends only on the seed, not on thread timing.
+   */
+   private final static int cityBlockReach = 4, cityCellShift = 5;
+
+   private void layoutCityBlocksParallel() {
+      final long blockSeed = streamSeed(seed, streetStream);
+      int cellsAcross = (width >> cityCellShift) + 1;
+      int cellsDown = (height >> cityCellShift) + 1;
+      int numCells = cellsAcross * cellsDown;
+
+      // bucket towns by cell; towns in cell c are
+      // cellTowns[cellStart[c]] up to cellTowns[cellStart[c+1]]
+      final int[] cellStart = new int[numCells + 1];
+      int[] townCell = new int[numTowns + 1];
+      for (int i = 1; i <= numTowns; i++) {
+         Point p = towns[i].getCenter();
+         townCell[i] = (p.y >> cityCellShift) * cellsAcross +
+            (p.x >> cityCellShift);
+         cellStart[townCell[i] + 1]++;
+      }
+      for (int c = 0; c < numCells; c++) {
+         cellStart[c + 1] += cellStart[c];
+      }
+      final int[] cellTowns = new int[numTowns];
+      int[] fill = Arrays.copyOf(cellStart, numCells);
+      for (int i = 1; i <= numTowns; i++) {
+         cellTowns[fill[townCell[i]]++] = i;
+      }
+
+      // make every junction the blocks might look at
+      JunctionTable juncs = grid.getJunctionTable();
+      for (int i = 1; i <= numTowns; i++) {
+         Point p = towns[i].getCenter();
+         int x0 = Math.max(p.x - cityBlockReach, 0);
+         int x1 = Math.min(p.x + cityBlockReach, width - 1);
+         int y0 = Math.max(p.y - cityBlockReach, 0);
+         int y1 = Math.min(p.y + cityBlockReach, height - 1);
+         for (int y = y0; y <= y1; y++) {
+            for (int x = x0; x <= x1; x++) {
+               juncs.slotFor(grid.tile(x, y));
+            }
+         }
+      }
+
+      int[] passCells = new int[numCells];
+      for (int pass = 0; pass < 4; pass++) {
+         int n = 0;
+         for (int cy = pass >> 1; cy < cellsDown; cy += 2) {
+            for (int cx = pass & 1; cx < cellsAcross; cx += 2) {
+               int c = cy * cellsAcross + cx;
+               if (cellStart[c] < cellStart[c + 1]) {
+                  passCells[n++] = c;
+               }
+            }
+         }
+         forkJoinPool.invoke(new CityCells(passCells, 0, n, cellStart,
+                                           cellTowns, blockSeed));
+      }
+   }
+
+   // lays out the towns in cells[lo] up to cells[hi]
+   private class CityCells extends RecursiveAction {
+      private static final long serialVersionUID = 1L;
+      private final int[] cells, cellStart, cellTowns;
+      private final int lo, hi;
+      private final long blockSeed;
+
+      CityCells(int[] cells_, int lo_, int hi_, int[] cellStart_,
+                int[] cellTowns_, long blockSeed_) {
+         cells = cells_;
+         lo = lo_;
+         hi = hi_;
+         cellStart = cellStart_;
+         cellTowns = cellTowns_;
+         blockSeed = blockSeed_;
+      }
+
+      @Override
+      protected void compute() {
+         if (hi - lo > 1) {
+            int mid = (lo + hi) >>> 1;
+            invokeAll(new CityCells(cells, lo, mid, cellStart, cellTowns,
+                                    blockSeed),
+                      new CityCells(cells, mid, hi, cellStart, cellTowns,
+                                    blockSeed));
+            return;
+         }
+         int c = cells[lo];
+         for (int k = cellStart[c]; k < cellStart[c + 1]; k++) {
+            int tid = cellTowns[k];
+            layoutCityBlock(tid, (tid - 1) * streetsPerBlock,
+                            new Random(streamSeed(blockSeed, tid)));
+         }
+      }
    }
 
    // layout curvy rural roads
@@ -1140,6 +1776,252 @@ public class Realm {
                     true, false, false);
    }
 
+   // hands out the towns routes start from, in MakePaths() order:
+   // alternately the next town on the top and left edges, then
+   // any town without a route yet, last first
+   private class TownStarts {
+      private final boolean[] townUsed = new boolean[numTowns + 1];
+      private int topTownId = 0;
+      private int leftTownId = 0;
+
+      // start route number routeCount at the next town, setting here.
+      // returns its heading: south or east from an edge town, else
+      // the heading given; -1 if every town has a route already
+      int next(int routeCount, Point here, int heading) {
+         // start routes at towns at top and left edges
+         // alternate north-south and east-west routes
+         if (routeCount % 2 != 0) {
+            if (topTowns[topTownId] > 0) {
+               townUsed[topTowns[topTownId]] = true;
+               here.setLocation(towns[topTowns[topTownId++]].getCenter());
+               return Junction.south;
+            }
+         }
+         else {
+            if (leftTowns[leftTownId] > 0) {
+               townUsed[leftTowns[leftTownId]] = true;
+               here.setLocation(towns[leftTowns[leftTownId++]].getCenter());
+               return Junction.east;
+            }
+         }
+
+         // if not assigned, choose an unused city
+         for (int i = numTowns; i >= 1; i--) {
+            if (!townUsed[i]) {
+               here.setLocation(towns[i].getCenter());
+               townUsed[i] = true;
+               return heading;
+            }
+         }
+         return -1;
+      }
+   }
+
+   // give route rid a number, odd for north-south and even for
+   // east-west, and make its Route
+   private void addRoute(int rid, int heading, Point start, Point end) {
+      int pref;
+      switch (heading) {
+         case Junction.north:
+         case Junction.south:
+            pref = EName.prefOdd;
+            break;
+         default:
+            pref = EName.prefEven;
+            break;
+      }
+      int routeNum = namer.pickNewNumber(pref);
+      routes = fit(routes, rid);
+      routes[rid] = new Route(rid, routeNum, heading, start, end);
+      indexNumber(routeNum, rid);
+   }
+
+   /* === parallel town routes
+      The routes that start at towns are planned up front, taking the
+      towns in MakePaths() order, each route with its own random
+      stream. Their starts are bucketed into square regions, and the
+      regions done in four passes, one per (x,y) parity, like the city
+      blocks, with the routes within a region done in order.
+      A route may go routeRegionReach squares past its region's edges
+      and no further, so routes in regions two apart never touch the
+      same square. One that would go further stops at the edge, and is
+      carried on once the passes are done, a route at a time in order:
+      the parts of routes that cross between regions are laid out in
+      turn, so where two of them want the same squares the first one
+      there gets them, under the same cantPave rules as ever.
+      Slots made in the passes are put in tile order after, and the
+      ids of routes that went nowhere are closed up, so the result
+      depends only on the seed, not on thread timing.
+   */
+   private final static int routeRegionShift = 7, routeRegionReach = 48;
+   private final static int maxRouteLength = 300;
+
+   // where the routes from towns start, end and head, by id
+   private static class TownRoutes {
+      final Point[] from, to;
+      final int[] headings;
+      final Random[] dice;
+      final Pause[] pauses;
+
+      TownRoutes(int n) {
+         from = new Point[n + 1];
+         to = new Point[n + 1];
+         headings = new int[n + 1];
+         dice = new Random[n + 1];
+         pauses = new Pause[n + 1];
+      }
+   }
+
+   // lays out as many routes as start at towns, up to numRoutes;
+   // returns the id for the next route
+   private int layoutTownRoutesParallel(TownStarts townStarts,
+                                        int paveType) {
+      long routeSeed = streamSeed(seed, routeStream);
+      TownRoutes plan = new TownRoutes(numRoutes);
+      int n = 0;
+      while (n < numRoutes) {
+         Random dice = new Random(streamSeed(routeSeed, n + 1));
+         Point from = new Point();
+         int heading = townStarts.next(n + 1, from,
+                                       Junction.getRandomDirection90(dice));
+         if (heading < 0) {
+            break;
+         }
+         n++;
+         plan.from[n] = from;
+         plan.headings[n] = heading;
+         plan.dice[n] = dice;
+      }
+
+      // bucket routes by region; routes in region r are
+      // regionRoutes[regionStart[r]] up to regionRoutes[regionStart[r+1]]
+      int regionsAcross = (width >> routeRegionShift) + 1;
+      int regionsDown = (height >> routeRegionShift) + 1;
+      int numRegions = regionsAcross * regionsDown;
+      int[] regionStart = new int[numRegions + 1];
+      int[] routeRegion = new int[n + 1];
+      for (int k = 1; k <= n; k++) {
+         Point p = plan.from[k];
+         routeRegion[k] = (p.y >> routeRegionShift) * regionsAcross +
+            (p.x >> routeRegionShift);
+         regionStart[routeRegion[k] + 1]++;
+      }
+      for (int r = 0; r < numRegions; r++) {
+         regionStart[r + 1] += regionStart[r];
+      }
+      int[] regionRoutes = new int[n];
+      int[] fill = Arrays.copyOf(regionStart, numRegions);
+      for (int k = 1; k <= n; k++) {
+         regionRoutes[fill[routeRegion[k]]++] = k;
+      }
+
+      JunctionTable juncs = grid.getJunctionTable();
+      int firstSlot = juncs.getNumSlots();
+      routeEnds = null;  // built from the junctions when it's needed
+      int[] passRegions = new int[numRegions];
+      for (int pass = 0; pass < 4; pass++) {
+         int m = 0, passRoutes = 0;
+         for (int ry = pass >> 1; ry < regionsDown; ry += 2) {
+            for (int rx = pass & 1; rx < regionsAcross; rx += 2) {
+               int r = ry * regionsAcross + rx;
+               if (regionStart[r] < regionStart[r + 1]) {
+                  passRegions[m++] = r;
+                  passRoutes += regionStart[r + 1] - regionStart[r];
+               }
+            }
+         }
+         // a route makes a slot for its start and one for each step
+         juncs.reserve(passRoutes * (maxRouteLength + 1));
+         try {
+            forkJoinPool.invoke(new RouteRegions(passRegions, 0, m,
+                                                 regionStart, regionRoutes,
+                                                 regionsAcross, plan,
+                                                 paveType));
+         }
+         finally {
+            juncs.endReserve();
+         }
+      }
+      juncs.sortSlots(firstSlot);
+
+      // carry on the routes that reached the edge of their region
+      for (int k = 1; k <= n; k++) {
+         Pause pause = plan.pauses[k];
+         if (pause.stopped) {
+            pause.bounds = null;
+            plan.to[k] = layout(k, rcRoute, plan.to[k], plan.headings[k],
+                                paveType, maxRouteLength, true, false,
+                                false, plan.dice[k], pause);
+         }
+      }
+
+      // number the ones that went somewhere, closing up the ids
+      int[] newRid = new int[n + 1];
+      int rid = 0;
+      for (int k = 1; k <= n; k++) {
+         if (routeLength(plan.from[k], k) > 0) {
+            newRid[k] = ++rid;
+         }
+      }
+      if (rid < n) {
+         juncs.renumberRoutes(newRid);
+      }
+      for (int k = 1; k <= n; k++) {
+         if (newRid[k] > 0) {
+            addRoute(newRid[k], plan.headings[k], plan.from[k], plan.to[k]);
+         }
+      }
+      return rid + 1;
+   }
+
+   // lays out the routes from towns in regions[lo] up to regions[hi]
+   private class RouteRegions extends RecursiveAction {
+      private static final long serialVersionUID = 1L;
+      private final int[] regions, regionStart, regionRoutes;
+      private final int lo, hi, regionsAcross, paveType;
+      private final TownRoutes plan;
+
+      RouteRegions(int[] regions_, int lo_, int hi_, int[] regionStart_,
+                   int[] regionRoutes_, int regionsAcross_,
+                   TownRoutes plan_, int paveType_) {
+         regions = regions_;
+         lo = lo_;
+         hi = hi_;
+         regionStart = regionStart_;
+         regionRoutes = regionRoutes_;
+         regionsAcross = regionsAcross_;
+         plan = plan_;
+         paveType = paveType_;
+      }
+
+      @Override
+      protected void compute() {
+         if (hi - lo > 1) {
+            int mid = (lo + hi) >>> 1;
+            invokeAll(new RouteRegions(regions, lo, mid, regionStart,
+                                       regionRoutes, regionsAcross, plan,
+                                       paveType),
+                      new RouteRegions(regions, mid, hi, regionStart,
+                                       regionRoutes, regionsAcross, plan,
+                                       paveType));
+            return;
+         }
+         int r = regions[lo];
+         int size = 1 << routeRegionShift;
+         Rectangle bounds = new Rectangle(
+            (r % regionsAcross << routeRegionShift) - routeRegionReach,
+            (r / regionsAcross << routeRegionShift) - routeRegionReach,
+            size + 2 * routeRegionReach, size + 2 * routeRegionReach);
+         for (int i = regionStart[r]; i < regionStart[r + 1]; i++) {
+            int k = regionRoutes[i];
+            Pause pause = plan.pauses[k] = new Pause(bounds);
+            plan.to[k] = layout(k, rcRoute, plan.from[k], plan.headings[k],
+                                paveType, maxRouteLength, true, false,
+                                false, plan.dice[k], pause);
+         }
+      }
+   }
+
    // lay out highways
    void MakePaths() {
       int heading;   // current global direction
@@ -1150,37 +2032,37 @@ public class Realm {
       int routeCount;   // how many routes generated
       int pavementType;  // undiv2, etc.
       int currentSid = 0;
-      int topTownId = 0;
-      int leftTownId = 0;
+
+      // the coastline is final now; forget anything cached before it
+      pavable.reset();
 
       // keep track of which town has been served by a route start
-      boolean townUsed[] = new boolean[numTowns+1];
-      for (int i = 1; i <= numTowns; i++) {
-         townUsed[i] = false;
-      }
+      TownStarts townStarts = new TownStarts();
 
       // choose pavement type - undiv2 for now
       pavementType = Junction.undiv2;
 
       // give each town a 5x5 block of streets
-      for (int i = 1; i <= numTowns; i++) {
-         here.setLocation(towns[i].getCenter());
-         for (int j = 0; j <= 4; j++) {
-            // vertical
-            next.x = here.x + j - 2;
-            next.y = here.y + 2;
-            layoutCityStreet(++currentSid, next, Junction.north, 4);
-            streetNames[currentSid] = namer.pickNewStreetName();
-            // horizontal
-            next.x = here.x - 2;
-            next.y = here.y + j - 2;
-            layoutCityStreet(++currentSid, next, Junction.east, 4);
-            streetNames[currentSid] = namer.pickNewStreetName();
+      long blocksStart = System.nanoTime();
+      if (pathLayout == pathsParallel) {
+         layoutCityBlocksParallel();
+      }
+      else {
+         for (int i = 1; i <= numTowns; i++) {
+            layoutCityBlock(i, (i - 1) * streetsPerBlock, streetDice);
          }
       }
+      profile.addStageNanos(GenerationProfile.cityBlocks,
+                            System.nanoTime() - blocksStart);
+      for (int i = 1; i <= numTowns * streetsPerBlock; i++) {
+         setStreetName(++currentSid, namer.pickNewStreetName());
+      }
 
-      Point notSet = new Point(0, 0);
-      for (routeCount=1; routeCount <= numRoutes;) {
+      routeCount = 1;
+      if (pathLayout == pathsParallel) {
+         routeCount = layoutTownRoutesParallel(townStarts, pavementType);
+      }
+      for (; routeCount <= numRoutes;) {
 
          // starting points: alternate n/s routes from top towns,
          // then e/w routes from left towns,m
@@ -1189,66 +2071,38 @@ public class Realm {
 
          // need a n,s,e, or w heading; no diagonal
          // this will be the heading unless reassigned
-         heading = Junction.getRandomDirection90();
-         here.setLocation(notSet);  // not assigned
+         heading = Junction.getRandomDirection90(routeDice);
+         int townHeading = townStarts.next(routeCount, here, heading);
 
-         // start routes at towns at top and left edges
-         // alternate north-south and east-west routes
-         if (routeCount % 2 != 0) {
-            if (topTowns[topTownId] > 0) {
-               townUsed[topTowns[topTownId]] = true;
-               here.setLocation(towns[topTowns[topTownId++]].getCenter());
-               heading = Junction.south;
-            }
+         // if all cities used up, choose a random spot
+         if (townHeading >= 0) {
+            heading = townHeading;
          }
          else {
-            if (leftTowns[leftTownId] > 0) {
-               townUsed[leftTowns[leftTownId]] = true;
-               here.setLocation(towns[leftTowns[leftTownId++]].getCenter());
-               heading = Junction.east;
+            int turns = 0;
+            while (!pickRouteStart(here, heading, true) && ++turns < 4) {
+               // nowhere to start this way; try another
+               heading = (heading + 2) % Junction.numDirs;
             }
-         }
-        
-         // if not assigned, choose an unused city
-         if (here.equals(notSet)) {
-            for (int i = numTowns; i >= 1; i--) {
-               if (!townUsed[i]) {
-                  here.setLocation(towns[i].getCenter());
-                  townUsed[i] = true;
-                  break;
-               }
+            if (turns == 4) {
+               break;  // no roads left to start from
             }
          }
 
-         // if all cities used up, choose a random spot
-         if (here.equals(notSet)) {
-            pickRouteStart(here, heading, true);
-         }
-
          // lay out the route; save start and end
          start.setLocation(here);
          end.setLocation(layout(routeCount, rcRoute, here, heading, 
-                                pavementType, 300, true, false, false));
+                                pavementType, maxRouteLength, true, false,
+                                false));
 
          // if route has nonzero length, give it a number
          // and go to next one
          if (routeLength(start, routeCount) > 0) {
-            int pref;
-            switch (heading) {
-               case Junction.north:
-               case Junction.south:
-                  pref = EName.prefOdd;
-                  break;
-               default:
-                  pref = EName.prefEven;
-                  break;
-            }
-            int routeNum = namer.pickNewNumber(pref);
-            routes[routeCount] = 
-               new Route(routeCount, routeNum, heading, start, end);
+            addRoute(routeCount, heading, start, end);
             routeCount++;
          }
       } // for all routes
+      numRoutes = routeCount - 1;
 
       // extend dead ends backwards, if feasible
       // go backwards and die at first road you meet
@@ -1256,68 +2110,235 @@ public class Realm {
          here.setLocation(routes[i].getStart());
          heading = routes[i].getLogDirection();
          here = layout(i, rcRoute, here, heading, pavementType, 
-                            300, false, true, false);
+                            maxRouteLength, false, true, false);
          routes[i].setStart(here);
       }
 
       // do some rural streets
       for (int i = 1; i <= numRuralRoads; i++) {
-         heading = Junction.getRandomDirection90();
-         pickStreetStart(here, heading, true);
+         heading = Junction.getRandomDirection90(streetDice);
+         if (!pickStreetStart(here, heading, true)) {
+            continue;
+         }
          layoutRuralRoad(++currentSid, here, heading, 96);
-         streetNames[currentSid] = namer.pickNewRuralStreetName();
+         setStreetName(currentSid, namer.pickNewRuralStreetName());
       }
       numSids = currentSid;
 
    }
 
+   // make room in an id table for index i, doubling as it fills
+   private static <T> T[] fit(T[] table, int i) {
+      if (i < table.length) {
+         return table;
+      }
+      return Arrays.copyOf(table, Math.max(i + 1, table.length * 2));
+   }
+
+   private static int[] fit(int[] table, int i) {
+      if (i < table.length) {
+         return table;
+      }
+      return Arrays.copyOf(table, Math.max(i + 1, table.length * 2));
+   }
+
+   // lookup tables -----------
+   // same folding as String.equalsIgnoreCase(), so equal keys
+   // mean equalsIgnoreCase() names.
+   private static String foldName(String name) {
+      char[] c = name.toCharArray();
+      for (int i = 0; i < c.length; i++) {
+         c[i] = Character.toLowerCase(Character.toUpperCase(c[i]));
+      }
+      return new String(c);
+   }
+
+   // map name to id unless a lower id already has that name
+   private static void indexName(HashMap<String, Integer> index,
+                                 String name, int id) {
+      String key = foldName(name);
+      Integer had = index.get(key);
+      if (had == null || had > id) {
+         index.put(key, id);
+      }
+   }
+
+   private void indexNumber(int rNumber, int rid) {
+      Integer had = ridByNumber.get(rNumber);
+      if (had == null || had > rid) {
+         ridByNumber.put(rNumber, rid);
+      }
+   }
+
+   private static int lookup(HashMap<?, Integer> index, Object key) {
+      Integer id = index.get(key);
+      return id == null ? 0 : id;
+   }
+
+   private void setStreetName(int sid, String name) {
+      streetNames = fit(streetNames, sid);
+      streetNames[sid] = name;
+      indexName(sidByName, name, sid);
+   }
+
    // changing things
+   // if another route, street or town has the old name, it takes over
+   // the old name in the lookup table.
    void changeRoute(int oldNumber, int newNumber) {
-      for (int i = 1; i <= numRoutes; i++) {
+      int rid = getRouteId(oldNumber);
+      if (rid == 0) {
+         return;
+      }
+      if (journal != null) {
+         journal.renumber(oldNumber, newNumber);
+      }
+      allRoutesChanged();
+      routes[rid].setNumber(newNumber);
+      ridByNumber.remove(oldNumber);
+      for (int i = rid + 1; i <= numRoutes; i++) {
          if (routes[i].getNumber() == oldNumber) {
-            routes[i].setNumber(newNumber);
-            return;
+            ridByNumber.put(oldNumber, i);
+            break;
          }
       }
+      indexNumber(newNumber, rid);
    }
 
    void changeStreet(String old, String anew) {
-      for (int i = 1; i <= numSids; i++) {
+      int sid = getSId(old);
+      if (sid == 0) {
+         return;
+      }
+      if (journal != null) {
+         journal.renameStreet(old, anew);
+      }
+      allRoutesChanged();
+      streetNames[sid] = new String(anew);
+      sidByName.remove(foldName(old));
+      for (int i = sid + 1; i <= numSids; i++) {
          if (streetNames[i].equalsIgnoreCase(old)) {
-            streetNames[i] = new String(anew);
-            return;
+            sidByName.put(foldName(old), i);
+            break;
          }
       }
+      indexName(sidByName, anew, sid);
    }
 
    void changeTown(String old, String anew) { 
-      for (int i = 1; i <= numTowns; i++) {
+      int tid = lookup(tidByName, foldName(old));
+      if (tid == 0) {
+         return;
+      }
+      if (journal != null) {
+         journal.renameTown(old, anew);
+      }
+      allRoutesChanged();
+      towns[tid].setName(anew);
+      tidByName.remove(foldName(old));
+      for (int i = tid + 1; i <= numTowns; i++) {
          if (towns[i].getName().equalsIgnoreCase(old)) {
-            towns[i].setName(anew);
-            return;
+            tidByName.put(foldName(old), i);
+            break;
          }
       }
+      indexName(tidByName, anew, tid);
    }
 
-   // find out route Id
-   public int getRouteId(int rNumber) {
-      for (int i = 1; i <= getNumRoutes(); i++) {
-         if (routes[i].getNumber() == rNumber) {
-            return i;
+   // the milepost index the log and map share, made on first use;
+   // it hears of edits from then on
+   synchronized MilepostIndex getMileposts() {
+      if (mileposts == null) {
+         mileposts = new MilepostIndex(this);
+         addRouteListener(mileposts);
+      }
+      return mileposts;
+   }
+
+   // listeners hear in the order they were added
+   void addRouteListener(RouteListener listener) {
+      routeListeners = Arrays.copyOf(routeListeners,
+                                     routeListeners.length + 1);
+      routeListeners[routeListeners.length - 1] = listener;
+   }
+
+   private void routeChanged(int rid) {
+      for (RouteListener l: routeListeners) {
+         l.routeChanged(rid);
+      }
+   }
+
+   private void allRoutesChanged() {
+      for (RouteListener l: routeListeners) {
+         l.allRoutesChanged();
+      }
+   }
+
+   // changing the leg out of (x,y) can change what the log says at
+   // either end of it, for every route through there.
+   // called before and after, to catch routes added and removed.
+   private void routesAtLeg(int x, int y, int heading) {
+      if (routeListeners.length == 0) {
+         return;
+      }
+      int here = grid.tile(x, y);
+      routesAt(here);
+      routesAt(stepTile(here, heading));
+   }
+
+   private void routesAt(int tile) {
+      JunctionTable juncs = grid.getJunctionTable();
+      int slot = juncs.slotAt(tile);
+      if (slot == 0) {
+         return;
+      }
+      for (int dir = 0; dir < Junction.numDirs; dir++) {
+         for (int which = 0; which <= 1; which++) {
+            int rid = juncs.ridAt(slot, dir, which);
+            if (rid > 0) {
+               routeChanged(rid);
+            }
          }
       }
-      return 0; // not found
+   }
+
+   // editor changes go to this journal from now on; null for none
+   void setJournal(RealmJournal journal_) {
+      journal = journal_;
+   }
+
+   public RealmJournal getJournal() {
+      return journal;
+   }
+
+   boolean onMap(int x, int y) {
+      return x >= 0 && y >= 0 && x < width && y < height;
+   }
+
+   // find out route Id
+   public int getRouteId(int rNumber) {
+      return lookup(ridByNumber, rNumber);
    }
 
    // used for paver. creates new route if you give it a new number.
    public int getRouteIdOrCreate(int rNumber, Point here, int heading,
                                  int logHeading) {
+      if (journal != null && getRouteId(rNumber) == 0) {
+         journal.newRoute(rNumber, here.x, here.y, heading, logHeading);
+      }
+      return getRouteIdOrCreate(rNumber, here.x, here.y, heading, logHeading);
+   }
+
+   int getRouteIdOrCreate(int rNumber, int x, int y, int heading,
+                          int logHeading) {
       int rid = getRouteId(rNumber);
       if (rid == 0) {
          // not found; make new one
+         Point here = new Point(x, y);
          Point next = new Point(here);
          Junction.move(next, heading);
-         routes[++numRoutes] = new Route(numRoutes, rNumber, logHeading, here, next);
+         routes = fit(routes, ++numRoutes);
+         routes[numRoutes] = new Route(numRoutes, rNumber, logHeading, here, next);
+         indexNumber(rNumber, numRoutes);
          return numRoutes;
       }
       return rid;
@@ -1325,12 +2346,7 @@ public class Realm {
 
    // find out street Id. Don't give it an empty street.
    public int getSId(String sName) {
-      for (int i = 1; i <= numSids; i++) {
-         if (streetNames[i].equalsIgnoreCase(sName)) {
-            return i;
-         }
-      }
-      return 0;
+      return lookup(sidByName, foldName(sName));
    }
 
    // used for paver. creates new street if you give it a new number.
@@ -1340,7 +2356,7 @@ public class Realm {
       }
       int sid = getSId(sName);
       if (sid == 0) {
-         streetNames[++numSids] = new String(sName);
+         setStreetName(++numSids, new String(sName));
          return numSids;
       }
       return sid;
@@ -1355,22 +2371,17 @@ public class Realm {
    }
 
    public boolean townExists(String name) {
-	   for (Town town: towns) {
-		   if (town.getName().equalsIgnoreCase(name)) {
-			   return true;
-		   }   
-	   }
-	   return false;
+      return lookup(tidByName, foldName(name)) > 0;
    }
 
 	// print towns to stdout
 	void dump() {
       for (int y = 0; y < height; y++) {
          for (int x = 0; x < width; x++) {
-				switch ( grid[x][y].getTerrain()) {
+				switch ( grid.getTerrain(x, y)) {
 					case Square.water: System.out.print('.'); break;
 					case Square.land:
-                  System.out.print((char)('0' +  grid[x][y].getTown())); break;
+                  System.out.print((char)('0' +  grid.getTown(x, y))); break;
 				}
 			}
 			System.out.println("");
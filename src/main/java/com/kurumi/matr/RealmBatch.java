@@ -0,0 +1,202 @@
+package com.kurumi.matr;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Headless bulk realm generator; the batch counterpart of Empire.main.
+ * Creates realms for a run of seeds on a pool of worker threads, and
+ * writes one CSV line per realm: its size, towns, routes, total
+ * highway mileage (from HighwayLog) and how long each step took.
+ * Opens no windows, so it runs fine on a server.
+ *
+ * usage: RealmBatch [-count n] [-seed first] [-threads t]
+ *                   [-size width height] [-routes r] [-parallel]
+ *                   [-out file.csv]
+ * Seeds run from first to first+n-1; lines come out in seed order.
+ * -parallel lays out each realm's paths and logs its routes on all
+ * cores, for big realms that would keep one worker busy for long.
+ * The workers share one fork-join pool for that, so there are never
+ * more threads than workers plus cores.
+ * Without -out, the CSV goes to standard output.
+ *
+ * @author soglesby
+ *
+ */
+public class RealmBatch {
+   // what we learn from one realm
+   static class Result {
+      long seed;
+      int width, height, towns, routes;
+      int total100s;  // total route mileage in centimiles
+      long createNanos, logNanos;
+   }
+
+   static final String csvHeader =
+      "seed,width,height,towns,routes,total_miles,create_ms,log_ms";
+
+   private int count = 10;
+   private long firstSeed = 1;
+   private int threads = Runtime.getRuntime().availableProcessors();
+   // same defaults as Empire's Create button
+   private int width = 100;
+   private int height = 64;
+   private int numRoutes = 10;
+   private boolean parallelPaths = false;
+   private String outFile = null;
+
+   // make and measure one realm
+   Result generate(long seed) {
+      Result res = new Result();
+      res.seed = seed;
+      res.width = width;
+      res.height = height;
+
+      long t0 = System.nanoTime();
+      Realm realm = new Realm(width, height, numRoutes);
+      realm.setSeed(seed);
+      if (parallelPaths) {
+         realm.setPathLayout(Realm.pathsParallel);
+      }
+      realm.create();
+      long t1 = System.nanoTime();
+      HighwayLog log = new HighwayLog(realm);
+      if (parallelPaths) {
+         log.logAllRoutesParallel();
+      }
+      else {
+         log.logAllRoutes();
+      }
+      long t2 = System.nanoTime();
+
+      res.towns = realm.getNumTowns();
+      res.routes = realm.getNumRoutes();
+      res.total100s = log.getTotalMileage();
+      res.createNanos = t1 - t0;
+      res.logNanos = t2 - t1;
+      return res;
+   }
+
+   static String csvLine(Result res) {
+      return res.seed + "," + res.width + "," + res.height + "," +
+         res.towns + "," + res.routes + "," +
+         HighwayLog.mile100String(res.total100s) + "," +
+         String.format("%.1f,%.1f", res.createNanos / 1e6,
+                       res.logNanos / 1e6);
+   }
+
+   // generate all realms, writing lines in seed order as they finish
+   void run(PrintWriter out) throws InterruptedException,
+      ExecutionException {
+      ExecutorService pool = Executors.newFixedThreadPool(threads);
+      try {
+         List<Future<Result>> results = new ArrayList<Future<Result>>();
+         for (int i = 0; i < count; i++) {
+            final long seed = firstSeed + i;
+            results.add(pool.submit(new Callable<Result>() {
+               @Override
+               public Result call() {
+                  return generate(seed);
+               }
+            }));
+         }
+         out.println(csvHeader);
+         for (Future<Result> f: results) {
+            out.println(csvLine(f.get()));
+            out.flush();
+         }
+      }
+      finally {
+         pool.shutdownNow();
+      }
+   }
+
+   private static void usage(String problem) {
+      System.err.println(problem);
+      System.err.println("usage: RealmBatch [-count n] [-seed first] " +
+                         "[-threads t] [-size width height] [-routes r] " +
+                         "[-parallel] [-out file.csv]");
+      System.exit(2);
+   }
+
+   // returns false if arguments don't make sense
+   boolean parseArgs(String[] args) {
+      try {
+         for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("-count")) {
+               count = Integer.parseInt(args[++i]);
+            }
+            else if (arg.equals("-seed")) {
+               firstSeed = Long.parseLong(args[++i]);
+            }
+            else if (arg.equals("-threads")) {
+               threads = Integer.parseInt(args[++i]);
+            }
+            else if (arg.equals("-size")) {
+               width = Integer.parseInt(args[++i]);
+               height = Integer.parseInt(args[++i]);
+            }
+            else if (arg.equals("-routes")) {
+               numRoutes = Integer.parseInt(args[++i]);
+            }
+            else if (arg.equals("-parallel")) {
+               parallelPaths = true;
+            }
+            else if (arg.equals("-out")) {
+               outFile = args[++i];
+            }
+            else {
+               return false;
+            }
+         }
+      }
+      catch (NumberFormatException e) {
+         return false;
+      }
+      catch (ArrayIndexOutOfBoundsException e) {
+         return false;
+      }
+      return count > 0 && threads > 0 && width > 0 && height > 0 &&
+         numRoutes >= 0;
+   }
+
+   public static void main(String[] args) throws Exception {
+      System.setProperty("java.awt.headless", "true");
+      RealmBatch batch = new RealmBatch();
+      if (!batch.parseArgs(args)) {
+         usage("bad arguments");
+      }
+
+      PrintWriter out;
+      if (batch.outFile == null) {
+         out = new PrintWriter(System.out);
+      }
+      else {
+         try {
+            out = new PrintWriter(new FileWriter(batch.outFile));
+         }
+         catch (IOException e) {
+            usage("can't write " + batch.outFile + ": " + e.getMessage());
+            return;
+         }
+      }
+      try {
+         batch.run(out);
+      }
+      finally {
+         out.flush();
+         if (batch.outFile != null) {
+            out.close();
+         }
+      }
+   }
+}
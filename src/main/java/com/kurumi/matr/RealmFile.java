@@ -0,0 +1,1106 @@
+package com.kurumi.matr;
+
+import java.awt.Point;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Saves a Realm to a binary file and reads it back.
+ * Everything is streamed through one buffer straight from and into
+ * the realm's own tables, so a big realm never exists twice in memory.
+ * map() goes further: it reads tiles and junctions only as they're
+ * looked at.
+ *
+ * Layout (big-endian), version 1:
+ *   int magic "MATR", int version
+ *   int width, int height, byte flags, long seed
+ *   int numTowns, int numStreets, int numRoutes
+ *   tiles and junctions, flat or compressed; see below
+ *   towns 1..numTowns: name, center x, center y, area
+ *   street names 1..numStreets
+ *   routes 1..numRoutes: number, log direction, start x,y, end x,y
+ *   top towns, left towns: int count, then ids
+ *   int magic again, to catch truncated files
+ * Strings are an int byte count (-1 for null) and UTF-8 bytes.
+ * Tiles and junctions are kept in pages of JunctionTable.getPageSize()
+ * tiles. Flat, they are:
+ *   tiles, in tile order: byte terrain | hint << 4
+ *   town ids, in tile order, townBytes() bytes each
+ *   int # junctions, int # pages, long file position of the tables;
+ *     for each page: int # junctions, long file position of its first
+ *   junctions, in tile order: int tile, int layout word,
+ *     byte legs (bit per leg with pavement or codes),
+ *     then for each such leg: rd0, rd1, sd
+ * Compressed (the flags say so), they are:
+ *   int # junctions, int # pages, long file position of the tables;
+ *     for each page: long file position of its tiles, int # bytes of
+ *     tiles, int # bytes of junctions, int # junctions,
+ *     int # bytes of junctions inflated
+ *   for each page, deflated: the page's tile bytes and then its town
+ *     ids, as above; then its junction records, as above.
+ *     A page of nothing but open sea has no tile bytes at all,
+ *     and a page without junctions no junction bytes.
+ * Realms are mostly sea rim, whole towns and empty junction slots, so
+ * compressed files are several times smaller; each page can still be
+ * inflated by itself. Flat files can have their tiles mapped in place.
+ *
+ * @author soglesby
+ *
+ */
+public class RealmFile {
+   static final int magic = 0x4D415452;  // "MATR"
+   static final int version = 1;
+
+   // header flags
+   private static final int compressedFlag = 1;
+
+   private static final int headerSize = 37;  // bytes, through numRoutes
+   private static final int pageEntrySize = 12;  // flat
+   private static final int packedEntrySize = 24;  // compressed
+   private static final int bufferSize = 1 << 16;
+   private static final int maxString = 1 << 16;  // longest name we'll read
+   private static final Charset utf8 = Charset.forName("UTF-8");
+   // biggest junction record
+   private static final int maxRecord = 9 + 12 * Junction.numDirs;
+
+   // open() maps realms with at least this many tiles, and loads
+   // smaller ones
+   static final long mapThreshold = 1L << 24;
+
+   private RealmFile() {
+   }
+
+   // bytes per town id on disk
+   private static int townBytes(int numTowns) {
+      if (numTowns < 1 << 8) {
+         return 1;
+      }
+      return numTowns < 1 << 16 ? 2 : 4;
+   }
+
+   // slots that never got anything aren't saved
+   private static boolean isSaved(JunctionTable juncs, int slot) {
+      return slot != 0 && juncs.usedLegs(slot) != 0 ||
+         juncs.layoutWord(slot) != 0;
+   }
+
+   private static int recordSize(JunctionTable juncs, int slot) {
+      return 9 + 12 * Integer.bitCount(juncs.usedLegs(slot));
+   }
+
+   /**
+    * Write a realm to a compressed file, replacing anything already
+    * there. Same as save(realm, path, true).
+    * @param realm the realm to save
+    * @param path file to write
+    * @throws IOException if the file can't be written
+    */
+   public static void save(Realm realm, Path path) throws IOException {
+      save(realm, path, true);
+   }
+
+   /**
+    * Write a realm to a file, replacing anything already there.
+    * Writes to a temporary file first and then moves it into place,
+    * so a realm mapped from the same file keeps working.
+    * @param realm the realm to save
+    * @param path file to write
+    * @param compressed true for a small file, false for one whose tiles
+    *    map() can use in place
+    * @throws IOException if the file can't be written
+    */
+   public static void save(Realm realm, Path path, boolean compressed)
+      throws IOException {
+      Path dir = path.toAbsolutePath().getParent();
+      Path tmp = Files.createTempFile(dir, path.getFileName().toString(),
+                                      ".tmp");
+      try {
+         try (FileChannel ch = FileChannel.open(tmp,
+               StandardOpenOption.WRITE,
+               StandardOpenOption.TRUNCATE_EXISTING)) {
+            write(realm, ch, compressed);
+         }
+         try {
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+         }
+         catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+         }
+      }
+      finally {
+         Files.deleteIfExists(tmp);
+      }
+   }
+
+   /**
+    * Read a realm written by save() into memory.
+    * @param path file to read
+    * @return the realm, ready to map, log or edit
+    * @throws IOException if the file can't be read or isn't a realm
+    */
+   public static Realm load(Path path) throws IOException {
+      try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+         return read(new In(ch));
+      }
+   }
+
+   /**
+    * Open a realm written by save() without reading it all in.
+    * Each page of junctions is copied in the first time it's touched,
+    * so opening is quick and the heap holds only what's been viewed.
+    * Tiles of a flat file are read from the mapped file as they're
+    * asked for; those of a compressed file are inflated when it's
+    * opened, into memory off the heap. Either way they're read-only;
+    * see MappedRealmGrid.
+    * @param path file to map
+    * @return the realm
+    * @throws IOException if the file can't be read or isn't a realm
+    */
+   public static Realm map(Path path) throws IOException {
+      try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+         Header h = readHeader(new In(ch));
+         return h.compressed ? mapCompressed(ch, h) : mapFlat(ch, h);
+      }
+   }
+
+   private static Realm mapFlat(FileChannel ch, Header h)
+      throws IOException {
+      int size = h.width * h.height;
+      int townBytes = townBytes(h.numTowns);
+      long townsPos = headerSize + (long) size;
+      long juncsPos = townsPos + (long) size * townBytes;
+      ByteBuffer tiles = map(ch, headerSize, size);
+      ByteBuffer towns = map(ch, townsPos, (long) size * townBytes);
+
+      ch.position(juncsPos);
+      In in = new In(ch);
+      in.getInt();  // # junctions
+      int numPages = in.getInt();
+      long tablesPos = in.getLong();
+      checkPages(numPages, size);
+      long dirPos = juncsPos + 16;
+      long recordsPos = dirPos + (long) numPages * pageEntrySize;
+      ByteBuffer directory = map(ch, dirPos,
+                                 (long) numPages * pageEntrySize);
+      ByteBuffer records = map(ch, recordsPos, tablesPos - recordsPos);
+
+      Realm realm = new Realm(new MappedRealmGrid(h.width, h.height,
+                                                  tiles, towns, townBytes),
+                              h.numRoutes);
+      realm.restore(h.seed, h.numTowns, h.numStreets, h.numRoutes);
+      realm.grid.getJunctionTable().setPageSource(
+         new MappedJunctions(directory, records, recordsPos, size));
+
+      ch.position(tablesPos);
+      readTables(new In(ch), realm, h);
+      return realm;
+   }
+
+   private static Realm mapCompressed(FileChannel ch, Header h)
+      throws IOException {
+      int size = h.width * h.height;
+      int townBytes = townBytes(h.numTowns);
+      if ((long) size * townBytes > Integer.MAX_VALUE) {
+         throw new IOException("realm too big to map; load it instead");
+      }
+      ch.position(headerSize);
+      In in = new In(ch);
+      in.getInt();  // # junctions
+      Pages pages = new Pages(in.getInt(), size);
+      long tablesPos = in.getLong();
+      pages.tablesPos = tablesPos;
+      pages.read(in);
+      long packedPos = headerSize + 16 +
+         (long) pages.count * packedEntrySize;
+      ByteBuffer packed = map(ch, packedPos, tablesPos - packedPos);
+
+      // tiles, inflated off the heap
+      ByteBuffer tiles = ByteBuffer.allocateDirect(size);
+      ByteBuffer towns = ByteBuffer.allocateDirect(size * townBytes);
+      int pageSize = JunctionTable.getPageSize();
+      byte[] raw = new byte[pageSize * (1 + townBytes)];
+      byte[] buf = new byte[bufferSize];
+      Inflater inflater = new Inflater();
+      try {
+         for (int p = 0; p < pages.count; p++) {
+            int first = p * pageSize;
+            int n = Math.min(pageSize, size - first);
+            if (pages.tileBytes[p] == 0) {
+               continue;  // direct buffers start out zero: open sea
+            }
+            buf = pages.get(packed, packedPos, p, false, buf);
+            inflate(inflater, buf, pages.tileBytes[p], raw,
+                    n * (1 + townBytes));
+            tiles.position(first);
+            tiles.put(raw, 0, n);
+            towns.position(first * townBytes);
+            towns.put(raw, n, n * townBytes);
+         }
+      }
+      finally {
+         inflater.end();
+      }
+      tiles.clear();
+      towns.clear();
+
+      Realm realm = new Realm(new MappedRealmGrid(h.width, h.height,
+                                                  tiles, towns, townBytes),
+                              h.numRoutes);
+      realm.restore(h.seed, h.numTowns, h.numStreets, h.numRoutes);
+      realm.grid.getJunctionTable().setPageSource(
+         new PackedJunctions(pages, packed, packedPos, size));
+
+      ch.position(tablesPos);
+      readTables(new In(ch), realm, h);
+      return realm;
+   }
+
+   /**
+    * Map big realms and load small ones.
+    * @param path file to open
+    * @return the realm
+    * @throws IOException if the file can't be read or isn't a realm
+    */
+   public static Realm open(Path path) throws IOException {
+      Header h;
+      try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+         h = readHeader(new In(ch));
+      }
+      return (long) h.width * h.height >= mapThreshold ?
+         map(path) : load(path);
+   }
+
+   private static ByteBuffer map(FileChannel ch, long pos, long len)
+      throws IOException {
+      if (len < 0 || pos + len > ch.size()) {
+         throw new IOException("corrupt realm file: section past end");
+      }
+      if (len > Integer.MAX_VALUE) {
+         throw new IOException("realm too big to map; load it instead");
+      }
+      return ch.map(FileChannel.MapMode.READ_ONLY, pos, len);
+   }
+
+   private static void checkPages(int numPages, int size) throws IOException {
+      int pageSize = JunctionTable.getPageSize();
+      if (numPages != (size + pageSize - 1) / pageSize) {
+         throw new IOException("corrupt realm file page directory");
+      }
+   }
+
+   private static void write(Realm realm, FileChannel ch, boolean compressed)
+      throws IOException {
+      int numTowns = realm.getNumTowns();
+      int numStreets = realm.getNumStreets();
+      int numRoutes = realm.getNumRoutes();
+      Out out = new Out(ch);
+
+      out.putInt(magic);
+      out.putInt(version);
+      out.putInt(realm.getWidth());
+      out.putInt(realm.getHeight());
+      out.putByte(compressed ? compressedFlag : 0);
+      out.putLong(realm.getSeed());
+      out.putInt(numTowns);
+      out.putInt(numStreets);
+      out.putInt(numRoutes);
+
+      Pages pages = null;
+      if (compressed) {
+         pages = writeCompressed(realm, out);
+      }
+      else {
+         writeFlat(realm, out);
+      }
+
+      // tables
+      for (int tid = 1; tid <= numTowns; tid++) {
+         Town town = realm.towns[tid];
+         out.putString(town.getName());
+         out.putInt(town.getCenter().x);
+         out.putInt(town.getCenter().y);
+         out.putInt(town.getArea());
+      }
+      for (int sid = 1; sid <= numStreets; sid++) {
+         out.putString(realm.streetNames[sid]);
+      }
+      for (int rid = 1; rid <= numRoutes; rid++) {
+         Route route = realm.routes[rid];
+         out.putInt(route.getNumber());
+         out.putInt(route.getLogDirection());
+         out.putInt(route.getStart().x);
+         out.putInt(route.getStart().y);
+         out.putInt(route.getEnd().x);
+         out.putInt(route.getEnd().y);
+      }
+      writeEdgeTowns(realm.topTowns, out);
+      writeEdgeTowns(realm.leftTowns, out);
+      out.putInt(magic);
+      out.flush();
+
+      if (pages != null) {
+         // now the directory can be filled in
+         ByteBuffer dir = ByteBuffer.allocate(16 + pages.count *
+                                              packedEntrySize);
+         dir.putInt(pages.numJunctions);
+         dir.putInt(pages.count);
+         dir.putLong(pages.tablesPos);
+         for (int p = 0; p < pages.count; p++) {
+            dir.putLong(pages.pos[p]);
+            dir.putInt(pages.tileBytes[p]);
+            dir.putInt(pages.juncBytes[p]);
+            dir.putInt(pages.juncCount[p]);
+            dir.putInt(pages.juncRaw[p]);
+         }
+         dir.flip();
+         long at = headerSize;
+         while (dir.hasRemaining()) {
+            at += ch.write(dir, at);
+         }
+      }
+   }
+
+   private static void writeFlat(Realm realm, Out out) throws IOException {
+      RealmGrid grid = realm.grid;
+      JunctionTable juncs = grid.getJunctionTable();
+
+      // tiles
+      int width = grid.getWidth();
+      int size = grid.size();
+      for (int t = 0; t < size; t++) {
+         int x = t % width, y = t / width;
+         out.putByte(grid.getTerrain(t) | grid.getDisplayHint(x, y) << 4);
+      }
+      int townBytes = townBytes(realm.getNumTowns());
+      for (int t = 0; t < size; t++) {
+         out.putUnsigned(grid.getTown(t), townBytes);
+      }
+
+      // junctions: size them up by page for the directory first
+      int pageSize = JunctionTable.getPageSize();
+      int numPages = (size + pageSize - 1) / pageSize;
+      int[] pageCounts = new int[numPages];
+      long[] pageBytes = new long[numPages];
+      int numJunctions = 0;
+      for (int t = 0; t < size; t++) {
+         int slot = juncs.slotAt(t);
+         if (isSaved(juncs, slot)) {
+            pageCounts[t / pageSize]++;
+            pageBytes[t / pageSize] += recordSize(juncs, slot);
+            numJunctions++;
+         }
+      }
+      long pos = out.position() + 16 + (long) numPages * pageEntrySize;
+      long tablesPos = pos;
+      for (long b: pageBytes) {
+         tablesPos += b;
+      }
+      out.putInt(numJunctions);
+      out.putInt(numPages);
+      out.putLong(tablesPos);
+      for (int p = 0; p < numPages; p++) {
+         out.putInt(pageCounts[p]);
+         out.putLong(pos);
+         pos += pageBytes[p];
+      }
+      ByteBuffer record = ByteBuffer.allocate(maxRecord);
+      for (int t = 0; t < size; t++) {
+         int slot = juncs.slotAt(t);
+         if (isSaved(juncs, slot)) {
+            record.clear();
+            putJunction(juncs, slot, t, record);
+            out.putBytes(record.array(), record.position());
+         }
+      }
+      if (out.position() != tablesPos) {
+         throw new IllegalStateException("junction records miscounted");
+      }
+   }
+
+   // the directory is left blank, to be filled in by write() from
+   // the Pages returned once the rest of the file is out
+   private static Pages writeCompressed(Realm realm, Out out)
+      throws IOException {
+      RealmGrid grid = realm.grid;
+      JunctionTable juncs = grid.getJunctionTable();
+      int width = grid.getWidth();
+      int size = grid.size();
+      int townBytes = townBytes(realm.getNumTowns());
+      int pageSize = JunctionTable.getPageSize();
+      Pages pages = new Pages((size + pageSize - 1) / pageSize, size);
+
+      for (int i = 0; i < 16 + pages.count * packedEntrySize; i++) {
+         out.putByte(0);
+      }
+
+      ByteBuffer raw = ByteBuffer.allocate(pageSize * maxRecord);
+      byte[] buf = new byte[bufferSize];
+      Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+      int numJunctions = 0;
+      try {
+         for (int p = 0; p < pages.count; p++) {
+            int first = p * pageSize;
+            int n = Math.min(pageSize, size - first);
+            pages.pos[p] = out.position();
+
+            // tile bytes, then town ids
+            raw.clear();
+            boolean sea = true;
+            for (int t = first; t < first + n; t++) {
+               int b = grid.getTerrain(t) |
+                  grid.getDisplayHint(t % width, t / width) << 4;
+               raw.put((byte) b);
+               sea &= b == 0;
+            }
+            for (int t = first; t < first + n; t++) {
+               int tid = grid.getTown(t);
+               switch (townBytes) {
+                  case 1: raw.put((byte) tid); break;
+                  case 2: raw.putShort((short) tid); break;
+                  default: raw.putInt(tid); break;
+               }
+               sea &= tid == 0;
+            }
+            if (!sea) {
+               pages.tileBytes[p] = deflate(deflater, raw, buf, out);
+            }
+
+            // junction records
+            raw.clear();
+            for (int t = first; t < first + n; t++) {
+               int slot = juncs.slotAt(t);
+               if (isSaved(juncs, slot)) {
+                  putJunction(juncs, slot, t, raw);
+                  pages.juncCount[p]++;
+               }
+            }
+            if (pages.juncCount[p] > 0) {
+               pages.juncRaw[p] = raw.position();
+               pages.juncBytes[p] = deflate(deflater, raw, buf, out);
+               numJunctions += pages.juncCount[p];
+            }
+         }
+      }
+      finally {
+         deflater.end();
+      }
+      pages.tablesPos = out.position();
+      pages.numJunctions = numJunctions;
+      return pages;
+   }
+
+   // deflate what's in raw to out; return # bytes written
+   private static int deflate(Deflater deflater, ByteBuffer raw, byte[] buf,
+                              Out out) throws IOException {
+      deflater.reset();
+      deflater.setInput(raw.array(), 0, raw.position());
+      deflater.finish();
+      int total = 0;
+      while (!deflater.finished()) {
+         int n = deflater.deflate(buf);
+         out.putBytes(buf, n);
+         total += n;
+      }
+      return total;
+   }
+
+   // inflate len bytes of packed into exactly rawLen bytes of raw
+   private static void inflate(Inflater inflater, byte[] packed, int len,
+                               byte[] raw, int rawLen) throws IOException {
+      inflater.reset();
+      inflater.setInput(packed, 0, len);
+      int n = 0;
+      try {
+         while (n < rawLen && !inflater.finished()) {
+            int got = inflater.inflate(raw, n, rawLen - n);
+            if (got == 0 && (inflater.needsInput() ||
+                             inflater.needsDictionary())) {
+               break;
+            }
+            n += got;
+         }
+      }
+      catch (DataFormatException e) {
+         throw new IOException("corrupt realm file: " + e.getMessage());
+      }
+      if (n != rawLen) {
+         throw new IOException("corrupt realm file: page inflated to " +
+                               n + " bytes, not " + rawLen);
+      }
+   }
+
+   private static void putJunction(JunctionTable juncs, int slot,
+                                   int tile, ByteBuffer b) {
+      b.putInt(tile);
+      b.putInt(juncs.layoutWord(slot));
+      int legs = juncs.usedLegs(slot);
+      b.put((byte) legs);
+      for (int dir = 0; dir < Junction.numDirs; dir++) {
+         if ((legs & (1 << dir)) != 0) {
+            b.putInt(juncs.rdCode(slot, dir, 0));
+            b.putInt(juncs.rdCode(slot, dir, 1));
+            b.putInt(juncs.sdCode(slot, dir));
+         }
+      }
+   }
+
+   // the list ends at the first 0
+   private static void writeEdgeTowns(int[] tids, Out out)
+      throws IOException {
+      int n = 0;
+      while (n < tids.length && tids[n] > 0) {
+         n++;
+      }
+      out.putInt(n);
+      for (int i = 0; i < n; i++) {
+         out.putInt(tids[i]);
+      }
+   }
+
+   // what's in the first headerSize bytes
+   private static class Header {
+      int width, height;
+      boolean compressed;
+      long seed;
+      int numTowns, numStreets, numRoutes;
+   }
+
+   private static Header readHeader(In in) throws IOException {
+      if (in.getInt() != magic) {
+         throw new IOException("not a realm file");
+      }
+      Header h = new Header();
+      int v = in.getInt();
+      if (v != version) {
+         throw new IOException("realm file version " + v +
+                               " not supported");
+      }
+      h.width = in.getInt();
+      h.height = in.getInt();
+      int flags = in.getByte();
+      h.compressed = (flags & compressedFlag) != 0;
+      h.seed = in.getLong();
+      h.numTowns = in.getInt();
+      h.numStreets = in.getInt();
+      h.numRoutes = in.getInt();
+      if (h.width <= 0 || h.height <= 0 ||
+          (long) h.width * h.height > Integer.MAX_VALUE ||
+          h.numTowns < 0 || h.numStreets < 0 || h.numRoutes < 0) {
+         throw new IOException("corrupt realm file header");
+      }
+      return h;
+   }
+
+   private static Realm read(In in) throws IOException {
+      Header h = readHeader(in);
+      Realm realm = new Realm(h.width, h.height, h.numRoutes);
+      realm.restore(h.seed, h.numTowns, h.numStreets, h.numRoutes);
+      if (h.compressed) {
+         readCompressed(in, realm, h);
+      }
+      else {
+         readFlat(in, realm, h);
+      }
+      readTables(in, realm, h);
+      return realm;
+   }
+
+   private static void readFlat(In in, Realm realm, Header h)
+      throws IOException {
+      RealmGrid grid = realm.grid;
+      JunctionTable juncs = grid.getJunctionTable();
+      int width = h.width;
+
+      // tiles
+      int size = grid.size();
+      for (int t = 0; t < size; t++) {
+         int b = in.getByte();
+         int x = t % width, y = t / width;
+         grid.setTerrain(x, y, b & 15);
+         grid.setDisplayHint(x, y, b >>> 4);
+      }
+      int townBytes = townBytes(h.numTowns);
+      for (int t = 0; t < size; t++) {
+         int tid = in.getUnsigned(townBytes);
+         if (tid < 0 || tid > h.numTowns) {
+            throw new IOException("corrupt realm file: town " + tid);
+         }
+         if (tid != 0) {
+            grid.setTown(t % width, t / width, tid);
+         }
+      }
+
+      // junctions
+      int numJunctions = in.getInt();
+      // the directory is only for map()
+      int numPages = in.getInt();
+      in.getLong();
+      for (int p = 0; p < numPages; p++) {
+         in.getInt();
+         in.getLong();
+      }
+      for (int i = 0; i < numJunctions; i++) {
+         int tile = in.getInt();
+         if (tile < 0 || tile >= size || juncs.slotAt(tile) != 0) {
+            throw new IOException("corrupt realm file: junction " + tile);
+         }
+         int slot = juncs.slotFor(tile);
+         juncs.restoreLayout(slot, in.getInt());
+         int legs = in.getByte();
+         for (int dir = 0; dir < Junction.numDirs; dir++) {
+            if ((legs & (1 << dir)) != 0) {
+               juncs.restoreLeg(slot, dir, in.getInt(), in.getInt(),
+                                in.getInt());
+            }
+         }
+      }
+   }
+
+   // page by page, in file order
+   private static void readCompressed(In in, Realm realm, Header h)
+      throws IOException {
+      RealmGrid grid = realm.grid;
+      JunctionTable juncs = grid.getJunctionTable();
+      int width = h.width;
+      int size = grid.size();
+      int townBytes = townBytes(h.numTowns);
+      int pageSize = JunctionTable.getPageSize();
+
+      in.getInt();  // # junctions
+      Pages pages = new Pages(in.getInt(), size);
+      pages.tablesPos = in.getLong();
+      pages.read(in);
+
+      byte[] packed = new byte[bufferSize];
+      byte[] raw = new byte[pageSize * maxRecord];
+      Inflater inflater = new Inflater();
+      try {
+         for (int p = 0; p < pages.count; p++) {
+            int first = p * pageSize;
+            int n = Math.min(pageSize, size - first);
+            if (in.position() != pages.pos[p]) {
+               throw new IOException("corrupt realm file: page " + p +
+                                     " out of place");
+            }
+            if (pages.tileBytes[p] > 0) {
+               packed = in.getBytes(packed, pages.tileBytes[p]);
+               inflate(inflater, packed, pages.tileBytes[p], raw,
+                       n * (1 + townBytes));
+               ByteBuffer towns = ByteBuffer.wrap(raw, n, n * townBytes);
+               for (int i = 0; i < n; i++) {
+                  int t = first + i;
+                  int b = raw[i] & 0xff;
+                  if (b != 0) {
+                     grid.setTerrain(t % width, t / width, b & 15);
+                     grid.setDisplayHint(t % width, t / width, b >>> 4);
+                  }
+                  int tid;
+                  switch (townBytes) {
+                     case 1: tid = towns.get() & 0xff; break;
+                     case 2: tid = towns.getShort() & 0xffff; break;
+                     default: tid = towns.getInt(); break;
+                  }
+                  if (tid < 0 || tid > h.numTowns) {
+                     throw new IOException("corrupt realm file: town " + tid);
+                  }
+                  if (tid != 0) {
+                     grid.setTown(t % width, t / width, tid);
+                  }
+               }
+            }
+            if (pages.juncCount[p] > 0) {
+               packed = in.getBytes(packed, pages.juncBytes[p]);
+               inflate(inflater, packed, pages.juncBytes[p], raw,
+                       pages.juncRaw[p]);
+               restorePage(juncs, ByteBuffer.wrap(raw, 0, pages.juncRaw[p]),
+                           0, pages.juncCount[p], first, n, size);
+            }
+         }
+      }
+      finally {
+         inflater.end();
+      }
+      if (in.position() != pages.tablesPos) {
+         throw new IOException("corrupt realm file: tables out of place");
+      }
+   }
+
+   // towns, streets, routes and the rest, to the end of the file
+   private static void readTables(In in, Realm realm, Header h)
+      throws IOException {
+      for (int tid = 1; tid <= h.numTowns; tid++) {
+         Town town = new Town(in.getString());
+         town.setCenter(in.getInt(), in.getInt());
+         town.setArea(in.getInt());
+         realm.towns[tid] = town;
+      }
+      for (int sid = 1; sid <= h.numStreets; sid++) {
+         realm.streetNames[sid] = in.getString();
+      }
+      for (int rid = 1; rid <= h.numRoutes; rid++) {
+         int number = in.getInt();
+         int logDir = in.getInt();
+         int sx = in.getInt(), sy = in.getInt();
+         int ex = in.getInt(), ey = in.getInt();
+         realm.routes[rid] = new Route(rid, number, logDir,
+                                       new Point(sx, sy), new Point(ex, ey));
+      }
+      realm.topTowns = readEdgeTowns(in, h.numTowns);
+      realm.leftTowns = readEdgeTowns(in, h.numTowns);
+      if (in.getInt() != magic) {
+         throw new IOException("corrupt realm file trailer");
+      }
+      realm.reindex();
+   }
+
+   // with a trailing 0, like the generator leaves them
+   private static int[] readEdgeTowns(In in, int numTowns)
+      throws IOException {
+      int n = in.getInt();
+      if (n < 0 || n > numTowns) {
+         throw new IOException("corrupt realm file: " + n + " edge towns");
+      }
+      int[] tids = new int[n + 1];
+      for (int i = 0; i < n; i++) {
+         tids[i] = in.getInt();
+      }
+      return tids;
+   }
+
+   // copy count junction records, starting at 'at' in records, into
+   // the table. They must all be in the page of numTiles tiles
+   // starting at firstTile.
+   private static void restorePage(JunctionTable table, ByteBuffer records,
+                                   int at, int count, int firstTile,
+                                   int numTiles, int size)
+      throws IOException {
+      for (int i = 0; i < count; i++) {
+         if (at < 0 || at + 9 > records.limit()) {
+            throw new IOException("corrupt realm file: page at tile " +
+                                  firstTile + " runs over");
+         }
+         int tile = records.getInt(at);
+         if (tile < firstTile || tile >= firstTile + numTiles ||
+             tile >= size) {
+            throw new IOException("corrupt realm file: junction " + tile +
+                                  " in page at tile " + firstTile);
+         }
+         int slot = table.slotFor(tile);
+         table.restoreLayout(slot, records.getInt(at + 4));
+         int legs = records.get(at + 8) & 0xff;
+         at += 9;
+         if (at + 12 * Integer.bitCount(legs) > records.limit()) {
+            throw new IOException("corrupt realm file: junction " + tile +
+                                  " cut short");
+         }
+         for (int dir = 0; dir < Junction.numDirs; dir++) {
+            if ((legs & (1 << dir)) != 0) {
+               table.restoreLeg(slot, dir, records.getInt(at),
+                                records.getInt(at + 4),
+                                records.getInt(at + 8));
+               at += 12;
+            }
+         }
+      }
+   }
+
+   // copies one page of junction records out of a mapped flat file
+   // into the JunctionTable, the first time the page is used
+   private static class MappedJunctions implements JunctionTable.PageSource {
+      private final ByteBuffer directory, records;
+      private final long recordsPos;
+      private final int size;
+
+      MappedJunctions(ByteBuffer directory_, ByteBuffer records_,
+                      long recordsPos_, int size_) {
+         directory = directory_;
+         records = records_;
+         recordsPos = recordsPos_;
+         size = size_;
+      }
+
+      @Override
+      public void fillPage(JunctionTable table, int firstTile, int numTiles) {
+         int p = firstTile / numTiles;
+         int count = directory.getInt(p * pageEntrySize);
+         long at = directory.getLong(p * pageEntrySize + 4) - recordsPos;
+         try {
+            if (at > Integer.MAX_VALUE) {
+               throw new IOException("corrupt realm file page " + p);
+            }
+            restorePage(table, records, (int) at, count, firstTile,
+                        numTiles, size);
+         }
+         catch (IOException e) {
+            throw new IllegalStateException(e.getMessage());
+         }
+      }
+   }
+
+   // inflates one page of junction records out of a mapped compressed
+   // file into the JunctionTable, the first time the page is used.
+   // JunctionTable fills one page at a time, so the buffers are shared.
+   private static class PackedJunctions implements JunctionTable.PageSource {
+      private final Pages pages;
+      private final ByteBuffer packed;
+      private final long packedPos;
+      private final int size;
+      private final Inflater inflater = new Inflater();
+      private byte[] buf = new byte[bufferSize];
+      private byte[] raw = null;
+
+      PackedJunctions(Pages pages_, ByteBuffer packed_, long packedPos_,
+                      int size_) {
+         pages = pages_;
+         packed = packed_;
+         packedPos = packedPos_;
+         size = size_;
+      }
+
+      @Override
+      public void fillPage(JunctionTable table, int firstTile, int numTiles) {
+         int p = firstTile / numTiles;
+         if (pages.juncCount[p] == 0) {
+            return;
+         }
+         if (raw == null) {
+            raw = new byte[numTiles * maxRecord];
+         }
+         try {
+            buf = pages.get(packed, packedPos, p, true, buf);
+            inflate(inflater, buf, pages.juncBytes[p], raw, pages.juncRaw[p]);
+            restorePage(table, ByteBuffer.wrap(raw, 0, pages.juncRaw[p]), 0,
+                        pages.juncCount[p], firstTile, numTiles, size);
+         }
+         catch (IOException e) {
+            throw new IllegalStateException(e.getMessage());
+         }
+      }
+   }
+
+   // the page directory of a compressed file
+   private static class Pages {
+      final int count;
+      final int size;  // tiles in the realm
+      final long[] pos;  // of each page's tile bytes; junctions follow
+      final int[] tileBytes, juncBytes, juncCount, juncRaw;
+      long tablesPos;
+      int numJunctions;
+
+      Pages(int count_, int size_) throws IOException {
+         checkPages(count_, size_);
+         count = count_;
+         size = size_;
+         pos = new long[count];
+         tileBytes = new int[count];
+         juncBytes = new int[count];
+         juncCount = new int[count];
+         juncRaw = new int[count];
+      }
+
+      // the directory entries, after tablesPos
+      void read(In in) throws IOException {
+         int pageSize = JunctionTable.getPageSize();
+         for (int p = 0; p < count; p++) {
+            pos[p] = in.getLong();
+            tileBytes[p] = in.getInt();
+            juncBytes[p] = in.getInt();
+            juncCount[p] = in.getInt();
+            juncRaw[p] = in.getInt();
+            if (pos[p] < 0 || tileBytes[p] < 0 || juncBytes[p] < 0 ||
+                pos[p] + tileBytes[p] + juncBytes[p] > tablesPos ||
+                juncCount[p] < 0 || juncCount[p] > pageSize ||
+                juncRaw[p] < 0 || juncRaw[p] > pageSize * maxRecord) {
+               throw new IOException("corrupt realm file: page " + p);
+            }
+         }
+      }
+
+      // copy page p's tile or junction bytes out of packed (which
+      // starts at packedPos in the file) into buf, or a bigger buffer
+      // if buf is too small; return the buffer
+      byte[] get(ByteBuffer packed, long packedPos, int p,
+                 boolean junctions, byte[] buf) throws IOException {
+         int len = junctions ? juncBytes[p] : tileBytes[p];
+         long at = pos[p] - packedPos + (junctions ? tileBytes[p] : 0);
+         if (at < 0 || at + len > packed.limit()) {
+            throw new IOException("corrupt realm file: page " + p +
+                                  " past end");
+         }
+         if (buf.length < len) {
+            buf = new byte[len];
+         }
+         ByteBuffer b = packed.duplicate();
+         b.position((int) at);
+         b.get(buf, 0, len);
+         return buf;
+      }
+   }
+
+   // buffered writes to a channel; RealmJournal uses them too
+   static class Out {
+      private final FileChannel ch;
+      private final ByteBuffer buf = ByteBuffer.allocateDirect(bufferSize);
+      private long flushed = 0;  // bytes already written to ch
+
+      Out(FileChannel ch_) {
+         ch = ch_;
+      }
+
+      private void room(int n) throws IOException {
+         if (buf.remaining() < n) {
+            buf.flip();
+            while (buf.hasRemaining()) {
+               flushed += ch.write(buf);
+            }
+            buf.clear();
+         }
+      }
+
+      // bytes written so far, counting what's still buffered
+      long position() {
+         return flushed + buf.position();
+      }
+
+      void putByte(int b) throws IOException {
+         room(1);
+         buf.put((byte) b);
+      }
+
+      void putInt(int i) throws IOException {
+         room(4);
+         buf.putInt(i);
+      }
+
+      void putLong(long l) throws IOException {
+         room(8);
+         buf.putLong(l);
+      }
+
+      // low 'bytes' bytes of i
+      void putUnsigned(int i, int bytes) throws IOException {
+         switch (bytes) {
+            case 1: putByte(i); break;
+            case 2: room(2); buf.putShort((short) i); break;
+            default: putInt(i); break;
+         }
+      }
+
+      void putBytes(byte[] b, int len) throws IOException {
+         for (int off = 0; off < len; ) {
+            room(1);
+            int n = Math.min(buf.remaining(), len - off);
+            buf.put(b, off, n);
+            off += n;
+         }
+      }
+
+      void putString(String s) throws IOException {
+         if (s == null) {
+            putInt(-1);
+            return;
+         }
+         byte[] b = s.getBytes(utf8);
+         putInt(b.length);
+         putBytes(b, b.length);
+      }
+
+      void flush() throws IOException {
+         room(bufferSize);
+      }
+   }
+
+   // buffered reads from a channel
+   static class In {
+      private final FileChannel ch;
+      private final ByteBuffer buf = ByteBuffer.allocateDirect(bufferSize);
+      private long filled = 0;  // bytes read from ch so far
+
+      In(FileChannel ch_) {
+         ch = ch_;
+         buf.flip();  // empty
+      }
+
+      private void need(int n) throws IOException {
+         if (buf.remaining() >= n) {
+            return;
+         }
+         buf.compact();
+         while (buf.position() < n) {
+            int got = ch.read(buf);
+            if (got < 0) {
+               buf.flip();
+               throw new EOFException("realm file is truncated");
+            }
+            filled += got;
+         }
+         buf.flip();
+      }
+
+      // bytes read so far, not counting what's still buffered
+      long position() {
+         return filled - buf.remaining();
+      }
+
+      int getByte() throws IOException {
+         need(1);
+         return buf.get() & 0xff;
+      }
+
+      int getInt() throws IOException {
+         need(4);
+         return buf.getInt();
+      }
+
+      long getLong() throws IOException {
+         need(8);
+         return buf.getLong();
+      }
+
+      int getUnsigned(int bytes) throws IOException {
+         switch (bytes) {
+            case 1: return getByte();
+            case 2: need(2); return buf.getShort() & 0xffff;
+            default: return getInt();
+         }
+      }
+
+      // the next len bytes, in b or a bigger array if b is too small
+      byte[] getBytes(byte[] b, int len) throws IOException {
+         if (b.length < len) {
+            b = new byte[len];
+         }
+         for (int off = 0; off < len; ) {
+            need(1);
+            int n = Math.min(buf.remaining(), len - off);
+            buf.get(b, off, n);
+            off += n;
+         }
+         return b;
+      }
+
+      String getString() throws IOException {
+         int len = getInt();
+         if (len < 0) {
+            return null;
+         }
+         if (len > maxString) {
+            throw new IOException("corrupt realm file: " + len +
+                                  " byte name");
+         }
+         return new String(getBytes(new byte[len], len), utf8);
+      }
+   }
+}
@@ -0,0 +1,154 @@
+package com.kurumi.matr;
+
+import java.util.BitSet;
+
+/**
+ * Tile storage for a Realm.
+ * Each per-tile field lives in its own flat primitive array, indexed
+ * by tile number (y * width + x), instead of one Square object per tile.
+ * Junctions are packed into a JunctionTable.
+ * Full-grid loops then walk a few dense arrays rather than chasing
+ * a pointer per tile.
+ * See Square for the terrain and display hint codes.
+ * MappedRealmGrid reads terrain, towns and hints from a realm file instead.
+ * @author soglesby
+ *
+ */
+public class RealmGrid {
+	private final int width, height;  // # of tiles each dimension
+
+	private final byte[] terrain;   // water or land
+	private final int[] town;       // town ID; index into Realm.towns[]
+	private final byte[] displayHint;
+	private final BitSet marks;     // scratch marks for town growth
+	private final JunctionTable juncs; // packed junction state
+
+	RealmGrid(int width_, int height_) {
+		this(width_, height_, true);
+	}
+
+	// subclasses that store tiles their own way pass flat = false
+	protected RealmGrid(int width_, int height_, boolean flat) {
+		width = width_;
+		height = height_;
+		int size = width * height;
+		terrain = flat ? new byte[size] : null;   // all water
+		town = flat ? new int[size] : null;
+		displayHint = flat ? new byte[size] : null;
+		marks = new BitSet(size);
+		juncs = new JunctionTable(size);
+	}
+
+	public int getWidth() { return width; }
+	public int getHeight() { return height; }
+
+	// number of tiles; tile numbers run from 0 to size()-1
+	public int size() { return width * height; }
+
+	// tile number for (x,y)
+	public final int tile(int x, int y) {
+		return y * width + x;
+	}
+
+	public final int tileX(int t) { return t % width; }
+	public final int tileY(int t) { return t / width; }
+
+	// terrain --------
+	public int getTerrain(int t) {
+		return terrain[t];
+	}
+	public int getTerrain(int x, int y) {
+		return terrain[y * width + x];
+	}
+
+	public void setTerrain(int x, int y, int terrain_) {
+		terrain[y * width + x] = (byte) terrain_;
+	}
+
+	// fill rectangular region with single terrain type
+	public void fillTerrain(int x0, int y0, int w, int h, int terr) {
+		for (int y = y0; y < y0 + h; y++) {
+			int t = y * width + x0;
+			for (int x = 0; x < w; x++) {
+				terrain[t++] = (byte) terr;
+			}
+		}
+	}
+
+	// towns --------
+	public int getTown(int t) {
+		return terrain[t] == Square.water ? 0 : town[t];
+	}
+	public int getTown(int x, int y) {
+		return getTown(y * width + x);
+	}
+
+	public void setTown(int x, int y, int town_) {
+		town[y * width + x] = town_;
+	}
+
+	public void setTownAndMark(int x, int y, int town_) {
+		int t = y * width + x;
+		town[t] = town_;
+		marks.set(t);
+	}
+
+	// marks --------
+	public final boolean getMarked(int x, int y) {
+		return marks.get(y * width + x);
+	}
+
+	public final void setMarked(int x, int y, boolean marked_) {
+		marks.set(y * width + x, marked_);
+	}
+
+	// clear all marked tiles
+	public void clearMarks() {
+		marks.clear();
+	}
+
+	// true if tile t is marked
+	protected final boolean isMarked(int t) {
+		return marks.get(t);
+	}
+
+	// smartness functions
+	// true if ok to put new town here.
+	public boolean okForTown(int t) {
+		return terrain[t] != Square.water && town[t] == 0 && !marks.get(t);
+	}
+	public boolean okForTown(int x, int y) {
+		return okForTown(y * width + x);
+	}
+
+	// true if town here existed before this fill pass.
+	public boolean hasRealTown(int x, int y) {
+		int t = y * width + x;
+		return terrain[t] != Square.water && town[t] != 0 && !marks.get(t);
+	}
+
+	// display hints --------
+	public int getDisplayHint(int x, int y) {
+		return displayHint[y * width + x];
+	}
+
+	public void setDisplayHint(int x, int y, int hint) {
+		displayHint[y * width + x] = (byte) hint;
+	}
+
+	// junctions --------
+	JunctionTable getJunctionTable() {
+		return juncs;
+	}
+
+	// return the tile's Junction, creating it if needed
+	public final Junction getJunc(int x, int y) {
+		return new Junction(juncs, juncs.slotFor(y * width + x));
+	}
+
+	// return the tile's Junction, or null if it never had one
+	public final Junction peekJunc(int x, int y) {
+		int slot = juncs.slotAt(y * width + x);
+		return slot == 0 ? null : new Junction(juncs, slot);
+	}
+}
@@ -0,0 +1,373 @@
+package com.kurumi.matr;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Append-only record of the edits made to a saved realm, so an edit
+ * costs a few bytes on disk instead of a whole save, and edits survive
+ * a crash.
+ *
+ * The journal lives beside its realm file, as "name.journal". Realm
+ * appends a record for each editor change while a journal is attached:
+ * paving and erasing, adding, removing and clearing route numbers,
+ * new routes and their ends, and renaming routes, streets and towns.
+ * Opening the journal replays it onto the freshly opened realm;
+ * compact() saves the realm over its file and starts an empty journal.
+ *
+ * Layout (big-endian):
+ *   int magic "MATJ", int version
+ *   long size and long modified-time of the realm file it follows
+ *   records: byte type, then its fields as ints or strings
+ * A crash can leave a partial record at the end; replay drops it.
+ * The first write error is kept and reported by getFailure(), so
+ * editing code, which can't throw IOException, needn't check each call.
+ *
+ * @author soglesby
+ *
+ */
+public class RealmJournal {
+   static final int magic = 0x4D41544A;  // "MATJ"
+   static final int version = 1;
+
+   // record types
+   private static final int pave = 1, erase = 2, addRid = 3,
+      removeRid = 4, clearRids = 5, newRoute = 6, routeStart = 7,
+      routeEnd = 8, renumber = 9, renameStreet = 10, renameTown = 11;
+
+   private final Path path;
+   private final FileChannel ch;
+   private final RealmFile.Out out;
+   private IOException failure = null;
+
+   private RealmJournal(Path path_, FileChannel ch_) {
+      path = path_;
+      ch = ch_;
+      out = new RealmFile.Out(ch);
+   }
+
+   /**
+    * @param realmFile a saved realm
+    * @return where that realm's journal goes
+    */
+   public static Path pathFor(Path realmFile) {
+      Path abs = realmFile.toAbsolutePath();
+      return abs.resolveSibling(abs.getFileName() + ".journal");
+   }
+
+   /**
+    * Replay a realm's journal, if it has one, and attach the journal
+    * to the realm so later edits are appended to it.
+    * @param realm the realm just opened from realmFile
+    * @param realmFile the file it came from
+    * @return the journal, now attached to realm
+    * @throws IOException if the journal can't be read or written,
+    *    or was written against a different save of realmFile
+    */
+   public static RealmJournal open(Realm realm, Path realmFile)
+      throws IOException {
+      Path path = pathFor(realmFile);
+      if (!Files.exists(path)) {
+         return start(realm, realmFile);
+      }
+      FileChannel ch = FileChannel.open(path, StandardOpenOption.READ,
+                                        StandardOpenOption.WRITE);
+      try {
+         RealmFile.In in = new RealmFile.In(ch);
+         try {
+            if (in.getInt() != magic || in.getInt() != version) {
+               throw new IOException(path.getFileName() +
+                                     " is not a realm journal");
+            }
+            if (in.getLong() != Files.size(realmFile) ||
+                in.getLong() != modified(realmFile)) {
+               throw new IOException(path.getFileName() + " is for a " +
+                                     "different save of " +
+                                     realmFile.getFileName() +
+                                     "; move it aside to open the realm");
+            }
+         }
+         catch (EOFException e) {
+            throw new IOException(path.getFileName() + " is truncated");
+         }
+         long end = replay(realm, in);
+         // drop a record cut short by a crash
+         ch.truncate(end);
+         ch.position(end);
+      }
+      catch (IOException e) {
+         ch.close();
+         throw e;
+      }
+      RealmJournal journal = new RealmJournal(path, ch);
+      realm.setJournal(journal);
+      return journal;
+   }
+
+   // a new, empty journal for realmFile, attached to realm
+   private static RealmJournal start(Realm realm, Path realmFile)
+      throws IOException {
+      Path path = pathFor(realmFile);
+      FileChannel ch = FileChannel.open(path, StandardOpenOption.CREATE,
+                                        StandardOpenOption.WRITE,
+                                        StandardOpenOption.TRUNCATE_EXISTING);
+      RealmJournal journal = new RealmJournal(path, ch);
+      try {
+         journal.out.putInt(magic);
+         journal.out.putInt(version);
+         journal.out.putLong(Files.size(realmFile));
+         journal.out.putLong(modified(realmFile));
+         journal.out.flush();
+      }
+      catch (IOException e) {
+         ch.close();
+         throw e;
+      }
+      realm.setJournal(journal);
+      return journal;
+   }
+
+   private static long modified(Path file) throws IOException {
+      return Files.getLastModifiedTime(file).toMillis();
+   }
+
+   /**
+    * Fold the journal into the realm file: save the realm to realmFile
+    * and start an empty journal there. realmFile may be a new file,
+    * as with "save as"; the old file keeps its own journal.
+    * @param realm the realm this journal is attached to, or any realm
+    *    when journal is null
+    * @param journal the realm's journal, or null if it has none yet
+    * @param realmFile where to save
+    * @return the new journal, attached to realm
+    * @throws IOException if the realm or journal can't be written;
+    *    if the save fails, the old journal stays attached
+    */
+   public static RealmJournal compact(Realm realm, RealmJournal journal,
+                                      Path realmFile) throws IOException {
+      // saving only reads the realm, so the journal keeps recording
+      // until the save is safely written
+      RealmFile.save(realm, realmFile);
+      if (journal != null) {
+         try {
+            journal.close();
+         }
+         catch (IOException e) {
+            // a write it missed is in the save now
+         }
+      }
+      return start(realm, realmFile);
+   }
+
+   /**
+    * Stop appending; the file stays for the next open().
+    * @throws IOException the first write that failed, if any
+    */
+   public void close() throws IOException {
+      ch.close();
+      if (failure != null) {
+         throw failure;
+      }
+   }
+
+   /**
+    * @return the first write that failed, or null if none has
+    */
+   public IOException getFailure() {
+      return failure;
+   }
+
+   public Path getPath() {
+      return path;
+   }
+
+   // recording: each record goes to the file as soon as it's complete
+
+   void pave(int x, int y, int heading, int paveType) {
+      record(pave, x, y, heading, paveType);
+   }
+
+   void erase(int x, int y, int heading) {
+      record(erase, x, y, heading);
+   }
+
+   void addRid(int x, int y, int heading, int rid, boolean forward) {
+      record(addRid, x, y, heading, rid, forward ? 1 : 0);
+   }
+
+   void removeRid(int x, int y, int heading, int rid) {
+      record(removeRid, x, y, heading, rid);
+   }
+
+   void clearRids(int x, int y, int heading) {
+      record(clearRids, x, y, heading);
+   }
+
+   void newRoute(int number, int x, int y, int heading, int logHeading) {
+      record(newRoute, number, x, y, heading, logHeading);
+   }
+
+   void routeStart(int rid, int x, int y) {
+      record(routeStart, rid, x, y);
+   }
+
+   void routeEnd(int rid, int x, int y) {
+      record(routeEnd, rid, x, y);
+   }
+
+   void renumber(int oldNumber, int newNumber) {
+      record(renumber, oldNumber, newNumber);
+   }
+
+   void renameStreet(String old, String anew) {
+      rename(renameStreet, old, anew);
+   }
+
+   void renameTown(String old, String anew) {
+      rename(renameTown, old, anew);
+   }
+
+   private void record(int type, int... fields) {
+      if (failure != null) {
+         return;
+      }
+      try {
+         out.putByte(type);
+         for (int f: fields) {
+            out.putInt(f);
+         }
+         out.flush();
+      }
+      catch (IOException e) {
+         failure = e;
+      }
+   }
+
+   private void rename(int type, String old, String anew) {
+      if (failure != null) {
+         return;
+      }
+      try {
+         out.putByte(type);
+         out.putString(old);
+         out.putString(anew);
+         out.flush();
+      }
+      catch (IOException e) {
+         failure = e;
+      }
+   }
+
+   // replay records onto realm, which has no journal attached yet;
+   // return where the last whole record ends
+   private static long replay(Realm realm, RealmFile.In in)
+      throws IOException {
+      long end = in.position();
+      try {
+         while (true) {
+            int type = in.getByte();
+            switch (type) {
+               case pave: {
+                  int x = in.getInt(), y = in.getInt(), h = in.getInt();
+                  int paveType = in.getInt();
+                  checkLeg(realm, x, y, h);
+                  if (paveType < 0 || paveType >= Junction.paveStrings.length) {
+                     throw corrupt("pavement " + paveType);
+                  }
+                  realm.setPaveBoth(x, y, h, paveType);
+                  break;
+               }
+               case erase: {
+                  int x = in.getInt(), y = in.getInt(), h = in.getInt();
+                  checkLeg(realm, x, y, h);
+                  realm.clearLegBoth(x, y, h);
+                  break;
+               }
+               case addRid: {
+                  int x = in.getInt(), y = in.getInt(), h = in.getInt();
+                  int rid = in.getInt();
+                  boolean forward = in.getInt() != 0;
+                  checkLeg(realm, x, y, h);
+                  checkRid(realm, rid);
+                  realm.addRidBoth(x, y, h, rid, forward);
+                  break;
+               }
+               case removeRid: {
+                  int x = in.getInt(), y = in.getInt(), h = in.getInt();
+                  int rid = in.getInt();
+                  checkLeg(realm, x, y, h);
+                  checkRid(realm, rid);
+                  realm.removeRidBoth(x, y, h, rid);
+                  break;
+               }
+               case clearRids: {
+                  int x = in.getInt(), y = in.getInt(), h = in.getInt();
+                  checkLeg(realm, x, y, h);
+                  realm.clearRidsBoth(x, y, h);
+                  break;
+               }
+               case newRoute: {
+                  int number = in.getInt();
+                  int x = in.getInt(), y = in.getInt(), h = in.getInt();
+                  int logHeading = in.getInt();
+                  checkLeg(realm, x, y, h);
+                  realm.getRouteIdOrCreate(number, x, y, h, logHeading);
+                  break;
+               }
+               case routeStart: {
+                  int rid = in.getInt(), x = in.getInt(), y = in.getInt();
+                  checkRid(realm, rid);
+                  realm.routes[rid].setStart(x, y);
+                  break;
+               }
+               case routeEnd: {
+                  int rid = in.getInt(), x = in.getInt(), y = in.getInt();
+                  checkRid(realm, rid);
+                  realm.routes[rid].setEnd(x, y);
+                  break;
+               }
+               case renumber:
+                  realm.changeRoute(in.getInt(), in.getInt());
+                  break;
+               case renameStreet:
+                  realm.changeStreet(in.getString(), in.getString());
+                  break;
+               case renameTown:
+                  realm.changeTown(in.getString(), in.getString());
+                  break;
+               default:
+                  throw corrupt("record type " + type);
+            }
+            end = in.position();
+         }
+      }
+      catch (EOFException e) {
+         // end of journal, or a record cut short
+      }
+      return end;
+   }
+
+   private static IOException corrupt(String what) {
+      return new IOException("corrupt realm journal: " + what);
+   }
+
+   // leg must start and end on the map
+   private static void checkLeg(Realm realm, int x, int y, int heading)
+      throws IOException {
+      if (heading < 0 || heading >= Junction.numDirs ||
+          !realm.onMap(x, y) ||
+          !realm.onMap(x + Junction.dx[heading], y + Junction.dy[heading])) {
+         throw corrupt("leg " + x + "," + y + " heading " + heading);
+      }
+   }
+
+   private static void checkRid(Realm realm, int rid) throws IOException {
+      if (rid <= 0 || rid > realm.getNumRoutes()) {
+         throw corrupt("route id " + rid);
+      }
+   }
+}
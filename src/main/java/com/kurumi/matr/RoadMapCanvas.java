@@ -296,14 +296,16 @@ public class RoadMapCanvas extends Canvas {
 	   // determine clipping region
 	   Rectangle myRect = viewport.intersection(fullViewPort);
 
-	   for (int xx = myRect.x; xx < myRect.x + myRect.width; xx++) {
-		   for (int yy = myRect.y; yy < myRect.y + myRect.height; yy++) {
+	   // walk rows, to match the grid's storage order
+	   for (int yy = myRect.y; yy < myRect.y + myRect.height; yy++) {
+		   for (int xx = myRect.x; xx < myRect.x + myRect.width; xx++) {
 			   x0 = sqToXPixel(xx);
 			   x1 = sqToXPixel(xx+1);
 			   y0 = sqToYPixel(yy);
 			   y1 = sqToYPixel(yy+1);
+			   int hint = myRealm.grid.getDisplayHint(xx, yy);
 			   // debugging: draw circle if you would have drawn water southeast
-			   if (myRealm.grid[xx][yy].getDisplayHint() == Square.water_se) {
+			   if (hint == Square.water_se) {
 				   Polygon po = new Polygon();
 				   po.addPoint(x0, y1);
 				   po.addPoint(x1, y1);
@@ -311,7 +313,7 @@ public class RoadMapCanvas extends Canvas {
 				   g.fillPolygon(po);
 			   }
 			   else 
-				   if (myRealm.grid[xx][yy].getDisplayHint() == Square.water_sw) {
+				   if (hint == Square.water_sw) {
 					   Polygon po = new Polygon();
 					   po.addPoint(x0, y0);
 					   po.addPoint(x0, y1);
@@ -319,7 +321,7 @@ public class RoadMapCanvas extends Canvas {
 					   g.fillPolygon(po);
 				   }
 				   else 
-					   if (myRealm.grid[xx][yy].getDisplayHint() == Square.water_nw) {
+					   if (hint == Square.water_nw) {
 						   Polygon po = new Polygon();
 						   po.addPoint(x0, y0);
 						   po.addPoint(x0, y1);
@@ -327,7 +329,7 @@ public class RoadMapCanvas extends Canvas {
 						   g.fillPolygon(po);
 					   }
 					   else 
-						   if (myRealm.grid[xx][yy].getDisplayHint() == Square.water_ne) {
+						   if (hint == Square.water_ne) {
 							   Polygon po = new Polygon();
 							   po.addPoint(x0, y0);
 							   po.addPoint(x1, y0);
@@ -335,7 +337,7 @@ public class RoadMapCanvas extends Canvas {
 							   g.fillPolygon(po);
 						   }
 						   else 
-							   if (myRealm.grid[xx][yy].getTerrain() == Square.water) {
+							   if (myRealm.grid.getTerrain(xx, yy) == Square.water) {
 								   g.fillRect(x0, y0, x1-x0, y1-y0);
 							   }
 		   }
@@ -349,13 +351,19 @@ public class RoadMapCanvas extends Canvas {
       int perSquare = cvNum / cvDenom;
       boolean wasVisible = false;
 
-      // for each route
+      // for each route, stepping along its tiles in the milepost index;
+      // s and h are where start and half are in them
       int numRoutes = myRealm.getNumRoutes();
+      RealmGrid grid = myRealm.grid;
+      MilepostIndex index = myRealm.getMileposts();
+      Point start = new Point();
+      Point half = new Point();
       for (int i = 1; i <= numRoutes; i++) {
-         Point start, half;
          boolean endOfRoute = false;
-         start = new Point(myRealm.routes[i].getStart());
-         half = new Point(start);
+         int[] tiles = index.getTiles(i);
+         int s = 0, h = 0;
+         start.setLocation(grid.tileX(tiles[0]), grid.tileY(tiles[0]));
+         half.setLocation(start);
          wasVisible = viewport.contains(start.x, start.y);
 
          while (!endOfRoute) {
@@ -363,10 +371,12 @@ public class RoadMapCanvas extends Canvas {
             while (true) {
 
                // at end of this segment?
-               if (!myRealm.nextJunc(start, i)) {
+               if (s + 1 == tiles.length) {
                   endOfRoute = true;
                   break;
                }
+               s++;
+               start.setLocation(grid.tileX(tiles[s]), grid.tileY(tiles[s]));
                // look for a visible starting point
                if (!viewport.contains(start.x, start.y)) {
                   // looking for first one?
@@ -382,6 +392,7 @@ public class RoadMapCanvas extends Canvas {
                   // if you just got out of invisibility, 
                   // set halfway point to this one
                   if (!wasVisible) {
+                     h = s;
                      half.move(start.x, start.y);
                      length = 0;
                   }
@@ -393,33 +404,34 @@ public class RoadMapCanvas extends Canvas {
                }
 
                //System.out.println("start: " + start.x + ", " + start.y);
-               //r.grid[start.x][start.y].getJunc().dump();
+               //r.pToJ(start).dump();
                //System.out.println("half: " + half.x + ", " + half.y);
                // is it still two-way?
                // is it on the screen? if not, don't care
                // wasVisible is known true if you get to this point
                if (wasVisible && 
-                   myRealm.grid[start.x][start.y].getJunc().isRouteInflection()) {
+                   myRealm.isRouteInflection(start.x, start.y)) {
                   break;
                }
                // halfway point follows half as often
                if ((length & 1) != 0) {
-                   myRealm.nextJunc(half, i);
+                   h++;
+                   half.setLocation(grid.tileX(tiles[h]), grid.tileY(tiles[h]));
                }
             }
             if (wasVisible && length * perSquare > minMarkerClearance) {
 
                // find out routes of interest
-               Junction jh = myRealm.grid[half.x][half.y].getJunc();
-               int mydir =  jh.getForwardDirection(i);
-               int[] rids = jh.ridsAt(mydir);
+               int mydir = myRealm.getForwardDirection(half.x, half.y, i);
+               int rid0 = myRealm.ridAt(half.x, half.y, mydir, 0);
+               int rid1 = myRealm.ridAt(half.x, half.y, mydir, 1);
 
                // special case if segment is only one square long
                // if double marker, only print for first rid
                if (length > 1) {
-                  if (rids[1] > 0) {
-                     if (rids[1] != i) {
-                        drawMarker(g, half, rids);
+                  if (rid1 > 0) {
+                     if (rid1 != i) {
+                        drawMarker(g, half, rid0, rid1);
                      }
                   }
                   else {
@@ -427,9 +439,9 @@ public class RoadMapCanvas extends Canvas {
                   }
                }
                if (length == 1) {
-                  if (rids[1] > 0) {
-                     if (rids[1] != i) {
-                        drawMarker(g, half, start, rids);
+                  if (rid1 > 0) {
+                     if (rid1 != i) {
+                        drawMarker(g, half, start, rid0, rid1);
                      }
                   }
                   else {
@@ -438,6 +450,7 @@ public class RoadMapCanvas extends Canvas {
                }
             }
             // sync up half and start
+            h = s;
             half.move(start.x, start.y);
             wasVisible = viewport.contains(start.x, start.y);
          } // end of route
@@ -459,20 +472,20 @@ public class RoadMapCanvas extends Canvas {
    }
 
    // draw double marker
-   void drawMarker(Graphics g, Point here, int rid[]) {
+   void drawMarker(Graphics g, Point here, int rid0, int rid1) {
       int xc = sqToXMidPixel(here.x);
       int yc = sqToYMidPixel(here.y);
-      int num0 = myRealm.routes[rid[0]].getNumber();
-      int num1 = myRealm.routes[rid[1]].getNumber();
+      int num0 = myRealm.routes[rid0].getNumber();
+      int num1 = myRealm.routes[rid1].getNumber();
       MapUtils.drawMarker(g, xc, yc, num0, num1);
    }
 
    // draw double marker "between" squares
-   void drawMarker(Graphics g, Point here, Point next, int rid[]) {
+   void drawMarker(Graphics g, Point here, Point next, int rid0, int rid1) {
       int xc = (sqToXMidPixel(here.x) + sqToXMidPixel(next.x))/2;
       int yc = (sqToYMidPixel(here.y) + sqToYMidPixel(next.y))/2;
-      int num0 = myRealm.routes[rid[0]].getNumber();
-      int num1 = myRealm.routes[rid[1]].getNumber();
+      int num0 = myRealm.routes[rid0].getNumber();
+      int num1 = myRealm.routes[rid1].getNumber();
       MapUtils.drawMarker(g, xc, yc, num0, num1);
    }
 
@@ -483,14 +496,14 @@ public class RoadMapCanvas extends Canvas {
       // determine clipping region
       Rectangle myRect = viewport.intersection(landViewPort);
 
-      for (int xx = myRect.x; xx < myRect.x + myRect.width; xx++) {
-         for (int yy = myRect.y; yy < myRect.y + myRect.height; yy++) {
+      for (int yy = myRect.y; yy < myRect.y + myRect.height; yy++) {
+         for (int xx = myRect.x; xx < myRect.x + myRect.width; xx++) {
             // optional draw border, above
-            if (myRealm.grid[xx][yy].getTerrain() != Square.water) {
-               if (yy > 0 && myRealm.grid[xx][yy-1].getTerrain() != Square.water)
+            if (myRealm.grid.getTerrain(xx, yy) != Square.water) {
+               if (yy > 0 && myRealm.grid.getTerrain(xx, yy-1) != Square.water)
                {
-                  int ch = myRealm.grid[xx][yy].getTown();
-                  int c1 = myRealm.grid[xx][yy-1].getTown();
+                  int ch = myRealm.grid.getTown(xx, yy);
+                  int c1 = myRealm.grid.getTown(xx, yy-1);
                   if (ch != c1) {
                      x0 = sqToXPixel(xx);
                      y0 = sqToYPixel(yy);
@@ -499,10 +512,10 @@ public class RoadMapCanvas extends Canvas {
                   }
                }
                // optional draw border, left
-               if (xx > 0 && myRealm.grid[xx-1][yy].getTerrain() != Square.water)
+               if (xx > 0 && myRealm.grid.getTerrain(xx-1, yy) != Square.water)
                {
-                  int ch = myRealm.grid[xx][yy].getTown();
-                  int c3 = myRealm.grid[xx-1][yy].getTown();
+                  int ch = myRealm.grid.getTown(xx, yy);
+                  int c3 = myRealm.grid.getTown(xx-1, yy);
                   if (ch != c3) {
                      x0 = sqToXPixel(xx);
                      y0 = sqToYPixel(yy);
@@ -539,7 +552,8 @@ public class RoadMapCanvas extends Canvas {
 
       for (int xx = myRect.x; xx < myRect.x + myRect.width; xx++) {
          for (int yy = myRect.y; yy < myRect.y + myRect.height; yy++) {
-            if (myRealm.grid[xx][yy].junc == null) {
+            Junction j = myRealm.grid.peekJunc(xx, yy);
+            if (j == null) {
                continue;
             }
 
@@ -555,8 +569,7 @@ public class RoadMapCanvas extends Canvas {
             int dx[] = {xc, x1, x1, x1, xc, x0, x0, x0};
             int dy[] = {y0, y0, yc, y1, y1, y1, yc, y0};
 
-            Junction j = myRealm.grid[xx][yy].junc; // alias
-            if (j.bridge == Junction.none) {
+            if (j.getBridge() == Junction.none) {
                // do undivided first, so any divided can overprint
                for (int dir = 0; dir < Junction.numDirs; dir++) {
                   paveType = j.pavementAt(dir);
@@ -578,7 +591,7 @@ public class RoadMapCanvas extends Canvas {
                }
             }
             else {
-               int bdir = j.bridge - 1;
+               int bdir = j.getBridge() - 1;
                // do lower road first
                for (int dir = 0; dir < Junction.numDirs; dir++) {
                   if ((dir % 4) != bdir) {
@@ -721,7 +734,7 @@ public class RoadMapCanvas extends Canvas {
    private void getRoadInfo(int x, int y) {
       Point square = new Point();
       int octant = pixelToPointAndOctant(new Point(x,y), square);
-      if (myRealm.grid[square.x][square.y].getTerrain() != Square.water) {
+      if (myRealm.grid.getTerrain(square.x, square.y) != Square.water) {
          myMapFrame.reportRoadInfo(square, octant);
          myPanel.infoCopiedFromMap(square, octant);
       }
@@ -752,14 +765,15 @@ public void reshape(int x, int y, int w, int h) {
    private void tempSetBridge(int x, int y) {
       int xx = pixelToXSq(x);
       int yy = pixelToYSq(y);
-      Junction j = myRealm.grid[xx][yy].junc;
+      Junction j = myRealm.grid.peekJunc(xx, yy);
       if (j == null) {
          return;
       }
-      j.bridge++;
-      if (j.bridge > 4) {
-         j.bridge = 0;
+      int bridge = j.getBridge() + 1;
+      if (bridge > 4) {
+         bridge = 0;
       }
+      j.setBridge(bridge);
       repaint();
    }
 
@@ -0,0 +1,117 @@
+package com.kurumi.matr;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Remembers which tiles each route starts and ends on, so the
+ * Realm doesn't have to scan the grid after every edit.
+ * Realm updates this whenever it adds or removes route ids on a leg;
+ * only the two tiles of that leg can change status.
+ *
+ * A well-formed route has one start and one end, but a route being
+ * edited can briefly have more. Tiles are kept sorted by tile number,
+ * so the first start is the one a row-by-row scan would have found.
+ *
+ * @author soglesby
+ *
+ */
+class RouteEndIndex {
+	// a route's start (or end) tiles, sorted; usually just one.
+	// kept in a plain int array so updates don't box or allocate.
+	private static final class Tiles {
+		int[] tiles = new int[2];
+		int size = 0;
+
+		void add(int tile) {
+			int i = Arrays.binarySearch(tiles, 0, size, tile);
+			if (i >= 0) {
+				return;
+			}
+			i = -i - 1;
+			if (size == tiles.length) {
+				tiles = Arrays.copyOf(tiles, size * 2);
+			}
+			System.arraycopy(tiles, i, tiles, i + 1, size - i);
+			tiles[i] = tile;
+			size++;
+		}
+
+		void remove(int tile) {
+			int i = Arrays.binarySearch(tiles, 0, size, tile);
+			if (i >= 0) {
+				System.arraycopy(tiles, i + 1, tiles, i, size - i - 1);
+				size--;
+			}
+		}
+	}
+
+	// indexed by route id; null until the route has an end
+	private ArrayList<Tiles> starts = new ArrayList<Tiles>();
+	private ArrayList<Tiles> ends = new ArrayList<Tiles>();
+
+	private static Tiles tilesFor(ArrayList<Tiles> sets, int rid,
+			boolean create) {
+		while (sets.size() <= rid) {
+			if (!create) {
+				return null;
+			}
+			sets.add(null);
+		}
+		Tiles tiles = sets.get(rid);
+		if (tiles == null && create) {
+			tiles = new Tiles();
+			sets.set(rid, tiles);
+		}
+		return tiles;
+	}
+
+	private static void mark(ArrayList<Tiles> sets, int rid,
+			int tile, boolean isThere) {
+		if (isThere) {
+			tilesFor(sets, rid, true).add(tile);
+		}
+		else {
+			Tiles tiles = tilesFor(sets, rid, false);
+			if (tiles != null) {
+				tiles.remove(tile);
+			}
+		}
+	}
+
+	private static int first(ArrayList<Tiles> sets, int rid) {
+		Tiles tiles = tilesFor(sets, rid, false);
+		if (tiles == null || tiles.size == 0) {
+			return -1;
+		}
+		return tiles.tiles[0];
+	}
+
+	/**
+	 * Record whether a tile is now a start and/or end of a route
+	 * @param rid route id
+	 * @param tile tile number (see RealmGrid.tile())
+	 * @param isStart true if the route leaves but does not enter the tile
+	 * @param isEnd true if the route enters but does not leave the tile
+	 */
+	void update(int rid, int tile, boolean isStart, boolean isEnd) {
+		mark(starts, rid, tile, isStart);
+		mark(ends, rid, tile, isEnd);
+	}
+
+	/**
+	 * @param rid route id
+	 * @return tile number where the route starts, or -1 if it has no start
+	 */
+	int getStart(int rid) {
+		return first(starts, rid);
+	}
+
+	/**
+	 * @param rid route id
+	 * @return tile number where the route ends, or -1 if it has no end
+	 */
+	int getEnd(int rid) {
+		return first(ends, rid);
+	}
+}
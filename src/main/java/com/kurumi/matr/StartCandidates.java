@@ -0,0 +1,150 @@
+package com.kurumi.matr;
+
+import java.awt.Point;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Tiles where a new route or rural road may start, one set per
+ * heading (north, east, south, west): a two-way stretch of road whose
+ * leg in that heading is still empty and could be paved.
+ * That's the test Realm.pickRouteStart() and pickStreetStart() use.
+ *
+ * It depends only on which legs are paved here and on the next tile
+ * over, so the index listens to the JunctionTable and rechecks a tile
+ * and its four neighbors whenever the tile's paved legs change.
+ * Each set keeps its members in an array plus a slot -> position map,
+ * so adding, removing and drawing at random are all O(1).
+ *
+ * @author soglesby
+ *
+ */
+class StartCandidates implements JunctionTable.LegListener {
+   // draws to find a start in the preferred part of the map,
+   // before settling for one anywhere
+   private static final int regionTries = 32;
+
+   private final Realm realm;
+   private final RealmGrid grid;
+   private final JunctionTable juncs;
+   private final Point scratch = new Point();
+
+   // index by heading/2; members[h][0..size[h]-1] are slots.
+   // pos[h][slot] is 1 + index into members[h], or 0 if absent.
+   private final int[][] members = new int[Junction.numDirs / 2][];
+   private final int[][] pos = new int[Junction.numDirs / 2][];
+   private final int[] size = new int[Junction.numDirs / 2];
+
+   // builds from the current pavement; call setLegListener() after
+   StartCandidates(Realm realm_) {
+      realm = realm_;
+      grid = realm.grid;
+      juncs = grid.getJunctionTable();
+      int slots = juncs.getNumSlots();
+      for (int h = 0; h < members.length; h++) {
+         members[h] = new int[Math.max(slots / 4, 64)];
+         pos[h] = new int[slots];
+      }
+      // in tile order, so slot numbering doesn't change the draws
+      int tiles = grid.getWidth() * grid.getHeight();
+      for (int t = 0; t < tiles; t++) {
+         for (int h = 0; h < Junction.numDirs; h += 2) {
+            update(t, h);
+         }
+      }
+   }
+
+   // number of start tiles for a 90-degree heading
+   int size(int heading) {
+      return size[heading >> 1];
+   }
+
+   @Override
+   public void legsChanged(int tile) {
+      int x = grid.tileX(tile);
+      int y = grid.tileY(tile);
+      for (int h = 0; h < Junction.numDirs; h += 2) {
+         update(tile, h);
+         // the neighbor this way looks back at us with heading h+4
+         scratch.setLocation(x, y);
+         Junction.move(scratch, h);
+         if (scratch.x >= 0 && scratch.y >= 0 &&
+             scratch.x < grid.getWidth() && scratch.y < grid.getHeight()) {
+            update(grid.tile(scratch.x, scratch.y),
+                   Junction.getReverseDirection(h));
+         }
+      }
+   }
+
+   // recheck one tile for one heading
+   private void update(int tile, int heading) {
+      int slot = juncs.slotAt(tile);
+      if (slot == 0) {
+         return;  // never paved; can't be two-way
+      }
+      boolean ok = juncs.isTwoWay(slot) && juncs.isEmpty(slot, heading) &&
+         !realm.cantPave(grid.tileX(tile), grid.tileY(tile), heading);
+      if (ok) {
+         add(heading >> 1, slot);
+      }
+      else {
+         remove(heading >> 1, slot);
+      }
+   }
+
+   private void add(int h, int slot) {
+      int[] p = pos[h];
+      if (slot < p.length && p[slot] != 0) {
+         return;
+      }
+      if (slot >= p.length) {
+         p = pos[h] = Arrays.copyOf(p, Math.max(slot + 1, p.length * 2));
+      }
+      if (size[h] == members[h].length) {
+         members[h] = Arrays.copyOf(members[h], size[h] * 2);
+      }
+      members[h][size[h]++] = slot;
+      p[slot] = size[h];
+   }
+
+   private void remove(int h, int slot) {
+      int[] p = pos[h];
+      if (slot >= p.length || p[slot] == 0) {
+         return;
+      }
+      // move last member into the hole
+      int i = p[slot] - 1;
+      int last = members[h][--size[h]];
+      members[h][i] = last;
+      p[last] = i + 1;
+      p[slot] = 0;
+   }
+
+   /**
+    * Choose a start for a road heading this way, preferring the
+    * part of the map Realm.inStartRegion() picks for that heading.
+    * @param here gets the start
+    * @param heading north, east, south or west
+    * @param dice random stream to draw from
+    * @return number of draws, or 0 if there is nowhere to start
+    */
+   int pick(Point here, int heading, Random dice) {
+      int h = heading >> 1;
+      int n = size[h];
+      if (n == 0) {
+         return 0;
+      }
+      int draws = 0;
+      int tile;
+      do {
+         tile = juncs.tileAt(members[h][dice.nextInt(n)]);
+         draws++;
+         if (realm.inStartRegion(grid.tileX(tile), grid.tileY(tile),
+                                 heading)) {
+            break;
+         }
+      } while (draws < regionTries);
+      here.setLocation(grid.tileX(tile), grid.tileY(tile));
+      return draws;
+   }
+}
@@ -0,0 +1,119 @@
+package com.kurumi.matr;
+
+import java.lang.management.ManagementFactory;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Checks that the per-square paths used by the generator, the map
+ * renderer and the highway log allocate nothing: walking routes,
+ * asking about inflections and route ids, cantPave(), and the
+ * x,y forms of the *Both mutators.
+ * Uses the HotSpot per-thread allocation counter; on a JVM without
+ * one, the test passes without checking.
+ */
+public class AllocationTest
+    extends TestCase
+{
+    private static final int warmups = 5, runs = 20;
+
+    public AllocationTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( AllocationTest.class );
+    }
+
+    // walk every route, reading and rewriting each leg in place;
+    // return # of squares visited
+    static long step( Realm realm, int[] sink )
+    {
+        RealmGrid grid = realm.grid;
+        JunctionTable juncs = grid.getJunctionTable();
+        long steps = 0;
+        for ( int rid = 1; rid <= realm.getNumRoutes(); rid++ )
+        {
+            int t = grid.tile( realm.routes[rid].getStart().x,
+                               realm.routes[rid].getStart().y );
+            int next;
+            while ( ( next = realm.nextRouteTile( t, rid ) ) >= 0 )
+            {
+                int x = grid.tileX( t );
+                int y = grid.tileY( t );
+                int dir = realm.routeDirection( t, rid );
+                steps++;
+
+                // what the map and log ask
+                if ( realm.isRouteInflection( x, y ) )
+                {
+                    sink[0]++;
+                }
+                sink[0] += realm.ridAt( x, y, dir, 0 ) +
+                    realm.ridAt( x, y, dir, 1 );
+                if ( realm.ridLeavesDiagonally( x, y, rid ) )
+                {
+                    sink[0]++;
+                }
+                for ( int h = 0; h < Junction.numDirs; h++ )
+                {
+                    if ( realm.cantPave( x, y, h ) )
+                    {
+                        sink[0]++;
+                    }
+                }
+
+                // what the generator and editor do, undone right away
+                int slot = juncs.slotAt( t );
+                realm.removeRidBoth( x, y, dir, rid );
+                realm.addRidBoth( x, y, dir, rid, true );
+                realm.setPaveBoth( x, y, dir, juncs.pavementAt( slot, dir ) );
+                realm.setSidBoth( x, y, dir, juncs.sidAt( slot, dir ) );
+                t = next;
+            }
+        }
+        return steps;
+    }
+
+    public void testRouteStepsDontAllocate()
+    {
+        java.lang.management.ThreadMXBean mx =
+            ManagementFactory.getThreadMXBean();
+        if ( !( mx instanceof com.sun.management.ThreadMXBean ) )
+        {
+            return;
+        }
+        com.sun.management.ThreadMXBean counter =
+            (com.sun.management.ThreadMXBean) mx;
+        if ( !counter.isThreadAllocatedMemorySupported() )
+        {
+            return;
+        }
+        counter.setThreadAllocatedMemoryEnabled( true );
+
+        Realm realm = SampleRealms.make();
+        int[] sink = new int[1];
+        for ( int i = 0; i < warmups; i++ )
+        {
+            step( realm, sink );
+        }
+
+        long id = Thread.currentThread().getId();
+        long steps = 0;
+        long before = counter.getThreadAllocatedBytes( id );
+        for ( int i = 0; i < runs; i++ )
+        {
+            steps += step( realm, sink );
+        }
+        long bytes = counter.getThreadAllocatedBytes( id ) - before;
+
+        assertTrue( "no route squares to step through", steps > 1000 );
+        // anything allocated per step would be at least 16 bytes each
+        assertTrue( bytes + " bytes allocated over " + steps + " steps",
+                    bytes < steps );
+    }
+}
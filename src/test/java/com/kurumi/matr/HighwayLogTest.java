@@ -0,0 +1,305 @@
+package com.kurumi.matr;
+
+import java.awt.Point;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * HighwayLog's shortcuts must give exactly the text of a full
+ * logAllRoutes() on the realm as it stands.
+ */
+public class HighwayLogTest
+    extends TestCase
+{
+    public HighwayLogTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( HighwayLogTest.class );
+    }
+
+    private static String fullLog( Realm realm )
+    {
+        return new HighwayLog( realm ).logAllRoutes();
+    }
+
+    public void testOnlyEditedRoutesAreRelogged()
+    {
+        Realm realm = SampleRealms.make();
+        HighwayLog log = new HighwayLog( realm );
+        assertEquals( fullLog( realm ), log.logChangedRoutes() );
+        assertEquals( realm.getNumRoutes(), log.numRelogged );
+
+        // nothing changed
+        assertEquals( fullLog( realm ), log.logChangedRoutes() );
+        assertEquals( 0, log.numRelogged );
+
+        SampleRealms.Leg erased = SampleRealms.eraseRouteStart( realm, 1 );
+        assertEquals( fullLog( realm ), log.logChangedRoutes() );
+        assertTrue( log.numRelogged >= 1 );
+        assertTrue( log.numRelogged < realm.getNumRoutes() );
+
+        // pave and number it again, as a new route
+        SampleRealms.paveNewRoute( realm, erased, 9999 );
+        assertEquals( fullLog( realm ), log.logChangedRoutes() );
+        assertTrue( log.numRelogged < realm.getNumRoutes() );
+
+        // renames can show up in any log
+        realm.changeRoute( realm.routes[2].getNumber(), 8888 );
+        assertEquals( fullLog( realm ), log.logChangedRoutes() );
+        realm.changeTown( realm.towns[1].getName(), "Relogton" );
+        assertEquals( fullLog( realm ), log.logChangedRoutes() );
+    }
+
+    // a viewer drops a build when a newer refresh comes in
+    public void testStoppedLogIsFinishedNextTime()
+    {
+        Realm realm = SampleRealms.make();
+        HighwayLog log = new HighwayLog( realm );
+        final StringBuilder shown = new StringBuilder();
+        boolean finished = log.logChangedRoutes( new HighwayLog.Sections()
+        {
+            int left = 5;
+
+            @Override
+            public boolean append( String text )
+            {
+                shown.append( text );
+                return --left > 0;
+            }
+        } );
+        assertFalse( finished );
+        assertTrue( fullLog( realm ).startsWith( shown.toString() ) );
+
+        // the routes it didn't get to are logged now
+        assertEquals( fullLog( realm ), log.logChangedRoutes() );
+        assertTrue( log.numRelogged > 0 );
+        assertEquals( fullLog( realm ), log.logChangedRoutes() );
+        assertEquals( 0, log.numRelogged );
+    }
+
+    // routes logged on several threads, put back in number order
+    public void testParallelMatchesSequential() throws IOException
+    {
+        Realm realm = SampleRealms.make();
+        HighwayLog sequential = new HighwayLog( realm );
+        HighwayLog parallel = new HighwayLog( realm );
+        assertEquals( sequential.logAllRoutes(),
+                      parallel.logAllRoutesParallel() );
+        assertEquals( sequential.getTotalMileage(),
+                      parallel.getTotalMileage() );
+
+        // a mapped realm fills its junction pages first
+        Path path = Files.createTempFile( "realm", ".matr" );
+        try
+        {
+            RealmFile.save( realm, path );
+            Realm mapped = RealmFile.map( path );
+            assertEquals( fullLog( realm ),
+                          new HighwayLog( mapped ).logAllRoutesParallel() );
+        }
+        finally
+        {
+            Files.delete( path );
+        }
+    }
+
+    // a build started during an edit waits for it, and logs the realm
+    // as the edit left it
+    public void testLogWaitsForEdit() throws Exception
+    {
+        final Realm realm = SampleRealms.make();
+        final HighwayLog log = new HighwayLog( realm );
+        final StringBuffer shown = new StringBuffer();
+        final AtomicInteger sections = new AtomicInteger();
+        Thread builder = new Thread( "Highway log" )
+        {
+            @Override
+            public void run()
+            {
+                log.logChangedRoutes( new HighwayLog.Sections()
+                {
+                    @Override
+                    public boolean append( String text )
+                    {
+                        sections.incrementAndGet();
+                        shown.append( text );
+                        return true;
+                    }
+                } );
+            }
+        };
+
+        realm.editLock.lock();
+        try
+        {
+            builder.start();
+            Thread.sleep( 200 );
+            assertEquals( 0, sections.get() );
+            SampleRealms.eraseRouteStart( realm, 1 );
+        }
+        finally
+        {
+            realm.editLock.unlock();
+        }
+        builder.join();
+        assertEquals( fullLog( realm ), shown.toString() );
+    }
+
+    // edits under the realm's editLock while another thread logs and
+    // exports, as the path tool and the viewer's builder do: nothing
+    // trips, no junction cache keeps an answer from before an edit,
+    // and the next log is right
+    public void testEditsWhileLogging() throws Exception
+    {
+        final Realm realm = SampleRealms.make();
+        final HighwayLog log = new HighwayLog( realm );
+        final AtomicBoolean editing = new AtomicBoolean( true );
+        final Exception[] failure = new Exception[1];
+        Thread builder = new Thread( "Highway log" )
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    while ( editing.get() )
+                    {
+                        log.logChangedRoutes();
+                        log.exportLog( new StringWriter(),
+                                       HighwayLog.exportCsv );
+                    }
+                }
+                catch ( Exception e )
+                {
+                    failure[0] = e;
+                }
+            }
+        };
+        builder.start();
+
+        Random dice = new Random( 3 );
+        for ( int i = 0; i < 300 && builder.isAlive(); i++ )
+        {
+            realm.editLock.lock();
+            try
+            {
+                SampleRealms.randomEdit( realm, dice );
+                for ( int rid = 1; rid <= realm.getNumRoutes(); rid++ )
+                {
+                    realm.findRouteStart( rid );
+                    realm.findRouteEnd( rid );
+                }
+            }
+            finally
+            {
+                realm.editLock.unlock();
+            }
+            Thread.yield();
+        }
+        editing.set( false );
+        builder.join();
+        if ( failure[0] != null )
+        {
+            throw failure[0];
+        }
+
+        JunctionTable juncs = realm.grid.getJunctionTable();
+        int[] cached = new int[juncs.getNumSlots()];
+        for ( int slot = 1; slot < cached.length; slot++ )
+        {
+            cached[slot] = SampleRealms.classify( juncs, slot );
+        }
+        juncs.forgetClassification();
+        for ( int slot = 1; slot < cached.length; slot++ )
+        {
+            assertEquals( "tile " + juncs.tileAt( slot ),
+                          SampleRealms.classify( juncs, slot ),
+                          cached[slot] );
+        }
+        assertEquals( fullLog( realm ), log.logChangedRoutes() );
+    }
+
+    // appending a description gives the same text as the String form
+    public void testDescribeAppends() throws IOException
+    {
+        Realm realm = SampleRealms.make();
+        StringBuilder out = new StringBuilder( "x" );
+        for ( int rid = 1; rid <= realm.getNumRoutes(); rid++ )
+        {
+            Point here = new Point( realm.routes[rid].getStart() );
+            do
+            {
+                Junction junc = realm.pToJ( here );
+                String desc = junc.describe( realm, rid );
+                out.setLength( 1 );
+                assertEquals( desc.length() > 0,
+                              junc.describe( realm, rid, out ) );
+                assertEquals( "x" + desc, out.toString() );
+            }
+            while ( realm.nextJunc( here, rid ) );
+        }
+    }
+
+    // the export writes what logAllRoutes() gives, and leaves the
+    // remembered logs alone
+    public void testExport() throws IOException
+    {
+        Realm realm = SampleRealms.make();
+        HighwayLog log = new HighwayLog( realm );
+
+        // walks it makes aren't kept
+        StringWriter first = new StringWriter();
+        log.exportLog( first, HighwayLog.exportText );
+        for ( int rid = 1; rid <= realm.getNumRoutes(); rid++ )
+        {
+            assertFalse( realm.getMileposts().isKept( rid ) );
+        }
+
+        String text = log.logChangedRoutes();
+        assertEquals( text, first.toString() );
+
+        StringWriter out = new StringWriter();
+        log.exportLog( out, HighwayLog.exportText );
+        assertEquals( text, out.toString() );
+        assertEquals( text, log.logChangedRoutes() );
+        assertEquals( 0, log.numRelogged );
+
+        // a line for each milepost line of the text
+        int mileposts = text.split( "\n[0-9]+\\.[0-9][0-9]: ", -1 ).length - 1;
+        StringWriter csv = new StringWriter();
+        log.exportLog( csv, HighwayLog.exportCsv );
+        String[] lines = csv.toString().split( "\n" );
+        assertEquals( HighwayLog.csvHeader, lines[0] );
+        assertEquals( mileposts, lines.length - 1 );
+        // each the same as its line in the route's log
+        for ( int i = 1; i < lines.length; i++ )
+        {
+            String[] fields = lines[i].split( ",", 3 );
+            Route route = realm.routes[realm.getRouteId(
+                Integer.parseInt( fields[0] ) )];
+            String event = fields[2].substring( 1, fields[2].length() - 1 )
+                .replace( "\"\"", "\"" );
+            assertTrue( lines[i], route.getLog().toString().contains(
+                "\n" + fields[1] + ": " + event ) );
+        }
+
+        StringWriter json = new StringWriter();
+        log.exportLog( json, HighwayLog.exportJson );
+        lines = json.toString().split( "\n" );
+        assertEquals( mileposts, lines.length );
+        assertTrue( lines[0], lines[0].startsWith( "{\"route\":" ) );
+    }
+}
@@ -0,0 +1,100 @@
+package com.kurumi.matr;
+
+/**
+ * Rough timing of the two hot Junction read paths on a large realm:
+ * walking every route end to end (what the highway logs do), and
+ * reading every tile's pavement, bridge and route codes the way
+ * RoadMapCanvas.drawRoads() does.
+ * Results are in nanoseconds per tile visited, so realms of different
+ * sizes, or different id encodings, can be compared directly.
+ * Also reports what the junction slots take up.
+ *
+ * Not a unit test; run by hand after mvn test-compile:
+ *   java -cp target/classes:target/test-classes \
+ *      com.kurumi.matr.JunctionBenchmark [width height routes]
+ * @author soglesby
+ *
+ */
+public class JunctionBenchmark {
+   private static final int warmups = 3, runs = 5;
+
+   // visit every tile of every route; return # of tiles walked
+   static long walkRoutes(Realm realm) {
+      long tiles = 0;
+      for (int rid = 1; rid <= realm.getNumRoutes(); rid++) {
+         tiles += realm.routeLength(realm.routes[rid].getStart(), rid) + 1;
+      }
+      return tiles;
+   }
+
+   // read each junction like drawRoads(); return # of tiles read
+   static long scanRoads(Realm realm, int[] sink) {
+      RealmGrid grid = realm.grid;
+      long tiles = 0;
+      for (int x = 0; x < grid.getWidth(); x++) {
+         for (int y = 0; y < grid.getHeight(); y++) {
+            tiles++;
+            Junction j = grid.peekJunc(x, y);
+            if (j == null) {
+               continue;
+            }
+            sink[0] += j.getBridge();
+            for (int dir = 0; dir < Junction.numDirs; dir++) {
+               int paveType = j.pavementAt(dir);
+               if (paveType != Junction.none && !j.hasNoRoutes(dir)) {
+                  sink[0] += paveType;
+               }
+            }
+         }
+      }
+      return tiles;
+   }
+
+   private static void report(String what, long nanos, long tiles) {
+      System.out.printf("%-12s %10d tiles %8.2f ns/tile%n",
+                        what, tiles, (double) nanos / tiles);
+   }
+
+   public static void main(String[] args) {
+      int width = 2000, height = 1200, numRoutes = 1500;
+      if (args.length == 3) {
+         width = Integer.parseInt(args[0]);
+         height = Integer.parseInt(args[1]);
+         numRoutes = Integer.parseInt(args[2]);
+      }
+
+      long t0 = System.nanoTime();
+      Realm realm = new Realm(width, height, numRoutes);
+      realm.create();
+      long t1 = System.nanoTime();
+      int numSlots = realm.grid.getJunctionTable().getNumSlots();
+      System.out.println(width + "x" + height + ": " + realm.getNumTowns() +
+                         " towns, " + realm.getNumRoutes() + " routes, " +
+                         numSlots + " junctions, created in " +
+                         (t1 - t0) / 1000000 + " ms");
+      long slotBytes = (long) numSlots * JunctionTable.slotBytes;
+      System.out.printf("junction slots: %d bytes each, %.1f MB%n",
+                        JunctionTable.slotBytes, slotBytes / 1048576.0);
+
+      int[] sink = new int[1];
+      for (int i = 0; i < warmups; i++) {
+         walkRoutes(realm);
+         scanRoads(realm, sink);
+      }
+
+      long walked = 0, scanned = 0, walkTime = 0, scanTime = 0;
+      for (int i = 0; i < runs; i++) {
+         t0 = System.nanoTime();
+         walked += walkRoutes(realm);
+         t1 = System.nanoTime();
+         scanned += scanRoads(realm, sink);
+         walkTime += t1 - t0;
+         scanTime += System.nanoTime() - t1;
+      }
+      report("route walk", walkTime, walked);
+      report("road scan", scanTime, scanned);
+      if (sink[0] == 42) {
+         System.out.println();  // keep the scan from being optimized away
+      }
+   }
+}
@@ -0,0 +1,87 @@
+package com.kurumi.matr;
+
+import java.util.Random;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * The classification JunctionTable caches per slot must be what it
+ * would work out afresh, after any edit; and a reserve must hold the
+ * table's arrays still.
+ */
+public class JunctionTableTest
+    extends TestCase
+{
+    private static final int edits = 300;
+
+    public JunctionTableTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( JunctionTableTest.class );
+    }
+
+    public void testClassificationAfterEdits()
+    {
+        Realm realm = SampleRealms.make();
+        JunctionTable juncs = realm.grid.getJunctionTable();
+        Random dice = new Random( 2 );
+        int[] cached = new int[0];
+        for ( int i = 0; i < edits; i++ )
+        {
+            // cache every slot, then edit
+            for ( int slot = 1; slot < juncs.getNumSlots(); slot++ )
+            {
+                SampleRealms.classify( juncs, slot );
+            }
+            SampleRealms.randomEdit( realm, dice );
+
+            int numSlots = juncs.getNumSlots();
+            if ( cached.length < numSlots )
+            {
+                cached = new int[numSlots];
+            }
+            for ( int slot = 1; slot < numSlots; slot++ )
+            {
+                cached[slot] = SampleRealms.classify( juncs, slot );
+            }
+            juncs.forgetClassification();
+            for ( int slot = 1; slot < numSlots; slot++ )
+            {
+                assertEquals( "edit " + i + ", tile " + juncs.tileAt( slot ),
+                              SampleRealms.classify( juncs, slot ),
+                              cached[slot] );
+            }
+        }
+    }
+
+    // making more slots than reserved would move the arrays under
+    // other threads, so it throws instead
+    public void testReserveHolds()
+    {
+        JunctionTable juncs = new JunctionTable( 1000 );
+        juncs.reserve( 300 );
+        for ( int t = 0; t < 300; t++ )
+        {
+            juncs.slotFor( t );
+        }
+        try
+        {
+            juncs.slotFor( 300 );
+            fail( "made more slots than reserved" );
+        }
+        catch ( IllegalStateException e )
+        {
+            // expected
+        }
+        assertEquals( 301, juncs.getNumSlots() );
+
+        juncs.endReserve();
+        assertEquals( 301, juncs.slotFor( 300 ) );
+    }
+}
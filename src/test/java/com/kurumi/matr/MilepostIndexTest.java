@@ -0,0 +1,76 @@
+package com.kurumi.matr;
+
+import java.awt.Point;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * MilepostIndex must agree with a walk along each route with nextJunc,
+ * counting diagonal steps at their true length.
+ */
+public class MilepostIndexTest
+    extends TestCase
+{
+    public MilepostIndexTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( MilepostIndexTest.class );
+    }
+
+    public void testLookupsMatchWalk()
+    {
+        Realm realm = SampleRealms.make();
+        MilepostIndex index = realm.getMileposts();
+        boolean diagonals = false;
+        for ( int rid = 1; rid <= realm.getNumRoutes(); rid++ )
+        {
+            Point here = new Point( realm.routes[rid].getStart() );
+            int my100s = 0;
+            while ( true )
+            {
+                int t = realm.grid.tile( here.x, here.y );
+                assertEquals( my100s, index.milepostAt( rid, t ) );
+                assertEquals( t, index.tileAt( rid, my100s ) );
+                int dir = realm.routeDirection( t, rid );
+                if ( !realm.nextJunc( here, rid ) )
+                {
+                    break;
+                }
+                if ( Junction.isDiagonal( dir ) )
+                {
+                    my100s += Square.diagLength;
+                    diagonals = true;
+                }
+                else
+                {
+                    my100s += Square.straightLength;
+                }
+                // between two tiles is the first of them
+                assertEquals( t, index.tileAt( rid, my100s - 1 ) );
+            }
+            assertEquals( my100s, index.getLength( rid ) );
+            assertEquals( index.getLength( rid ),
+                          new HighwayLog( realm ).logOneRoute( realm.routes[rid] ) );
+        }
+        assertTrue( diagonals );
+        assertEquals( -1, index.tileAt( 1, -1 ) );
+        assertEquals( -1, index.milepostAt( 1, -5 ) );
+    }
+
+    public void testEditedRouteIsWalkedAgain()
+    {
+        Realm realm = SampleRealms.make();
+        MilepostIndex index = realm.getMileposts();
+        int length = index.getLength( 1 );
+
+        Point here = SampleRealms.eraseRouteStart( realm, 1 ).at;
+        assertEquals( -1, index.milepostAt( 1, realm.grid.tile( here.x, here.y ) ) );
+        assertTrue( index.getLength( 1 ) < length );
+    }
+}
@@ -0,0 +1,83 @@
+package com.kurumi.matr;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Parallel path layout must give a realm that keeps the paving rules,
+ * whose routes are whole, and that depends only on the seed.
+ */
+public class PathLayoutTest
+    extends TestCase
+{
+    public PathLayoutTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( PathLayoutTest.class );
+    }
+
+    // big enough for several route regions in each pass
+    private static Realm makeParallel( long seed )
+    {
+        Realm realm = new Realm( 600, 300, 120 );
+        realm.setSeed( seed );
+        realm.setPathLayout( Realm.pathsParallel );
+        realm.create();
+        return realm;
+    }
+
+    public void testPavingRules()
+    {
+        Realm realm = makeParallel( 1 );
+        // some routes were stopped at a region's edge and carried on
+        assertTrue( realm.getProfile().getRouteLayouts() >
+                    2 * realm.getNumRoutes() );
+
+        // each leg could have been paved given all the others
+        JunctionTable juncs = realm.grid.getJunctionTable();
+        for ( int slot = 1; slot < juncs.getNumSlots(); slot++ )
+        {
+            int t = juncs.tileAt( slot );
+            int x = realm.grid.tileX( t );
+            int y = realm.grid.tileY( t );
+            for ( int dir = 0; dir < Junction.numDirs; dir++ )
+            {
+                int paveType = juncs.pavementAt( slot, dir );
+                if ( paveType == 0 )
+                {
+                    continue;
+                }
+                int other = juncs.slotAt( realm.stepTile( t, dir ) );
+                int reverse = Junction.getReverseDirection( dir );
+                assertEquals( paveType, juncs.pavementAt( other, reverse ) );
+                juncs.setPavement( slot, dir, 0 );
+                juncs.setPavement( other, reverse, 0 );
+                assertFalse( x + "," + y + " heading " + dir,
+                             realm.cantPave( x, y, dir ) );
+                juncs.setPavement( slot, dir, paveType );
+                juncs.setPavement( other, reverse, paveType );
+            }
+        }
+    }
+
+    public void testRoutesAreWhole()
+    {
+        Realm realm = makeParallel( 2 );
+        for ( int rid = 1; rid <= realm.getNumRoutes(); rid++ )
+        {
+            assertTrue( realm.routeLength( realm.routes[rid].getStart(),
+                                           rid ) > 0 );
+        }
+        SampleRealms.assertEndsMatchScan( realm );
+    }
+
+    public void testSameForSameSeed()
+    {
+        RealmFileTest.assertSame( makeParallel( 3 ), makeParallel( 3 ) );
+    }
+}
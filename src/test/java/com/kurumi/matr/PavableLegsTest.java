@@ -0,0 +1,65 @@
+package com.kurumi.matr;
+
+import java.awt.Point;
+import java.util.Random;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * The pave masks Realm.cantPave() caches must be what a fresh
+ * PavableLegs works out, after paving, erasing and widening.
+ */
+public class PavableLegsTest
+    extends TestCase
+{
+    private static final int edits = 300;
+    // an edit changes the masks of tiles this near it, at most
+    private static final int reach = 3;
+
+    public PavableLegsTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( PavableLegsTest.class );
+    }
+
+    // every leg of every tile in a rectangle, cached against a cache
+    // that starts empty
+    private static void assertMasksMatch( Realm realm, String when,
+                                          int x0, int y0, int x1, int y1 )
+    {
+        PavableLegs fresh = new PavableLegs( realm.grid );
+        for ( int y = Math.max( y0, 0 ); y <= Math.min( y1, realm.getHeight() - 1 ); y++ )
+        {
+            for ( int x = Math.max( x0, 0 ); x <= Math.min( x1, realm.getWidth() - 1 ); x++ )
+            {
+                for ( int h = 0; h < Junction.numDirs; h++ )
+                {
+                    assertEquals( when + " at " + x + "," + y + " heading " + h,
+                                  !fresh.canPave( x, y, h ),
+                                  realm.cantPave( x, y, h ) );
+                }
+            }
+        }
+    }
+
+    public void testMasksAfterEdits()
+    {
+        Realm realm = SampleRealms.make();
+        Random dice = new Random( 3 );
+        int w = realm.getWidth(), h = realm.getHeight();
+        assertMasksMatch( realm, "generated", 0, 0, w, h );
+        for ( int i = 0; i < edits; i++ )
+        {
+            Point p = SampleRealms.randomEdit( realm, dice );
+            assertMasksMatch( realm, "edit " + i, p.x - reach, p.y - reach,
+                              p.x + reach, p.y + reach );
+        }
+        assertMasksMatch( realm, "edited", 0, 0, w, h );
+    }
+}
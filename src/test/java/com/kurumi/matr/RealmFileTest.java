@@ -0,0 +1,220 @@
+package com.kurumi.matr;
+
+import java.awt.Point;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Round trip through RealmFile: a loaded or mapped realm, flat or
+ * compressed, must match the saved one tile for tile, junction for
+ * junction, and give the same highway log.
+ */
+public class RealmFileTest
+    extends TestCase
+{
+    public RealmFileTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( RealmFileTest.class );
+    }
+
+    private static Realm roundTrip( Realm realm, boolean mapped,
+                                    boolean compressed )
+        throws IOException
+    {
+        Path path = Files.createTempFile( "realm", ".matr" );
+        try
+        {
+            RealmFile.save( realm, path, compressed );
+            return mapped ? RealmFile.map( path ) : RealmFile.load( path );
+        }
+        finally
+        {
+            Files.delete( path );
+        }
+    }
+
+    static void assertSame( Realm a, Realm b )
+    {
+        assertEquals( a.getWidth(), b.getWidth() );
+        assertEquals( a.getHeight(), b.getHeight() );
+        assertEquals( a.getSeed(), b.getSeed() );
+        assertEquals( a.getNumTowns(), b.getNumTowns() );
+        assertEquals( a.getNumStreets(), b.getNumStreets() );
+        assertEquals( a.getNumRoutes(), b.getNumRoutes() );
+
+        JunctionTable ja = a.grid.getJunctionTable();
+        JunctionTable jb = b.grid.getJunctionTable();
+        for ( int y = 0; y < a.getHeight(); y++ )
+        {
+            for ( int x = 0; x < a.getWidth(); x++ )
+            {
+                String at = "(" + x + "," + y + ")";
+                int t = a.grid.tile( x, y );
+                assertEquals( at, a.grid.getTerrain( t ), b.grid.getTerrain( t ) );
+                assertEquals( at, a.grid.getDisplayHint( x, y ),
+                              b.grid.getDisplayHint( x, y ) );
+                assertEquals( at, a.grid.getTown( t ), b.grid.getTown( t ) );
+                // slots are handed out afresh, so compare what's in them
+                int sa = ja.slotAt( t ), sb = jb.slotAt( t );
+                assertEquals( at, ja.layoutWord( sa ), jb.layoutWord( sb ) );
+                for ( int dir = 0; dir < Junction.numDirs; dir++ )
+                {
+                    assertEquals( at, ja.rdCode( sa, dir, 0 ), jb.rdCode( sb, dir, 0 ) );
+                    assertEquals( at, ja.rdCode( sa, dir, 1 ), jb.rdCode( sb, dir, 1 ) );
+                    assertEquals( at, ja.sdCode( sa, dir ), jb.sdCode( sb, dir ) );
+                }
+            }
+        }
+
+        for ( int tid = 1; tid <= a.getNumTowns(); tid++ )
+        {
+            assertEquals( a.towns[tid].getName(), b.towns[tid].getName() );
+            assertEquals( a.towns[tid].getCenter(), b.towns[tid].getCenter() );
+            assertEquals( a.towns[tid].getArea(), b.towns[tid].getArea() );
+            assertTrue( b.townExists( a.towns[tid].getName() ) );
+        }
+        for ( int sid = 1; sid <= a.getNumStreets(); sid++ )
+        {
+            assertEquals( a.streetNames[sid], b.streetNames[sid] );
+            assertEquals( a.getSId( a.streetNames[sid] ),
+                          b.getSId( b.streetNames[sid] ) );
+        }
+        for ( int rid = 1; rid <= a.getNumRoutes(); rid++ )
+        {
+            assertEquals( a.routes[rid].toString(), b.routes[rid].toString() );
+            int number = a.routes[rid].getNumber();
+            assertEquals( a.getRouteId( number ), b.getRouteId( number ) );
+        }
+        for ( int i = 0; a.topTowns[i] > 0; i++ )
+        {
+            assertEquals( a.topTowns[i], b.topTowns[i] );
+        }
+        for ( int i = 0; a.leftTowns[i] > 0; i++ )
+        {
+            assertEquals( a.leftTowns[i], b.leftTowns[i] );
+        }
+
+        assertEquals( new HighwayLog( a ).logAllRoutes(),
+                      new HighwayLog( b ).logAllRoutes() );
+    }
+
+    public void testRoundTrip() throws IOException
+    {
+        Realm realm = SampleRealms.make( 1 );
+        assertSame( realm, roundTrip( realm, false, true ) );
+    }
+
+    public void testRoundTripFlat() throws IOException
+    {
+        Realm realm = SampleRealms.make( 1 );
+        assertSame( realm, roundTrip( realm, false, false ) );
+    }
+
+    public void testMapped() throws IOException
+    {
+        Realm realm = SampleRealms.make( 1 );
+        Realm mapped = roundTrip( realm, true, true );
+        assertTrue( mapped.grid instanceof MappedRealmGrid );
+        assertSame( realm, mapped );
+    }
+
+    public void testMappedFlat() throws IOException
+    {
+        Realm realm = SampleRealms.make( 1 );
+        Realm mapped = roundTrip( realm, true, false );
+        assertTrue( mapped.grid instanceof MappedRealmGrid );
+        assertSame( realm, mapped );
+    }
+
+    // the first junction looked at is inflated from its page alone
+    public void testOnePage() throws IOException
+    {
+        Realm realm = SampleRealms.make( 1 );
+        Realm mapped = roundTrip( realm, true, true );
+        JunctionTable ja = realm.grid.getJunctionTable();
+        JunctionTable jb = mapped.grid.getJunctionTable();
+        Point start = realm.routes[1].getStart();
+        int t = realm.grid.tile( start.x, start.y );
+        int sa = ja.slotAt( t ), sb = jb.slotAt( t );
+        assertTrue( sa != 0 );
+        assertEquals( ja.layoutWord( sa ), jb.layoutWord( sb ) );
+        assertEquals( ja.usedLegs( sa ), jb.usedLegs( sb ) );
+        // only that page has been filled in
+        assertTrue( jb.getNumSlots() + " of " + ja.getNumSlots(),
+                    jb.getNumSlots() < ja.getNumSlots() / 2 );
+    }
+
+    // Erase doesn't find the new start of the route it cuts, so the
+    // saved Route can name a tile that's no longer its start
+    public void testRouteEndsAfterErase() throws IOException
+    {
+        Realm realm = SampleRealms.make();
+        Point here = realm.routes[1].getStart();
+        realm.clearLegBoth( here,
+                            realm.getForwardDirection( here.x, here.y, 1 ) );
+        SampleRealms.assertEndsMatchScan( roundTrip( realm, false, true ) );
+        SampleRealms.assertEndsMatchScan( roundTrip( realm, true, true ) );
+    }
+
+    public void testCompressedIsSmaller() throws IOException
+    {
+        Realm realm = SampleRealms.make( 1 );
+        Path flat = Files.createTempFile( "realm", ".matr" );
+        Path packed = Files.createTempFile( "realm", ".matr" );
+        try
+        {
+            RealmFile.save( realm, flat, false );
+            RealmFile.save( realm, packed, true );
+            assertTrue( Files.size( packed ) + " vs " + Files.size( flat ),
+                        Files.size( packed ) * 3 < Files.size( flat ) );
+        }
+        finally
+        {
+            Files.delete( flat );
+            Files.delete( packed );
+        }
+    }
+
+    public void testMappedTilesAreReadOnly() throws IOException
+    {
+        Realm mapped = roundTrip( SampleRealms.make( 1 ), true, true );
+        try
+        {
+            mapped.grid.setTerrain( 0, 0, Square.water );
+            fail( "changed a mapped tile" );
+        }
+        catch ( UnsupportedOperationException e )
+        {
+            // expected
+        }
+    }
+
+    public void testRejectsOtherFiles() throws IOException
+    {
+        Path path = Files.createTempFile( "realm", ".txt" );
+        try
+        {
+            Files.write( path, "not a realm".getBytes( "UTF-8" ) );
+            RealmFile.load( path );
+            fail( "loaded a text file" );
+        }
+        catch ( IOException e )
+        {
+            // expected
+        }
+        finally
+        {
+            Files.delete( path );
+        }
+    }
+}
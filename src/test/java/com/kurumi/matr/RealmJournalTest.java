@@ -0,0 +1,157 @@
+package com.kurumi.matr;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Edits recorded in a RealmJournal must come back when the realm is
+ * opened again, even if the last record was cut short, and compact()
+ * must fold them into the realm file.
+ */
+public class RealmJournalTest
+    extends TestCase
+{
+    private Path dir, file;
+
+    public RealmJournalTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( RealmJournalTest.class );
+    }
+
+    @Override
+    protected void setUp() throws IOException
+    {
+        dir = Files.createTempDirectory( "journal" );
+        file = dir.resolve( "realm.matr" );
+    }
+
+    @Override
+    protected void tearDown() throws IOException
+    {
+        Files.deleteIfExists( RealmJournal.pathFor( file ) );
+        Files.deleteIfExists( file );
+        Files.delete( dir );
+    }
+
+    // what the path tool and renamer do
+    private static void edit( Realm realm )
+    {
+        Route route = realm.routes[1];
+
+        // erase the start of route 1, then pave and number it again
+        SampleRealms.paveNewRoute( realm,
+                                   SampleRealms.eraseRouteStart( realm, 1 ),
+                                   9999 );
+
+        realm.changeRoute( route.getNumber(), 8888 );
+        realm.changeTown( realm.towns[1].getName(), "Journalton" );
+        realm.changeStreet( realm.streetNames[2], "Replay Road" );
+    }
+
+    public void testReplay() throws IOException
+    {
+        Realm realm = SampleRealms.make( 1 );
+        RealmJournal.compact( realm, null, file );
+        edit( realm );
+        realm.getJournal().close();
+
+        Realm opened = RealmFile.load( file );
+        RealmJournal journal = RealmJournal.open( opened, file );
+        journal.close();
+        RealmFileTest.assertSame( realm, opened );
+    }
+
+    public void testTornRecordIsDropped() throws IOException
+    {
+        Realm realm = SampleRealms.make( 1 );
+        RealmJournal.compact( realm, null, file );
+        Path path = realm.getJournal().getPath();
+        long before = Files.size( path );
+        edit( realm );
+        realm.getJournal().close();
+        assertTrue( Files.size( path ) > before );
+
+        // cut the last record short, as a crash might
+        try ( FileChannel ch = FileChannel.open( path, StandardOpenOption.WRITE ) )
+        {
+            ch.truncate( ch.size() - 3 );
+        }
+        Realm opened = RealmFile.load( file );
+        RealmJournal journal = RealmJournal.open( opened, file );
+        journal.close();
+        assertEquals( "Journalton", opened.towns[1].getName() );
+        assertFalse( opened.streetExists( "Replay Road" ) );
+    }
+
+    public void testCompact() throws IOException
+    {
+        Realm realm = SampleRealms.make( 1 );
+        RealmJournal.compact( realm, null, file );
+        Path path = realm.getJournal().getPath();
+        long empty = Files.size( path );
+        edit( realm );
+        RealmJournal.compact( realm, realm.getJournal(), file );
+        assertEquals( empty, Files.size( path ) );
+        realm.getJournal().close();
+
+        Realm opened = RealmFile.load( file );
+        RealmJournal.open( opened, file ).close();
+        RealmFileTest.assertSame( realm, opened );
+    }
+
+    // a save that fails leaves the journal recording
+    public void testFailedCompactKeepsJournal() throws IOException
+    {
+        Realm realm = SampleRealms.make( 1 );
+        RealmJournal journal = RealmJournal.compact( realm, null, file );
+        try
+        {
+            // under a file, not a directory
+            RealmJournal.compact( realm, journal, file.resolve( "as.matr" ) );
+            fail( "saved where there's no directory" );
+        }
+        catch ( IOException e )
+        {
+            // expected
+        }
+        assertSame( journal, realm.getJournal() );
+
+        edit( realm );
+        assertNull( journal.getFailure() );
+        journal.close();
+        Realm opened = RealmFile.load( file );
+        RealmJournal.open( opened, file ).close();
+        RealmFileTest.assertSame( realm, opened );
+    }
+
+    public void testRejectsJournalOfAnotherSave() throws IOException
+    {
+        Realm realm = SampleRealms.make( 1 );
+        RealmJournal.compact( realm, null, file );
+        edit( realm );
+        realm.getJournal().close();
+        // saved behind the journal's back
+        RealmFile.save( SampleRealms.make( 2 ), file );
+        try
+        {
+            RealmJournal.open( RealmFile.load( file ), file );
+            fail( "replayed a journal onto the wrong save" );
+        }
+        catch ( IOException e )
+        {
+            // expected
+        }
+    }
+}
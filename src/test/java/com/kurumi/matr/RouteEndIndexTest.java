@@ -0,0 +1,44 @@
+package com.kurumi.matr;
+
+import java.util.Random;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * RouteEndIndex must keep findRouteStart() and findRouteEnd() where a
+ * scan of the whole grid would put them, through any run of edits.
+ */
+public class RouteEndIndexTest
+    extends TestCase
+{
+    private static final int edits = 300;
+
+    public RouteEndIndexTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( RouteEndIndexTest.class );
+    }
+
+    public void testGeneratedRealm()
+    {
+        SampleRealms.assertEndsMatchScan( SampleRealms.make() );
+    }
+
+    // random edits around the routes, checked after each one
+    public void testRandomEdits()
+    {
+        Realm realm = SampleRealms.make();
+        Random dice = new Random( 1 );
+        for ( int i = 0; i < edits; i++ )
+        {
+            SampleRealms.randomEdit( realm, dice );
+            SampleRealms.assertEndsMatchScan( realm );
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package com.kurumi.matr;
+
+import java.awt.Point;
+import java.util.Random;
+
+import junit.framework.Assert;
+
+/**
+ * Realms and edits the tests share: the same small seeded realm,
+ * and the edits the path tool makes to it.
+ */
+final class SampleRealms
+{
+    private SampleRealms()
+    {
+    }
+
+    static Realm make( long seed )
+    {
+        Realm realm = new Realm( 200, 120, 40 );
+        realm.setSeed( seed );
+        realm.create();
+        return realm;
+    }
+
+    static Realm make()
+    {
+        return make( 1 );
+    }
+
+    // a leg: the tile it leaves and its heading
+    static final class Leg
+    {
+        final Point at;
+        final int heading;
+
+        Leg( Point at_, int heading_ )
+        {
+            at = at_;
+            heading = heading_;
+        }
+    }
+
+    /**
+     * Erase the first leg of a route, as the path tool would,
+     * and find the route's new ends.
+     * @return the leg erased
+     */
+    static Leg eraseRouteStart( Realm realm, int rid )
+    {
+        Point here = new Point( realm.routes[rid].getStart() );
+        int heading = realm.getForwardDirection( here.x, here.y, rid );
+        realm.clearLegBoth( here, heading );
+        realm.findRouteStart( rid );
+        realm.findRouteEnd( rid );
+        return new Leg( here, heading );
+    }
+
+    /**
+     * Pave a leg and number it as a new route, as the path tool would.
+     * @return the new route's id
+     */
+    static int paveNewRoute( Realm realm, Leg leg, int number )
+    {
+        realm.setPaveBoth( leg.at, leg.heading, Junction.undiv4 );
+        int rid = realm.getRouteIdOrCreate( number, leg.at, leg.heading,
+                                            leg.heading );
+        realm.addRidBoth( leg.at, leg.heading, rid, true );
+        realm.findRouteStart( rid );
+        realm.findRouteEnd( rid );
+        return rid;
+    }
+
+    /**
+     * One random edit somewhere along a random route, through the
+     * Point forms of the *Both mutators the path tool uses: erase,
+     * remove or clear route ids, number a leg, pave one, or widen one
+     * the way the generator does. Some picks make no edit.
+     * @return the tile the edited leg leaves
+     */
+    static Point randomEdit( Realm realm, Random dice )
+    {
+        JunctionTable juncs = realm.grid.getJunctionTable();
+        int rid = 1 + dice.nextInt( realm.getNumRoutes() );
+        Point here = new Point( realm.routes[rid].getStart() );
+        for ( int steps = dice.nextInt( 40 ); steps > 0; steps-- )
+        {
+            if ( !realm.nextJunc( here, rid ) )
+            {
+                break;
+            }
+        }
+        int forward = realm.getForwardDirection( here.x, here.y, rid );
+        int heading = dice.nextInt( Junction.numDirs );
+        int slot = juncs.slotAt( realm.grid.tile( here.x, here.y ) );
+        boolean paved = slot != 0 && juncs.pavementAt( slot, heading ) > 0;
+
+        switch ( dice.nextInt( 6 ) )
+        {
+            case 0:
+                if ( forward >= 0 )
+                {
+                    realm.clearLegBoth( here, forward );
+                }
+                break;
+            case 1:
+                if ( forward >= 0 )
+                {
+                    realm.removeRidBoth( here, forward, rid );
+                }
+                break;
+            case 2:
+                if ( forward >= 0 )
+                {
+                    realm.clearRidsBoth( here, forward );
+                }
+                break;
+            case 3:
+                // number a paved leg that has room for another route
+                int other = 1 + dice.nextInt( realm.getNumRoutes() );
+                if ( paved && juncs.ridAt( slot, heading, 1 ) == 0 &&
+                     juncs.ridAt( slot, heading, 0 ) != other )
+                {
+                    realm.addRidBoth( here, heading, other, dice.nextBoolean() );
+                }
+                break;
+            case 4:
+                if ( !realm.cantPave( here, heading ) )
+                {
+                    realm.setPaveBoth( here, heading, Junction.undiv2 );
+                }
+                break;
+            default:
+                if ( paved && juncs.ridAt( slot, heading, 1 ) == 0 &&
+                     juncs.ridAt( slot, heading, 0 ) != rid )
+                {
+                    realm.addRouteBoth( here, heading, rid, Junction.div4,
+                                        dice.nextBoolean() );
+                }
+                break;
+        }
+        return here;
+    }
+
+    /**
+     * What's cached for a slot, all four answers in one int.
+     */
+    static int classify( JunctionTable juncs, int slot )
+    {
+        return juncs.intersectionType( slot ) << 3 |
+            ( juncs.isTwoWay( slot ) ? 4 : 0 ) |
+            ( juncs.isRouteJunction( slot ) ? 2 : 0 ) |
+            ( juncs.isRouteInflection( slot ) ? 1 : 0 );
+    }
+
+    /**
+     * The full-grid scan findRouteStart() and findRouteEnd() made
+     * before RouteEndIndex: the first tile, row by row, where route
+     * rid starts (or ends).
+     * @return that tile, or -1 if there's none
+     */
+    static int scanForEnd( Realm realm, int rid, boolean start )
+    {
+        JunctionTable juncs = realm.grid.getJunctionTable();
+        int numTiles = realm.getWidth() * realm.getHeight();
+        for ( int t = 0; t < numTiles; t++ )
+        {
+            int slot = juncs.slotAt( t );
+            if ( slot != 0 && ( start ? juncs.isRouteStart( slot, rid )
+                                      : juncs.isRouteEnd( slot, rid ) ) )
+            {
+                return t;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * findRouteStart() and findRouteEnd() must land where a scan of
+     * the whole grid would, for every route that has a start or end.
+     */
+    static void assertEndsMatchScan( Realm realm )
+    {
+        RealmGrid grid = realm.grid;
+        for ( int rid = 1; rid <= realm.getNumRoutes(); rid++ )
+        {
+            Route route = realm.routes[rid];
+            realm.findRouteStart( rid );
+            realm.findRouteEnd( rid );
+            int start = scanForEnd( realm, rid, true );
+            if ( start >= 0 )
+            {
+                Point p = route.getStart();
+                Assert.assertEquals( "start of route " + rid, start,
+                                     grid.tile( p.x, p.y ) );
+            }
+            int end = scanForEnd( realm, rid, false );
+            if ( end >= 0 )
+            {
+                Point p = route.getEnd();
+                Assert.assertEquals( "end of route " + rid, end,
+                                     grid.tile( p.x, p.y ) );
+            }
+        }
+    }
+}